@@ -1,7 +1,10 @@
 package lucenforge;
 
+import lucenforge.files.AssetLoader;
 import lucenforge.files.Properties;
 import lucenforge.graphics.GraphicsManager;
+import lucenforge.graphics.PixelUploader;
+import lucenforge.graphics.TextureStreamer;
 import lucenforge.output.Monitor;
 import lucenforge.physics.Physics;
 import lucenforge.input.Keyboard;
@@ -75,6 +78,10 @@ public class Engine {
         Keyboard.update();
         Mouse.update();
         GraphicsManager.update();
+        // Retire finished pixel transfers, then finish background loads with whatever upload time this frame allows
+        PixelUploader.update();
+        AssetLoader.processUploads();
+        TextureStreamer.update();
     }
     // Frame Loop Iteration: Clears the screen and depth buffer
     public static void clearScreen(){
@@ -98,7 +105,8 @@ public class Engine {
     }
 
     public static void shutdown(){
-        // 1. Cleanup rendering stuff (while OpenGL is alive)
+        // 1. Stop background loads, then cleanup rendering stuff (while OpenGL is alive)
+        AssetLoader.shutdown();
         GraphicsManager.cleanup();
 
         // 2. Free GLFW callbacks
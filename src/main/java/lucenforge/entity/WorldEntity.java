@@ -14,6 +14,13 @@ public class WorldEntity {
         this.parent = parent;
     }
 
+    // Take over another entity's own position, rotation and scale (not its parent's)
+    protected void copyTransform(WorldEntity from){
+        this.position = new Vector3f(from.position);
+        this.rotation = new Vector3f(from.rotation);
+        this.scale = new Vector3f(from.scale);
+    }
+
     // Position
     public Vector3f position(){
         if(this.parent != null)
@@ -28,7 +35,7 @@ public class WorldEntity {
     // Rotation
     public Vector3f rotation(){
         if(this.parent != null)
-            return this.parent.rotation().add(rotation);
+            return new Vector3f(parent.rotation()).add(rotation);
         return rotation;
     }
     public void rotate(Vector3f angles){
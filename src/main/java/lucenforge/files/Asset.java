@@ -0,0 +1,42 @@
+package lucenforge.files;
+
+import java.util.concurrent.CompletableFuture;
+
+// Handle to an asset that is loading in the background. get() returns the placeholder (or null
+// when there is none) until the asset is ready. The future completes on the render thread, so
+// non-async callbacks chained onto it may use OpenGL.
+public class Asset<T> {
+
+    private final String name;
+    private final CompletableFuture<T> future = new CompletableFuture<>();
+    private volatile T value;
+
+    Asset(String name, T placeholder) {
+        this.name = name;
+        this.value = placeholder;
+    }
+
+    public T get() {
+        return value;
+    }
+    public String name() {
+        return name;
+    }
+    public CompletableFuture<T> future() {
+        return future;
+    }
+    public boolean isReady() {
+        return future.isDone() && !future.isCompletedExceptionally();
+    }
+    public boolean isFailed() {
+        return future.isCompletedExceptionally();
+    }
+
+    void complete(T loaded) {
+        value = loaded;
+        future.complete(loaded);
+    }
+    void fail(Throwable cause) {
+        future.completeExceptionally(cause);
+    }
+}
@@ -0,0 +1,184 @@
+package lucenforge.files;
+
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.function.Consumer;
+import java.util.function.Supplier;
+import java.util.function.ToLongFunction;
+
+// Assets shared by key, reference counted through AssetRef. Entries nobody references stay cached
+// until the CPU + GPU bytes of all entries exceed the budget, then the least recently used go first.
+public class AssetCache {
+
+    private static final class Entry {
+        final Object value;
+        final ToLongFunction<Object> cpuBytes, gpuBytes;
+        final Consumer<Object> cleanup;
+        int references = 0;
+
+        Entry(Object value, ToLongFunction<Object> cpuBytes, ToLongFunction<Object> gpuBytes, Consumer<Object> cleanup) {
+            this.value = value;
+            this.cpuBytes = cpuBytes;
+            this.gpuBytes = gpuBytes;
+            this.cleanup = cleanup;
+        }
+    }
+
+    // Access ordered, so iteration starts at the least recently used entry
+    private static final LinkedHashMap<String, Entry> entries = new LinkedHashMap<>(16, 0.75f, true);
+    // Loads in progress, so callers asking for the same key wait for one load instead of starting another
+    private static final HashMap<String, CompletableFuture<Object>> loading = new HashMap<>();
+    private static long budgetBytes = -1;
+
+    private static long hits = 0, misses = 0, evictions = 0;
+
+    // Take a reference to the cached asset, loading it first if it's not cached. Returns null if
+    // the load fails; failures are not cached. The load runs outside the cache lock, so other assets
+    // can be acquired and released meanwhile; callers asking for the same key wait for it.
+    @SuppressWarnings("unchecked")
+    public static <T> AssetRef<T> acquire(String key, Supplier<T> load, ToLongFunction<T> cpuBytes,
+                                          ToLongFunction<T> gpuBytes, Consumer<T> cleanup) {
+        CompletableFuture<Object> pending;
+        boolean loader = false;
+        synchronized (AssetCache.class) {
+            Entry entry = entries.get(key);
+            if (entry != null) {
+                hits++;
+                entry.references++;
+                return new AssetRef<>(key, (T) entry.value);
+            }
+            pending = loading.get(key);
+            if (pending == null) {
+                misses++;
+                pending = new CompletableFuture<>();
+                loading.put(key, pending);
+                loader = true;
+            }
+        }
+
+        if (!loader) {
+            if (pending.join() == null)
+                return null;
+            synchronized (AssetCache.class) {
+                Entry entry = entries.get(key);
+                if (entry != null) {
+                    hits++;
+                    entry.references++;
+                    return new AssetRef<>(key, (T) entry.value);
+                }
+            }
+            // Evicted before we got to it
+            return acquire(key, load, cpuBytes, gpuBytes, cleanup);
+        }
+
+        T value = null;
+        try {
+            value = load.get();
+        } finally {
+            synchronized (AssetCache.class) {
+                loading.remove(key);
+                if (value != null) {
+                    Entry entry = new Entry(value, (ToLongFunction<Object>) cpuBytes, (ToLongFunction<Object>) gpuBytes, (Consumer<Object>) cleanup);
+                    entry.references = 1;
+                    entries.put(key, entry);
+                    trim();
+                }
+            }
+            pending.complete(value);
+        }
+        return value == null ? null : new AssetRef<>(key, value);
+    }
+
+    static synchronized void release(String key) {
+        Entry entry = entries.get(key);
+        if (entry == null || entry.references == 0)
+            return;
+        entry.references--;
+        if (entry.references == 0)
+            trim();
+    }
+
+    // Evict unreferenced entries, oldest first, until the cache fits its budget
+    public static synchronized void trim() {
+        long total = cpuBytes() + gpuBytes();
+        if (total <= budgetBytes())
+            return;
+        Iterator<Map.Entry<String, Entry>> iterator = entries.entrySet().iterator();
+        while (total > budgetBytes && iterator.hasNext()) {
+            Map.Entry<String, Entry> next = iterator.next();
+            Entry entry = next.getValue();
+            if (entry.references > 0)
+                continue;
+            total -= entry.cpuBytes.applyAsLong(entry.value) + entry.gpuBytes.applyAsLong(entry.value);
+            iterator.remove();
+            entry.cleanup.accept(entry.value);
+            evictions++;
+            Log.writeln(Log.DEBUG, "Evicted asset \"" + next.getKey() + "\"");
+        }
+    }
+
+    // Drop every unreferenced entry regardless of the budget
+    public static synchronized void evictUnused() {
+        Iterator<Entry> iterator = entries.values().iterator();
+        while (iterator.hasNext()) {
+            Entry entry = iterator.next();
+            if (entry.references > 0)
+                continue;
+            iterator.remove();
+            entry.cleanup.accept(entry.value);
+            evictions++;
+        }
+    }
+
+    private static long budgetBytes() {
+        if (budgetBytes < 0)
+            budgetBytes = (long) Properties.getInt("files", "asset_cache_mb", 512) << 20;
+        return budgetBytes;
+    }
+    public static synchronized void setBudget(long bytes) {
+        budgetBytes = bytes;
+        trim();
+    }
+
+    public static synchronized boolean contains(String key) {
+        return entries.containsKey(key);
+    }
+    public static synchronized int references(String key) {
+        Entry entry = entries.get(key);
+        return entry == null ? 0 : entry.references;
+    }
+    public static synchronized int size() {
+        return entries.size();
+    }
+    public static synchronized long cpuBytes() {
+        long bytes = 0;
+        for (Entry entry : entries.values())
+            bytes += entry.cpuBytes.applyAsLong(entry.value);
+        return bytes;
+    }
+    public static synchronized long gpuBytes() {
+        long bytes = 0;
+        for (Entry entry : entries.values())
+            bytes += entry.gpuBytes.applyAsLong(entry.value);
+        return bytes;
+    }
+    public static synchronized long hits() {
+        return hits;
+    }
+    public static synchronized long misses() {
+        return misses;
+    }
+    public static synchronized long evictions() {
+        return evictions;
+    }
+
+    public static synchronized void logStats() {
+        Log.writeln(Log.TELEMETRY, "Asset cache: " + entries.size() + " entries, " + (cpuBytes() >> 10) + " KiB CPU, "
+                + (gpuBytes() >> 10) + " KiB GPU, " + hits + " hits, " + misses + " misses, " + evictions + " evictions");
+    }
+
+    private AssetCache(){} // Prevent instantiation
+}
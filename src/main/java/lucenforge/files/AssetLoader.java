@@ -0,0 +1,109 @@
+package lucenforge.files;
+
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Function;
+
+// Runs the CPU side of asset loads (file I/O, parsing, decoding) on worker threads and queues the
+// OpenGL side for the render thread, where Engine.frameBegin drains it within a time budget
+public class AssetLoader {
+
+    private static ExecutorService workers;
+    private static final ConcurrentLinkedQueue<Runnable> uploads = new ConcurrentLinkedQueue<>();
+    private static final AtomicInteger pendingLoads = new AtomicInteger();
+    private static long uploadBudgetNanos = -1;
+
+    // Decode on a worker, then turn the result into the asset on the render thread
+    static <D, T> Asset<T> submit(Asset<T> asset, Callable<D> decode, Function<D, T> upload) {
+        return submitDeferred(asset, decode, decoded -> CompletableFuture.completedFuture(upload.apply(decoded)));
+    }
+
+    // Like submit, but the render thread only starts the upload; the asset completes with the
+    // future, e.g. once the GPU has signalled a fence some frames later
+    static <D, T> Asset<T> submitDeferred(Asset<T> asset, Callable<D> decode, Function<D, CompletableFuture<T>> upload) {
+        pendingLoads.incrementAndGet();
+        workers().execute(() -> {
+            D decoded;
+            try {
+                decoded = decode.call();
+                if (decoded == null)
+                    throw new IllegalStateException("nothing was loaded");
+            } catch (Throwable e) {
+                Log.writeln(Log.ERROR, "Failed to load \"" + asset.name() + "\": " + e.getMessage());
+                pendingLoads.decrementAndGet();
+                asset.fail(e);
+                return;
+            }
+            uploads.add(() -> {
+                CompletableFuture<T> uploaded;
+                try {
+                    uploaded = upload.apply(decoded);
+                } catch (Throwable e) {
+                    uploaded = CompletableFuture.failedFuture(e);
+                }
+                uploaded.whenComplete((value, e) -> {
+                    if (e != null) {
+                        Log.writeln(Log.ERROR, "Failed to upload \"" + asset.name() + "\": " + e.getMessage());
+                        asset.fail(e);
+                    } else {
+                        asset.complete(value);
+                    }
+                    pendingLoads.decrementAndGet();
+                });
+            });
+        });
+        return asset;
+    }
+
+    // Render Loop Iteration: run queued GL uploads until the frame's budget is spent
+    public static void processUploads() {
+        if (uploads.isEmpty())
+            return;
+        if (uploadBudgetNanos < 0)
+            uploadBudgetNanos = (long) (Properties.getFloat("files", "upload_budget_ms", 2f) * 1_000_000);
+        long start = System.nanoTime();
+        // At least one upload per frame, so a large asset can't stall the queue forever
+        Runnable upload;
+        do {
+            upload = uploads.poll();
+            if (upload != null)
+                upload.run();
+        } while (upload != null && System.nanoTime() - start < uploadBudgetNanos);
+    }
+
+    // Loads that have not finished uploading yet
+    public static int pendingLoads() {
+        return pendingLoads.get();
+    }
+    public static int pendingUploads() {
+        return uploads.size();
+    }
+
+    private static synchronized ExecutorService workers() {
+        if (workers == null) {
+            int defaultThreads = Math.max(1, Runtime.getRuntime().availableProcessors() - 1);
+            int threads = Math.max(1, Properties.getInt("files", "loader_threads", defaultThreads));
+            AtomicInteger count = new AtomicInteger();
+            workers = Executors.newFixedThreadPool(threads, runnable -> {
+                Thread thread = new Thread(runnable, "asset-loader-" + count.incrementAndGet());
+                thread.setDaemon(true);
+                return thread;
+            });
+        }
+        return workers;
+    }
+
+    // Stop the workers; queued uploads are dropped
+    public static synchronized void shutdown() {
+        if (workers != null)
+            workers.shutdownNow();
+        workers = null;
+        uploads.clear();
+    }
+
+    private AssetLoader(){} // Prevent instantiation
+}
@@ -0,0 +1,42 @@
+package lucenforge.files;
+
+// One reference to a shared asset from AssetCache. Release it once the asset is no longer
+// needed; the asset stays cached until the memory budget pushes it out.
+public class AssetRef<T> implements AutoCloseable {
+
+    private final String key;
+    private final T value;
+    // Run before the cache reference is dropped, for holders with something of their own to free
+    private final Runnable onRelease;
+    private boolean released = false;
+
+    AssetRef(String key, T value) {
+        this(key, value, null);
+    }
+    AssetRef(String key, T value, Runnable onRelease) {
+        this.key = key;
+        this.value = value;
+        this.onRelease = onRelease;
+    }
+
+    public T get() {
+        return value;
+    }
+    public String key() {
+        return key;
+    }
+
+    public void release() {
+        if (released)
+            return;
+        released = true;
+        if (onRelease != null)
+            onRelease.run();
+        AssetCache.release(key);
+    }
+
+    @Override
+    public void close() {
+        release();
+    }
+}
@@ -0,0 +1,235 @@
+package lucenforge.files;
+
+import lucenforge.graphics.primitives.mesh.Mesh;
+import lucenforge.graphics.primitives.mesh.MeshData;
+import lucenforge.graphics.primitives.mesh.MeshGroup;
+import lucenforge.graphics.primitives.mesh.VertexLayout;
+import lucenforge.graphics.shaders.VertexAttributeType;
+import org.joml.Matrix4f;
+import org.lwjgl.PointerBuffer;
+import org.lwjgl.assimp.AIFace;
+import org.lwjgl.assimp.AIMatrix4x4;
+import org.lwjgl.assimp.AIMesh;
+import org.lwjgl.assimp.AINode;
+import org.lwjgl.assimp.AIScene;
+import org.lwjgl.assimp.AIVector3D;
+
+import java.nio.FloatBuffer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+
+import static org.lwjgl.assimp.Assimp.*;
+import static org.lwjgl.system.MemoryUtil.*;
+
+// Imports anything Assimp reads (FBX, DAE, 3DS, BLEND, ...) from the models directory. Assimp
+// welds vertices, reorders for the vertex cache, merges meshes and triangulates; the results are
+// copied into MeshData in bulk straight out of Assimp's arrays. loadMerged keeps a MeshCache
+// file next to the source, and main converts files offline so the first load is fast too.
+public class AssimpFile {
+
+    private static final String modelsDir = "src/main/resources/models/";
+
+    private static final int FLAGS = aiProcess_JoinIdenticalVertices | aiProcess_ImproveCacheLocality
+            | aiProcess_OptimizeMeshes | aiProcess_Triangulate | aiProcess_GenSmoothNormals
+            | aiProcess_SortByPType | aiProcess_FindDegenerates;
+
+    // Load the file's node hierarchy as MeshGroups, one Mesh per Assimp mesh
+    public static MeshGroup load(String fileName) {
+        Path path = modelPath(fileName);
+        if (path == null)
+            return null;
+        AIScene scene = importScene(path, FLAGS);
+        if (scene == null)
+            return null;
+        try {
+            MeshGroup group = new MeshGroup();
+            addNode(group, scene, scene.mRootNode(), new Matrix4f(), Placement.ORIGIN);
+            Log.writeln("Imported \"" + fileName + "\" (meshes: " + scene.mNumMeshes() + ")");
+            return group;
+        } finally {
+            aiReleaseImport(scene);
+        }
+    }
+
+    // Load the whole file as one mesh with the node transforms baked in, from the cache if it's current
+    public static Mesh loadMerged(String fileName) {
+        Path path = modelPath(fileName);
+        if (path == null)
+            return null;
+        MeshCache.Entry cached = MeshCache.load(path, 0, -1);
+        Mesh mesh = new Mesh();
+        if (cached != null) {
+            mesh.setTopology(cached.data());
+            Log.writeln("Loaded \"" + fileName + "\" from cache (f: " + cached.data().faceCount() + ", v: " + cached.data().vertexCount() + ")");
+            return mesh;
+        }
+        MeshData data = importMerged(path);
+        if (data == null)
+            return null;
+        MeshCache.write(path, data, 0, -1);
+        mesh.setTopology(data);
+        return mesh;
+    }
+
+    private static MeshData importMerged(Path path) {
+        // Assimp bakes the hierarchy itself, leaving meshes in world space
+        AIScene scene = importScene(path, FLAGS | aiProcess_PreTransformVertices);
+        if (scene == null)
+            return null;
+        try {
+            PointerBuffer meshes = scene.mMeshes();
+            int meshCount = scene.mNumMeshes();
+            boolean allTextured = meshCount > 0;
+            int vertexCount = 0, faceCount = 0;
+            for (int m = 0; m < meshCount; m++) {
+                AIMesh mesh = AIMesh.create(meshes.get(m));
+                allTextured &= mesh.mTextureCoords(0) != null;
+                vertexCount += mesh.mNumVertices();
+                faceCount += mesh.mNumFaces();
+            }
+            MeshData data = new MeshData(VertexLayout.standard(allTextured, true), vertexCount, faceCount);
+            for (int m = 0; m < meshCount; m++)
+                append(data, AIMesh.create(meshes.get(m)));
+            Log.writeln("Imported \"" + path.getFileName() + "\" (f: " + data.faceCount() + ", v: " + data.vertexCount() + ")");
+            return data;
+        } finally {
+            aiReleaseImport(scene);
+        }
+    }
+
+    private static void addNode(MeshGroup parent, AIScene scene, AINode node, Matrix4f parentWorld, Placement parentPlacement) {
+        Matrix4f world = new Matrix4f(parentWorld).mul(toMatrix(node.mTransformation()));
+        int childCount = node.mNumChildren();
+        int meshCount = node.mNumMeshes();
+
+        // A leaf with a single mesh needs no group of its own
+        Mesh entity;
+        if (childCount == 0 && meshCount == 1) {
+            entity = toMesh(scene, node.mMeshes().get(0));
+        } else {
+            MeshGroup group = new MeshGroup();
+            for (int m = 0; m < meshCount; m++)
+                group.addMesh(toMesh(scene, node.mMeshes().get(m)));
+            entity = group;
+        }
+        parent.addMesh(entity);
+        Placement placement = Placement.place(entity, world, parentPlacement);
+        PointerBuffer children = node.mChildren();
+        for (int c = 0; c < childCount; c++)
+            addNode((MeshGroup) entity, scene, AINode.create(children.get(c)), world, placement);
+    }
+
+    private static Mesh toMesh(AIScene scene, int index) {
+        AIMesh source = AIMesh.create(scene.mMeshes().get(index));
+        MeshData data = new MeshData(VertexLayout.standard(source.mTextureCoords(0) != null, true), source.mNumVertices(), source.mNumFaces());
+        append(data, source);
+        Mesh mesh = new Mesh();
+        mesh.setTopology(data);
+        return mesh;
+    }
+
+    // Interleave the mesh's arrays into one block and copy its triangles in, offset past what's there
+    private static void append(MeshData data, AIMesh mesh) {
+        int vertexCount = mesh.mNumVertices();
+        VertexLayout layout = data.layout();
+        int stride = layout.floatStride();
+        int texOffset = layout.offset(VertexAttributeType.TEXTURE_IN);
+        int normalOffset = layout.offset(VertexAttributeType.NORMAL_IN);
+
+        // Assimp stores every vector as three floats, texture coordinates included
+        FloatBuffer positions = memFloatBuffer(mesh.mVertices().address(), vertexCount * 3);
+        AIVector3D.Buffer normalBuffer = mesh.mNormals();
+        FloatBuffer normals = normalBuffer == null ? null : memFloatBuffer(normalBuffer.address(), vertexCount * 3);
+        AIVector3D.Buffer texBuffer = mesh.mTextureCoords(0);
+        FloatBuffer texCoords = texBuffer == null || texOffset < 0 ? null : memFloatBuffer(texBuffer.address(), vertexCount * 3);
+
+        float[] interleaved = new float[vertexCount * stride];
+        for (int v = 0; v < vertexCount; v++) {
+            int base = v * stride;
+            positions.get(v * 3, interleaved, base, 3);
+            if (texCoords != null)
+                texCoords.get(v * 3, interleaved, base + texOffset, 2);
+            if (normals != null && normalOffset >= 0)
+                normals.get(v * 3, interleaved, base + normalOffset, 3);
+        }
+        int first = data.addVertices(vertexCount);
+        data.setVertices(first, interleaved, 0, vertexCount);
+
+        // Read the faces in place; SortByPType and FindDegenerates leave lines and points out of
+        // triangle meshes, but skip anything that isn't a triangle anyway
+        int faceCount = mesh.mNumFaces();
+        long faces = mesh.mFaces().address();
+        int[] corners = new int[faceCount * 3];
+        int triangles = 0;
+        for (int f = 0; f < faceCount; f++) {
+            long face = faces + (long) f * AIFace.SIZEOF;
+            if (memGetInt(face + AIFace.MNUMINDICES) != 3)
+                continue;
+            long indices = memGetAddress(face + AIFace.MINDICES);
+            corners[triangles * 3    ] = first + memGetInt(indices);
+            corners[triangles * 3 + 1] = first + memGetInt(indices + 4);
+            corners[triangles * 3 + 2] = first + memGetInt(indices + 8);
+            triangles++;
+        }
+        data.addFaces(corners, 0, triangles);
+    }
+
+    // Assimp matrices are row major
+    private static Matrix4f toMatrix(AIMatrix4x4 m) {
+        return new Matrix4f(
+                m.a1(), m.b1(), m.c1(), m.d1(),
+                m.a2(), m.b2(), m.c2(), m.d2(),
+                m.a3(), m.b3(), m.c3(), m.d3(),
+                m.a4(), m.b4(), m.c4(), m.d4());
+    }
+
+    private static AIScene importScene(Path path, int flags) {
+        // Loads run on several workers, so every line goes out whole
+        String file = "\"" + path.getFileName() + "\"";
+        AIScene scene;
+        try {
+            scene = aiImportFile(path.toString(), flags);
+        } catch (UnsatisfiedLinkError | NoClassDefFoundError e) {
+            Log.writeln(Log.ERROR, "Cannot import " + file + "; Assimp natives are not available for this platform");
+            return null;
+        }
+        if (scene == null || scene.mRootNode() == null) {
+            Log.writeln(Log.ERROR, "Import of " + file + " failed: " + aiGetErrorString());
+            if (scene != null)
+                aiReleaseImport(scene);
+            return null;
+        }
+        return scene;
+    }
+
+    private static Path modelPath(String fileName) {
+        Path path = Paths.get(modelsDir + fileName);
+        if (!Files.exists(path)) {
+            Log.writeln(Log.ERROR, "Mesh file not found: \"" + path + "\"");
+            return null;
+        }
+        return path;
+    }
+
+    // Offline conversion: writes the merged mesh cache beside each model named on the command line
+    public static void main(String[] args) {
+        if (args.length == 0) {
+            Log.writeln(Log.ERROR, "Usage: AssimpFile <model file in " + modelsDir + ">...");
+            return;
+        }
+        for (String fileName : args) {
+            Path path = modelPath(fileName);
+            if (path == null)
+                continue;
+            MeshData data = importMerged(path);
+            if (data == null)
+                continue;
+            MeshCache.write(path, data, 0, -1);
+            Log.writeln(Log.SUCCESS, "Converted \"" + fileName + "\" to " + MeshCache.cachePath(path).getFileName());
+            data.free();
+        }
+    }
+
+    private AssimpFile(){} // Prevent instantiation
+}
@@ -0,0 +1,145 @@
+package lucenforge.files;
+
+import java.nio.ByteBuffer;
+
+import static org.lwjgl.system.MemoryUtil.*;
+
+// BC1 (DXT1) and BC3 (DXT5) block compression of RGBA8 images. Each 4x4 block's colors are fit
+// between the corners of their bounding box, inset a little, and every texel takes the nearest of
+// the four palette colors; BC3 adds an alpha block with eight interpolated levels. Quick rather
+// than optimal, which suits a converter that runs on first launch.
+class BlockCompressor {
+
+    static final int BC1_BLOCK_BYTES = 8;
+    static final int BC3_BLOCK_BYTES = 16;
+
+    // Bytes of a compressed image
+    static int compressedSize(int width, int height, boolean alpha) {
+        return ((width + 3) / 4) * ((height + 3) / 4) * (alpha ? BC3_BLOCK_BYTES : BC1_BLOCK_BYTES);
+    }
+
+    // Whether any texel is less than opaque
+    static boolean hasAlpha(ByteBuffer rgba, int width, int height) {
+        long address = memAddress(rgba);
+        for (long i = 0, count = (long) width * height; i < count; i++) {
+            if (memGetByte(address + i * 4 + 3) != (byte) 0xFF)
+                return true;
+        }
+        return false;
+    }
+
+    // Compress an RGBA8 image into target, as BC3 with alpha and BC1 without
+    static void compress(ByteBuffer rgba, int width, int height, boolean alpha, ByteBuffer target) {
+        long from = memAddress(rgba), to = memAddress(target);
+        int[] block = new int[16];
+        for (int by = 0; by < height; by += 4) {
+            for (int bx = 0; bx < width; bx += 4) {
+                // Texels past the edge repeat the last row or column
+                for (int y = 0; y < 4; y++) {
+                    int row = Math.min(height - 1, by + y);
+                    for (int x = 0; x < 4; x++)
+                        block[y * 4 + x] = memGetInt(from + ((long) row * width + Math.min(width - 1, bx + x)) * 4);
+                }
+                if (alpha) {
+                    encodeAlpha(block, to);
+                    to += 8;
+                }
+                encodeColor(block, to);
+                to += 8;
+            }
+        }
+    }
+
+    // Two endpoints as RGB565 and a 2 bit index per texel
+    private static void encodeColor(int[] block, long to) {
+        int minR = 255, minG = 255, minB = 255, maxR = 0, maxG = 0, maxB = 0;
+        for (int texel : block) {
+            int r = texel & 0xFF, g = (texel >>> 8) & 0xFF, b = (texel >>> 16) & 0xFF;
+            minR = Math.min(minR, r); minG = Math.min(minG, g); minB = Math.min(minB, b);
+            maxR = Math.max(maxR, r); maxG = Math.max(maxG, g); maxB = Math.max(maxB, b);
+        }
+        // Pull the corners in by 1/16 of the range, which fits the interpolated colors better
+        int insetR = (maxR - minR) >> 4, insetG = (maxG - minG) >> 4, insetB = (maxB - minB) >> 4;
+        int color0 = pack565(maxR - insetR, maxG - insetG, maxB - insetB);
+        int color1 = pack565(minR + insetR, minG + insetG, minB + insetB);
+        int indices = 0;
+        if (color0 != color1) {
+            // color0 > color1 selects the four color mode
+            if (color0 < color1) {
+                int swap = color0;
+                color0 = color1;
+                color1 = swap;
+            }
+            int[] palette = new int[12];
+            unpack565(color0, palette, 0);
+            unpack565(color1, palette, 3);
+            for (int c = 0; c < 3; c++) {
+                palette[6 + c] = (2 * palette[c] + palette[3 + c]) / 3;
+                palette[9 + c] = (palette[c] + 2 * palette[3 + c]) / 3;
+            }
+            for (int i = 0; i < 16; i++) {
+                int r = block[i] & 0xFF, g = (block[i] >>> 8) & 0xFF, b = (block[i] >>> 16) & 0xFF;
+                int best = 0, bestDistance = Integer.MAX_VALUE;
+                for (int p = 0; p < 4; p++) {
+                    int dr = r - palette[p * 3], dg = g - palette[p * 3 + 1], db = b - palette[p * 3 + 2];
+                    int distance = dr * dr + dg * dg + db * db;
+                    if (distance < bestDistance) {
+                        bestDistance = distance;
+                        best = p;
+                    }
+                }
+                indices |= best << (i * 2);
+            }
+        }
+        memPutShort(to, (short) color0);
+        memPutShort(to + 2, (short) color1);
+        memPutInt(to + 4, indices);
+    }
+
+    // Two endpoints and a 3 bit index per texel
+    private static void encodeAlpha(int[] block, long to) {
+        int min = 255, max = 0;
+        for (int texel : block) {
+            int a = texel >>> 24;
+            min = Math.min(min, a);
+            max = Math.max(max, a);
+        }
+        long indices = 0;
+        if (max != min) {
+            // alpha0 > alpha1 selects eight levels: the endpoints, then six steps from alpha0 to alpha1
+            int[] levels = new int[8];
+            levels[0] = max;
+            levels[1] = min;
+            for (int step = 1; step <= 6; step++)
+                levels[step + 1] = ((7 - step) * max + step * min) / 7;
+            for (int i = 0; i < 16; i++) {
+                int a = block[i] >>> 24;
+                int best = 0, bestDistance = Integer.MAX_VALUE;
+                for (int level = 0; level < 8; level++) {
+                    int distance = Math.abs(a - levels[level]);
+                    if (distance < bestDistance) {
+                        bestDistance = distance;
+                        best = level;
+                    }
+                }
+                indices |= (long) best << (i * 3);
+            }
+        }
+        memPutByte(to, (byte) max);
+        memPutByte(to + 1, (byte) min);
+        for (int i = 0; i < 6; i++)
+            memPutByte(to + 2 + i, (byte) (indices >>> (i * 8)));
+    }
+
+    private static int pack565(int r, int g, int b) {
+        return ((r * 31 + 127) / 255) << 11 | ((g * 63 + 127) / 255) << 5 | ((b * 31 + 127) / 255);
+    }
+    private static void unpack565(int color, int[] target, int offset) {
+        int r = (color >>> 11) & 31, g = (color >>> 5) & 63, b = color & 31;
+        target[offset] = (r << 3) | (r >>> 2);
+        target[offset + 1] = (g << 2) | (g >>> 4);
+        target[offset + 2] = (b << 3) | (b >>> 2);
+    }
+
+    private BlockCompressor(){} // Prevent instantiation
+}
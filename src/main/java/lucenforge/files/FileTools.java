@@ -90,6 +90,16 @@ public class FileTools {
         return Files.exists(Paths.get(path));
     }
 
+    // Size of the file in bytes, -1 if it can't be read
+    public static long fileSize(Path path){
+        try {
+            return Files.size(path);
+        } catch (IOException e) {
+            Log.writeln(Log.ERROR, "Error reading size of \"" + path.toString() + "\": " + e.getMessage());
+            return -1;
+        }
+    }
+
     //Prevent instantiation
     public FileTools(){}
 }
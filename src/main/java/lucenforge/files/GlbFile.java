@@ -0,0 +1,297 @@
+package lucenforge.files;
+
+import lucenforge.graphics.primitives.mesh.GltfMesh;
+import lucenforge.graphics.primitives.mesh.Mesh;
+import lucenforge.graphics.primitives.mesh.MeshGroup;
+import lucenforge.graphics.shaders.VertexAttributeType;
+import org.joml.Matrix4f;
+import org.joml.Quaternionf;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+
+import static org.lwjgl.opengl.GL11.GL_UNSIGNED_BYTE;
+import static org.lwjgl.opengl.GL11.GL_UNSIGNED_INT;
+import static org.lwjgl.opengl.GL11.GL_UNSIGNED_SHORT;
+
+// Loads binary glTF 2.0 (.glb) files. The binary chunk stays memory mapped until the first
+// primitive is initialized, then goes to the GPU in one upload; see GltfMesh. Nodes become
+// MeshGroups, so the file's hierarchy and transforms are kept. Materials are not read.
+public class GlbFile {
+
+    private static final String modelsDir = "src/main/resources/models/";
+
+    private static final int MAGIC = 0x46546C67; // "glTF"
+    private static final int CHUNK_JSON = 0x4E4F534A;
+    private static final int CHUNK_BIN = 0x004E4942;
+
+    private static final int MODE_TRIANGLES = 4;
+
+    // Attribute semantics this engine has inputs for
+    private static final Map<String, VertexAttributeType> SEMANTICS = Map.of(
+            "POSITION", VertexAttributeType.POSITION_IN,
+            "NORMAL", VertexAttributeType.NORMAL_IN,
+            "TANGENT", VertexAttributeType.TANGENT_IN,
+            "TEXCOORD_0", VertexAttributeType.TEXTURE_IN,
+            "TEXCOORD_1", VertexAttributeType.TEXTURE2_IN,
+            "COLOR_0", VertexAttributeType.COLOR_IN,
+            "JOINTS_0", VertexAttributeType.BONE_INDICES_IN,
+            "WEIGHTS_0", VertexAttributeType.BONE_WEIGHTS_IN);
+
+    private final List<Object> nodes, meshes, accessors, bufferViews;
+    private final ByteBuffer bin;
+    private final GltfMesh.SharedBuffer shared;
+    private int primitiveCount = 0;
+
+    private GlbFile(Map<String, Object> root, ByteBuffer bin) {
+        this.nodes = Json.array(root, "nodes");
+        this.meshes = Json.array(root, "meshes");
+        this.accessors = Json.array(root, "accessors");
+        this.bufferViews = Json.array(root, "bufferViews");
+        this.bin = bin;
+        this.shared = bin != null ? new GltfMesh.SharedBuffer(bin) : null;
+    }
+
+    // Load a .glb from the models directory as a group holding the default scene
+    public static MeshGroup load(String name) {
+        // Loads run on several workers, so every line goes out whole
+        String fileName = "\"" + name + ".glb\"";
+        Path path = Paths.get(modelsDir + name + ".glb");
+        if (!Files.exists(path)) {
+            Log.writeln(Log.ERROR, "Mesh file not found: " + fileName);
+            return null;
+        }
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+            long size = channel.size();
+            if (size > Integer.MAX_VALUE || size < 20) {
+                Log.writeln(Log.ERROR, "Not a loadable GLB file: " + fileName);
+                return null;
+            }
+            MappedByteBuffer file = channel.map(FileChannel.MapMode.READ_ONLY, 0, size);
+            file.order(ByteOrder.LITTLE_ENDIAN);
+            if (file.getInt(0) != MAGIC || file.getInt(4) != 2 || file.getInt(8) > size) {
+                Log.writeln(Log.ERROR, "Not a glTF 2.0 binary file: " + fileName);
+                return null;
+            }
+            int length = file.getInt(8);
+
+            // Chunks: length, type, data padded to 4 bytes; JSON comes first
+            String json = null;
+            ByteBuffer bin = null;
+            int offset = 12;
+            while (offset + 8 <= length) {
+                int chunkLength = file.getInt(offset);
+                int chunkType = file.getInt(offset + 4);
+                int start = offset + 8;
+                if (chunkLength < 0 || start + (long) chunkLength > length)
+                    break;
+                if (chunkType == CHUNK_JSON && json == null) {
+                    byte[] bytes = new byte[chunkLength];
+                    file.get(start, bytes);
+                    json = new String(bytes, StandardCharsets.UTF_8);
+                } else if (chunkType == CHUNK_BIN && bin == null) {
+                    bin = file.slice(start, chunkLength).order(ByteOrder.LITTLE_ENDIAN);
+                }
+                offset = start + ((chunkLength + 3) & ~3);
+            }
+            if (json == null) {
+                Log.writeln(Log.ERROR, "GLB file has no JSON chunk: " + fileName);
+                return null;
+            }
+            @SuppressWarnings("unchecked")
+            Map<String, Object> root = (Map<String, Object>) Json.parse(json);
+            GlbFile glb = new GlbFile(root, bin);
+            MeshGroup group = glb.buildScene(root);
+            Log.writeln("Loaded " + fileName + " (nodes: " + glb.nodes.size() + ", primitives: " + glb.primitiveCount + ", bin: " + (bin == null ? 0 : bin.remaining()) + " bytes)");
+            return group;
+        } catch (IOException | RuntimeException e) {
+            Log.writeln(Log.ERROR, "Failed to read GLB file " + fileName + ": " + e.getMessage());
+            return null;
+        }
+    }
+
+    private MeshGroup buildScene(Map<String, Object> root) {
+        MeshGroup group = new MeshGroup();
+        Map<String, Object> scene = Json.element(Json.array(root, "scenes"), Json.integer(root, "scene", 0));
+        Placement origin = Placement.ORIGIN;
+        if (scene == null) {
+            // No scenes; every node that isn't someone's child is a root
+            boolean[] isChild = new boolean[nodes.size()];
+            for (int n = 0; n < nodes.size(); n++) {
+                for (Object child : Json.array(Json.element(nodes, n), "children"))
+                    isChild[((Double) child).intValue()] = true;
+            }
+            for (int n = 0; n < nodes.size(); n++) {
+                if (!isChild[n])
+                    addNode(group, n, new Matrix4f(), origin, 0);
+            }
+        } else {
+            for (Object node : Json.array(scene, "nodes"))
+                addNode(group, ((Double) node).intValue(), new Matrix4f(), origin, 0);
+        }
+        return group;
+    }
+
+    private void addNode(MeshGroup parent, int index, Matrix4f parentWorld, Placement parentPlacement, int depth) {
+        Map<String, Object> node = Json.element(nodes, index);
+        if (node == null || depth > nodes.size())
+            throw new IllegalArgumentException("bad node " + index);
+        Matrix4f world = new Matrix4f(parentWorld).mul(localMatrix(node));
+        List<Object> children = Json.array(node, "children");
+
+        Map<String, Object> mesh = Json.element(meshes, Json.integer(node, "mesh", -1));
+        List<Object> primitives = mesh == null ? List.of() : Json.array(mesh, "primitives");
+
+        // A leaf with a single primitive needs no group of its own
+        Mesh entity;
+        if (children.isEmpty() && primitives.size() == 1) {
+            entity = buildPrimitive(Json.element(primitives, 0));
+            if (entity == null)
+                return;
+        } else {
+            MeshGroup group = new MeshGroup();
+            for (int p = 0; p < primitives.size(); p++) {
+                GltfMesh primitive = buildPrimitive(Json.element(primitives, p));
+                if (primitive != null)
+                    group.addMesh(primitive);
+            }
+            entity = group;
+        }
+        parent.addMesh(entity);
+        Placement placement = Placement.place(entity, world, parentPlacement);
+        for (Object child : children) {
+            if (entity instanceof MeshGroup group)
+                addNode(group, ((Double) child).intValue(), world, placement, depth + 1);
+        }
+    }
+
+    private static Matrix4f localMatrix(Map<String, Object> node) {
+        float[] matrix = Json.floats(node, "matrix");
+        if (matrix != null && matrix.length == 16)
+            return new Matrix4f().set(matrix);
+        float[] t = Json.floats(node, "translation");
+        float[] r = Json.floats(node, "rotation");
+        float[] s = Json.floats(node, "scale");
+        Matrix4f local = new Matrix4f();
+        if (t != null)
+            local.translate(t[0], t[1], t[2]);
+        if (r != null)
+            local.rotate(new Quaternionf(r[0], r[1], r[2], r[3]).normalize());
+        if (s != null)
+            local.scale(s[0], s[1], s[2]);
+        return local;
+    }
+
+    private GltfMesh buildPrimitive(Map<String, Object> primitive) {
+        if (primitive == null)
+            return null;
+        if (shared == null) {
+            Log.writeln(Log.WARNING, "GLB primitive skipped; the file has no binary chunk");
+            return null;
+        }
+        Map<String, Object> attributeMap = Json.object(primitive, "attributes");
+        if (attributeMap == null || !attributeMap.containsKey("POSITION")) {
+            Log.writeln(Log.WARNING, "GLB primitive skipped; it has no positions");
+            return null;
+        }
+
+        ArrayList<GltfMesh.Attribute> attributes = new ArrayList<>();
+        int vertexCount = 0;
+        float[] boundsMin = null, boundsMax = null;
+        for (Map.Entry<String, Object> entry : attributeMap.entrySet()) {
+            VertexAttributeType type = SEMANTICS.get(entry.getKey());
+            if (type == null)
+                continue;
+            Map<String, Object> accessor = Json.element(accessors, ((Double) entry.getValue()).intValue());
+            long[] view = accessorView(accessor, entry.getKey());
+            if (view == null)
+                continue;
+            int components = components(Json.string(accessor, "type", ""));
+            attributes.add(new GltfMesh.Attribute(type, components, (int) view[2], Json.bool(accessor, "normalized", false), (int) view[1], view[0]));
+            if (type == VertexAttributeType.POSITION_IN) {
+                vertexCount = Json.integer(accessor, "count", 0);
+                // Required for positions by the spec, so no need to read the vertices for bounds
+                boundsMin = Json.floats(accessor, "min");
+                boundsMax = Json.floats(accessor, "max");
+            }
+        }
+
+        int indexType = 0, indexCount = 0;
+        long indexOffset = 0;
+        int indices = Json.integer(primitive, "indices", -1);
+        if (indices >= 0) {
+            Map<String, Object> accessor = Json.element(accessors, indices);
+            long[] view = accessorView(accessor, "indices");
+            if (view == null)
+                return null;
+            // glTF only allows unsigned bytes, shorts and ints here, which are also all glDrawElements takes
+            indexType = (int) view[2];
+            if (indexType != GL_UNSIGNED_BYTE && indexType != GL_UNSIGNED_SHORT && indexType != GL_UNSIGNED_INT) {
+                Log.writeln(Log.WARNING, "GLB primitive skipped; index component type " + indexType + " can't be drawn");
+                return null;
+            }
+            indexOffset = view[0];
+            indexCount = Json.integer(accessor, "count", 0);
+        }
+        primitiveCount++;
+        return new GltfMesh(shared, Json.integer(primitive, "mode", MODE_TRIANGLES),
+                attributes.toArray(new GltfMesh.Attribute[0]), vertexCount, indexType, indexOffset, indexCount).setBounds(boundsMin, boundsMax);
+    }
+
+    // Byte offset, byte stride and component type of an accessor, checked against the binary
+    // chunk; null (with a warning) for anything that can't be pointed at directly
+    private long[] accessorView(Map<String, Object> accessor, String what) {
+        if (accessor == null || accessor.containsKey("sparse") || !accessor.containsKey("bufferView")) {
+            Log.writeln(Log.WARNING, "GLB " + what + " skipped; sparse or view-less accessors are not supported");
+            return null;
+        }
+        Map<String, Object> view = Json.element(bufferViews, Json.integer(accessor, "bufferView", -1));
+        if (view == null || Json.integer(view, "buffer", 0) != 0) {
+            Log.writeln(Log.WARNING, "GLB " + what + " skipped; only the binary chunk buffer is supported");
+            return null;
+        }
+        int componentType = Json.integer(accessor, "componentType", 0);
+        int components = components(Json.string(accessor, "type", ""));
+        int componentBytes = switch (componentType) {
+            case 5120, 5121 -> 1;
+            case 5122, 5123 -> 2;
+            case 5125, 5126 -> 4;
+            default -> 0;
+        };
+        if (components == 0 || componentBytes == 0) {
+            Log.writeln(Log.WARNING, "GLB " + what + " skipped; unsupported accessor format");
+            return null;
+        }
+        long offset = Json.number(view, "byteOffset", 0) + Json.number(accessor, "byteOffset", 0);
+        long elementBytes = (long) components * componentBytes;
+        long stride = Json.number(view, "byteStride", 0);
+        long count = Json.number(accessor, "count", 0);
+        long end = count == 0 ? offset : offset + (count - 1) * (stride == 0 ? elementBytes : stride) + elementBytes;
+        if (offset % componentBytes != 0 || end > Json.number(view, "byteOffset", 0) + Json.number(view, "byteLength", 0) || end > bin.remaining()) {
+            Log.writeln(Log.WARNING, "GLB " + what + " skipped; accessor runs outside its buffer view");
+            return null;
+        }
+        return new long[]{offset, stride, componentType};
+    }
+
+    private static int components(String type) {
+        return switch (type) {
+            case "SCALAR" -> 1;
+            case "VEC2" -> 2;
+            case "VEC3" -> 3;
+            case "VEC4" -> 4;
+            default -> 0;
+        };
+    }
+}
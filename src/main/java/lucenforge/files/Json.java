@@ -0,0 +1,193 @@
+package lucenforge.files;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+// Minimal JSON reader for asset headers: objects become maps, arrays lists, numbers doubles
+class Json {
+
+    private final String text;
+    private int position = 0;
+
+    private Json(String text) {
+        this.text = text;
+    }
+
+    static Object parse(String text) {
+        Json json = new Json(text);
+        Object value = json.value();
+        json.skipWhitespace();
+        if (json.position != text.length())
+            throw json.error("trailing characters");
+        return value;
+    }
+
+    // Typed lookups that fall back when the key is missing
+    @SuppressWarnings("unchecked")
+    static Map<String, Object> object(Map<String, Object> parent, String key) {
+        Object value = parent.get(key);
+        return value instanceof Map ? (Map<String, Object>) value : null;
+    }
+    @SuppressWarnings("unchecked")
+    static List<Object> array(Map<String, Object> parent, String key) {
+        Object value = parent.get(key);
+        return value instanceof List ? (List<Object>) value : List.of();
+    }
+    static int integer(Map<String, Object> parent, String key, int fallback) {
+        Object value = parent.get(key);
+        return value instanceof Double number ? number.intValue() : fallback;
+    }
+    static long number(Map<String, Object> parent, String key, long fallback) {
+        Object value = parent.get(key);
+        return value instanceof Double number ? number.longValue() : fallback;
+    }
+    static boolean bool(Map<String, Object> parent, String key, boolean fallback) {
+        Object value = parent.get(key);
+        return value instanceof Boolean flag ? flag : fallback;
+    }
+    static String string(Map<String, Object> parent, String key, String fallback) {
+        Object value = parent.get(key);
+        return value instanceof String string ? string : fallback;
+    }
+    // Numbers of an array, or null when the key is missing
+    static float[] floats(Map<String, Object> parent, String key) {
+        List<Object> values = array(parent, key);
+        if (values.isEmpty())
+            return null;
+        float[] result = new float[values.size()];
+        for (int i = 0; i < result.length; i++)
+            result[i] = ((Double) values.get(i)).floatValue();
+        return result;
+    }
+    @SuppressWarnings("unchecked")
+    static Map<String, Object> element(List<Object> list, int index) {
+        return index >= 0 && index < list.size() && list.get(index) instanceof Map ? (Map<String, Object>) list.get(index) : null;
+    }
+
+    private Object value() {
+        skipWhitespace();
+        if (position >= text.length())
+            throw error("unexpected end");
+        char c = text.charAt(position);
+        switch (c) {
+            case '{': return object();
+            case '[': return array();
+            case '"': return string();
+            case 't': expect("true"); return Boolean.TRUE;
+            case 'f': expect("false"); return Boolean.FALSE;
+            case 'n': expect("null"); return null;
+            default: return number();
+        }
+    }
+
+    private Map<String, Object> object() {
+        Map<String, Object> map = new HashMap<>();
+        position++;
+        skipWhitespace();
+        if (peek() == '}') {
+            position++;
+            return map;
+        }
+        while (true) {
+            skipWhitespace();
+            if (peek() != '"')
+                throw error("expected a key");
+            String key = string();
+            skipWhitespace();
+            if (peek() != ':')
+                throw error("expected ':'");
+            position++;
+            map.put(key, value());
+            skipWhitespace();
+            char c = peek();
+            position++;
+            if (c == '}')
+                return map;
+            if (c != ',')
+                throw error("expected ',' or '}'");
+        }
+    }
+
+    private List<Object> array() {
+        List<Object> list = new ArrayList<>();
+        position++;
+        skipWhitespace();
+        if (peek() == ']') {
+            position++;
+            return list;
+        }
+        while (true) {
+            list.add(value());
+            skipWhitespace();
+            char c = peek();
+            position++;
+            if (c == ']')
+                return list;
+            if (c != ',')
+                throw error("expected ',' or ']'");
+        }
+    }
+
+    private String string() {
+        position++;
+        StringBuilder builder = new StringBuilder();
+        while (true) {
+            char c = peek();
+            position++;
+            if (c == '"')
+                return builder.toString();
+            if (c != '\\') {
+                builder.append(c);
+                continue;
+            }
+            char escaped = peek();
+            position++;
+            switch (escaped) {
+                case 'b': builder.append('\b'); break;
+                case 'f': builder.append('\f'); break;
+                case 'n': builder.append('\n'); break;
+                case 'r': builder.append('\r'); break;
+                case 't': builder.append('\t'); break;
+                case 'u':
+                    if (position + 4 > text.length())
+                        throw error("bad unicode escape");
+                    builder.append((char) Integer.parseInt(text.substring(position, position + 4), 16));
+                    position += 4;
+                    break;
+                default: builder.append(escaped);
+            }
+        }
+    }
+
+    private Double number() {
+        int start = position;
+        while (position < text.length() && "+-0123456789.eE".indexOf(text.charAt(position)) >= 0)
+            position++;
+        if (start == position)
+            throw error("unexpected character");
+        return Double.parseDouble(text.substring(start, position));
+    }
+
+    private void expect(String word) {
+        if (!text.startsWith(word, position))
+            throw error("expected " + word);
+        position += word.length();
+    }
+
+    private char peek() {
+        if (position >= text.length())
+            throw error("unexpected end");
+        return text.charAt(position);
+    }
+
+    private void skipWhitespace() {
+        while (position < text.length() && Character.isWhitespace(text.charAt(position)))
+            position++;
+    }
+
+    private IllegalArgumentException error(String message) {
+        return new IllegalArgumentException("JSON " + message + " at " + position);
+    }
+}
@@ -47,7 +47,8 @@ public class Log {
     public static void write(Object message) {
         write(EVENT, message);
     }
-    public static void write(String logType, Object message) {
+    // Synchronized since asset loads log from worker threads
+    public static synchronized void write(String logType, Object message) {
         checkInit();
         System.out.print(logType);
 
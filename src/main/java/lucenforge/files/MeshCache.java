@@ -0,0 +1,209 @@
+package lucenforge.files;
+
+import lucenforge.graphics.primitives.mesh.MeshData;
+import lucenforge.graphics.primitives.mesh.VertexLayout;
+import lucenforge.graphics.shaders.VertexAttributeType;
+import org.joml.Vector3f;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.AccessDeniedException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+
+import static org.lwjgl.system.MemoryUtil.*;
+
+// Binary copy of a converted mesh, written next to its source file so later loads can map it
+// instead of parsing. Little endian, blobs 16 byte aligned:
+//   magic, version, flags, weld epsilon, source size, source mtime, source hash,
+//   attribute count, (attribute ordinal, components) per attribute,
+//   vertex count, index count, bounds min xyz, bounds max xyz,
+//   vertex blob offset, index blob offset, [vertex blob], [index blob]
+// The cache is stale once the source size changes, or its mtime changes and its contents hash differently,
+// or when it was processed with other settings (optimize flag, weld epsilon) than the load asks for.
+class MeshCache {
+
+    private static final int MAGIC = 0x484D464C; // "LFMH"
+    private static final int VERSION = 2;
+    private static final int ALIGNMENT = 16;
+
+    static final int FLAG_OPTIMIZED = 1;
+
+    static final String EXTENSION = ".lfmesh";
+
+    // A mapped cache file; data points straight into the mapping
+    record Entry(MeshData data, Vector3f boundsMin, Vector3f boundsMax) {}
+
+    // The source's full name plus ours (tree.fbx.lfmesh), so sources differing only in extension don't share one
+    static Path cachePath(Path source) {
+        return source.resolveSibling(source.getFileName() + EXTENSION);
+    }
+
+    // Map the cache for source, or null if there is none, it's stale or unreadable, or it was
+    // processed with other flags or weld epsilon (negative for none)
+    static Entry load(Path source, int flags, float weldEpsilon) {
+        Path cache = cachePath(source);
+        if (!Files.exists(cache) || ByteOrder.nativeOrder() != ByteOrder.LITTLE_ENDIAN)
+            return null;
+        // A private mapping needs a writable channel, though nothing is ever written through it
+        try (FileChannel channel = FileChannel.open(cache, StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+            long size = channel.size();
+            if (size > Integer.MAX_VALUE)
+                return null;
+            // Copy on write, so edits to the loaded mesh (optimizing, recomputing normals) never reach the file
+            MappedByteBuffer mapped = channel.map(FileChannel.MapMode.PRIVATE, 0, size);
+            mapped.order(ByteOrder.LITTLE_ENDIAN);
+            if (mapped.getInt() != MAGIC || mapped.getInt() != VERSION)
+                return null;
+            if (mapped.getInt() != flags || mapped.getFloat() != Math.max(-1, weldEpsilon))
+                return null;
+            long sourceSize = mapped.getLong();
+            long sourceTime = mapped.getLong();
+            long sourceHash = mapped.getLong();
+            if (!isCurrent(source, sourceSize, sourceTime, sourceHash))
+                return null;
+
+            int attributeCount = mapped.getInt();
+            VertexAttributeType[] all = VertexAttributeType.all();
+            VertexAttributeType[] attributes = new VertexAttributeType[attributeCount];
+            for (int i = 0; i < attributeCount; i++) {
+                int ordinal = mapped.getInt();
+                int components = mapped.getInt();
+                if (ordinal < 0 || ordinal >= all.length || all[ordinal].components != components)
+                    return null;
+                attributes[i] = all[ordinal];
+            }
+            if (attributeCount == 0 || attributes[0] != VertexAttributeType.POSITION_IN)
+                return null;
+            VertexAttributeType[] rest = new VertexAttributeType[attributeCount - 1];
+            System.arraycopy(attributes, 1, rest, 0, rest.length);
+            VertexLayout layout = VertexLayout.of(rest);
+
+            int vertexCount = mapped.getInt();
+            int indexCount = mapped.getInt();
+            Vector3f boundsMin = new Vector3f(mapped.getFloat(), mapped.getFloat(), mapped.getFloat());
+            Vector3f boundsMax = new Vector3f(mapped.getFloat(), mapped.getFloat(), mapped.getFloat());
+            long vertexOffset = mapped.getLong();
+            long indexOffset = mapped.getLong();
+            long vertexBytes = (long) vertexCount * layout.byteStride();
+            if (vertexOffset + vertexBytes > size || indexOffset + (long) indexCount * Integer.BYTES > size || indexCount % 3 != 0)
+                return null;
+
+            long address = memAddress(mapped, 0);
+            MeshData data = MeshData.wrap(layout,
+                    memFloatBuffer(address + vertexOffset, Math.max(1, vertexCount * layout.floatStride())), vertexCount,
+                    memIntBuffer(address + indexOffset, Math.max(1, indexCount)), indexCount / 3,
+                    mapped);
+            return new Entry(data, boundsMin, boundsMax);
+        } catch (AccessDeniedException e) {
+            // Read only install; parse instead
+            return null;
+        } catch (IOException e) {
+            Log.writeln(Log.WARNING, "Could not read mesh cache " + cache + ": " + e.getMessage());
+            return null;
+        }
+    }
+
+    // Write the cache for source; failures only cost the next load its speedup
+    static void write(Path source, MeshData data, int flags, float weldEpsilon) {
+        Path cache = cachePath(source);
+        Path temp = cache.resolveSibling(cache.getFileName() + ".tmp");
+        if (ByteOrder.nativeOrder() != ByteOrder.LITTLE_ENDIAN)
+            return;
+        try {
+            long sourceSize = Files.size(source);
+            long sourceTime = Files.getLastModifiedTime(source).toMillis();
+            long sourceHash = hash(source);
+
+            VertexLayout layout = data.layout();
+            int attributeCount = layout.attributes().size();
+            int headerBytes = 4 * 4 + 8 * 3 + 4 + attributeCount * 8 + 4 * 2 + 4 * 6 + 8 * 2;
+            long vertexOffset = align(headerBytes);
+            long indexOffset = align(vertexOffset + data.vertexBytes());
+
+            ByteBuffer header = ByteBuffer.allocate((int) vertexOffset).order(ByteOrder.LITTLE_ENDIAN);
+            header.putInt(MAGIC).putInt(VERSION).putInt(flags).putFloat(Math.max(-1, weldEpsilon));
+            header.putLong(sourceSize).putLong(sourceTime).putLong(sourceHash);
+            header.putInt(attributeCount);
+            for (VertexAttributeType type : layout.attributes())
+                header.putInt(type.ordinal()).putInt(type.components);
+            header.putInt(data.vertexCount()).putInt(data.indexCount());
+            Vector3f min = new Vector3f(Float.POSITIVE_INFINITY), max = new Vector3f(Float.NEGATIVE_INFINITY);
+            Vector3f position = new Vector3f();
+            for (int v = 0; v < data.vertexCount(); v++) {
+                data.getPosition(v, position);
+                min.min(position);
+                max.max(position);
+            }
+            if (data.vertexCount() == 0) {
+                min.zero();
+                max.zero();
+            }
+            header.putFloat(min.x).putFloat(min.y).putFloat(min.z);
+            header.putFloat(max.x).putFloat(max.y).putFloat(max.z);
+            header.putLong(vertexOffset).putLong(indexOffset);
+            header.position(0);
+
+            try (FileChannel channel = FileChannel.open(temp, StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE)) {
+                writeFully(channel, header, 0);
+                writeFully(channel, memByteBuffer(memAddress(data.vertexBuffer()), (int) data.vertexBytes()), vertexOffset);
+                writeFully(channel, memByteBuffer(memAddress(data.indexBuffer()), (int) data.indexBytes()), indexOffset);
+            }
+            Files.move(temp, cache, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } catch (IOException | UnsupportedOperationException e) {
+            Log.writeln(Log.WARNING, "Could not write mesh cache " + cache + ": " + e.getMessage());
+            try {
+                Files.deleteIfExists(temp);
+            } catch (IOException ignored) {}
+        }
+    }
+
+    private static boolean isCurrent(Path source, long size, long time, long hash) throws IOException {
+        if (Files.size(source) != size)
+            return false;
+        if (Files.getLastModifiedTime(source).toMillis() == time)
+            return true;
+        // Touched or copied; only the contents matter
+        return hash(source) == hash;
+    }
+
+    // 64 bit hash of the file contents, 8 bytes at a time
+    static long hash(Path path) throws IOException {
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+            long size = channel.size();
+            long hash = 0x9E3779B97F4A7C15L ^ size;
+            long position = 0;
+            while (position < size) {
+                long length = Math.min(size - position, 1L << 30);
+                MappedByteBuffer mapped = channel.map(FileChannel.MapMode.READ_ONLY, position, length);
+                mapped.order(ByteOrder.LITTLE_ENDIAN);
+                int words = (int) (length / 8);
+                for (int i = 0; i < words; i++)
+                    hash = mix(hash ^ mapped.getLong(i * 8));
+                for (int i = words * 8; i < length; i++)
+                    hash = mix(hash ^ (mapped.get(i) & 0xFF));
+                position += length;
+            }
+            return hash;
+        }
+    }
+
+    private static long mix(long value) {
+        value *= 0xBF58476D1CE4E5B9L;
+        return Long.rotateLeft(value, 31) * 0x94D049BB133111EBL;
+    }
+
+    private static long align(long offset) {
+        return (offset + ALIGNMENT - 1) & -ALIGNMENT;
+    }
+
+    private static void writeFully(FileChannel channel, ByteBuffer buffer, long position) throws IOException {
+        while (buffer.hasRemaining())
+            position += channel.write(buffer, position);
+    }
+}
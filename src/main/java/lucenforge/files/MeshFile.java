@@ -1,275 +1,300 @@
 package lucenforge.files;
 
+import lucenforge.graphics.primitives.mesh.LodMesh;
 import lucenforge.graphics.primitives.mesh.Mesh;
-import lucenforge.graphics.primitives.mesh.Vertex;
+import lucenforge.graphics.primitives.mesh.MeshData;
+import lucenforge.graphics.primitives.mesh.MeshOptimizer;
 import lucenforge.graphics.shaders.Shader;
-import org.joml.Vector2f;
-import org.joml.Vector3f;
-import org.joml.Vector3i;
 
-import java.lang.reflect.Array;
-import java.util.ArrayList;
-import java.util.HashMap;
-import java.util.List;
-import java.util.Map;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.Arrays;
+import java.util.concurrent.ForkJoinPool;
 
 public class MeshFile {
 
-    // Vertices
-    private ArrayList<Vector3f> fileVertices        = null;
-    private ArrayList<Vector2f> fileVertexTextures  = null;
-    private ArrayList<Vector3f> fileVertexNormals   = null;
-    // Indices
-    private ArrayList<Vector3i> fileVertexIndices   = null;
-    private ArrayList<Vector3i> fileTextureIndices  = null;
-    private ArrayList<Vector3i> fileNormalIndices   = null;
+    // Whether to reorder the loaded mesh for the vertex cache, overdraw and vertex fetch
+    private boolean optimize = false;
 
-    private int skippedOBJFaces = 0;
+    // Number of detail levels to generate, each with about half the faces of the previous one
+    private int lodLevels = 1;
+
+    // Files at least this large are parsed in chunks on the pool
+    private static final long PARALLEL_MIN_BYTES = 4L << 20;
+    private boolean parallel = Properties.getBool("files", "parallel_obj_parsing", true);
+    private ForkJoinPool pool = ForkJoinPool.commonPool();
+
+    // Vertices within this distance in every component get merged after loading, negative to disable
+    private float weldEpsilon = -1;
+
+    // Whether to keep a binary copy of converted meshes next to their source files
+    private boolean cache = Properties.getBool("files", "mesh_cache", true);
+
+    public MeshFile setOptimize(boolean optimize){
+        this.optimize = optimize;
+        return this;
+    }
+    public MeshFile setLodLevels(int lodLevels){
+        this.lodLevels = lodLevels;
+        return this;
+    }
+    public MeshFile setWeldEpsilon(float weldEpsilon){
+        this.weldEpsilon = weldEpsilon;
+        return this;
+    }
+    public MeshFile setParallel(boolean parallel){
+        this.parallel = parallel;
+        return this;
+    }
+    public MeshFile setPool(ForkJoinPool pool){
+        this.pool = pool;
+        return this;
+    }
+    public MeshFile setCache(boolean cache){
+        this.cache = cache;
+        return this;
+    }
 
     // Load a mesh file and return a Mesh object
     public Mesh load(String name){
-        Log.write("Loading \"" + name + ".obj\"");
+        // Loads run on several workers, so every line goes out whole
+        String file = "\"" + name + ".obj\"";
 
-        // Load the mesh file
-        String meshFileContents = loadMeshFile(name);
-        // Check if the file was loaded successfully
-        if(meshFileContents == null) {
-            Log.writeln(Log.ERROR, " - Mesh file not found");
+        // Map and parse the mesh file
+        Path objFilePath = meshFilePath(name);
+        if(objFilePath == null) {
+            Log.writeln(Log.ERROR, "Mesh file not found: " + file);
             return null;
         }
-        // Parse the mesh file
-        parseOBJ(meshFileContents);
-        Mesh mesh = convertToMesh();
-        Log.writeln(" - loaded successfully (f: "+mesh.faces().size()+", v: "+mesh.vertices().size()+")");
+        Mesh mesh = null;
+        // Only a cache processed with these exact settings will do
+        int flags = optimize ? MeshCache.FLAG_OPTIMIZED : 0;
+        MeshCache.Entry cached = cache ? MeshCache.load(objFilePath, flags, weldEpsilon) : null;
+        if(cached != null) {
+            mesh = new Mesh();
+            mesh.setTopology(cached.data());
+            Log.writeln("Loaded " + file + " from cache (f: "+mesh.data().faceCount()+", v: "+mesh.data().vertexCount()+")");
+        } else {
+            ObjParser obj;
+            if(parallel && pool.getParallelism() > 1 && FileTools.fileSize(objFilePath) >= PARALLEL_MIN_BYTES)
+                obj = ObjParser.parseParallel(objFilePath, pool, pool.getParallelism() * 4);
+            else
+                obj = ObjParser.parse(objFilePath);
+            if(obj == null)
+                return null;
+            if(obj.skippedFaces > 0)
+                Log.writeln(Log.WARNING, obj.skippedFaces + " faces skipped due to out of bounds indices");
+            if(obj.invalidLines > 0)
+                Log.writeln(Log.WARNING, obj.invalidLines + " malformed lines skipped in \"" + name + ".obj\"");
+            StringBuilder details = new StringBuilder();
+            mesh = convertToMesh(obj, details);
+            Log.writeln("Loaded " + file + details + " (f: "+mesh.data().faceCount()+", v: "+mesh.data().vertexCount()+")");
+            if(optimize) {
+                MeshOptimizer.Report report = MeshOptimizer.optimize(mesh.data());
+                Log.writeln(Log.TELEMETRY, "Optimized \"" + name + ".obj\": " + report);
+            }
+            // Save the converted mesh for the next load
+            if(cache)
+                MeshCache.write(objFilePath, mesh.data(), flags, weldEpsilon);
+        }
+        if(lodLevels > 1) {
+            LodMesh lodMesh = new LodMesh(mesh.data(), lodLevels, 0.5f);
+            StringBuilder faceCounts = new StringBuilder();
+            for(int level = 0; level < lodMesh.levelCount(); level++)
+                faceCounts.append(level == 0 ? "" : ", ").append(lodMesh.level(level).data().faceCount());
+            Log.writeln(Log.TELEMETRY, "Generated " + lodMesh.levelCount() + " detail levels for \"" + name + ".obj\" (f: " + faceCounts + ")");
+            return lodMesh;
+        }
 
         return mesh;
     }
 
-    // Convert the parsed data into a Mesh object
-    private Mesh convertToMesh() {
-        Mesh mesh = new Mesh();
-        ArrayList<Vertex> vertices = new ArrayList<>();
-        ArrayList<Integer> indices = new ArrayList<>();
-        Map<Vertex, Integer> vertexMap = new HashMap<>();
+    // Mesh from the asset cache, loaded only if it isn't cached with these settings yet. Every holder
+    // gets an instance with its own transform, shader and texture over the cached data and GPU buffers;
+    // releasing it frees the instance, and the texture a holder sets is theirs to clean up.
+    public AssetRef<Mesh> acquire(String name){
+        String key = "mesh:" + name + "?lod=" + lodLevels + "&optimize=" + optimize + "&weld=" + weldEpsilon;
+        AssetRef<Mesh> shared = AssetCache.acquire(key, () -> load(name), Mesh::cpuBytes, Mesh::gpuBytes, mesh -> {
+            mesh.setTexture(null);
+            mesh.cleanup();
+        });
+        if (shared == null)
+            return null;
+        Mesh instance = shared.get().instance();
+        if (instance == null) {
+            shared.release();
+            return null;
+        }
+        return new AssetRef<>(shared.key(), instance, () -> {
+            instance.setTexture(null);
+            instance.cleanup();
+        });
+    }
 
-        // Go through each face and add the vertices to the mesh
-        for (int i = 0; i < fileVertexIndices.size(); i++) {
-            Vector3i vertexIndex = fileVertexIndices.get(i);
-            Vector3f[] positions = new Vector3f[3];
-            positions[0] = fileVertices.get(vertexIndex.x);
-            positions[1] = fileVertices.get(vertexIndex.y);
-            positions[2] = fileVertices.get(vertexIndex.z);
+    // Parse on a loader thread and upload during a later frame. The asset holds a placeholder cube
+    // whose data is swapped for the loaded mesh in place, so it can be initialized and added to a
+    // render layer right away. With detail levels the future completes with the separate LodMesh.
+    public Asset<Mesh> loadAsync(String name){
+        Mesh placeholder = new Mesh();
+        placeholder.setTopology(placeholderCube());
+        return AssetLoader.submit(new Asset<>(name, placeholder), () -> load(name), loaded -> {
+            if (loaded instanceof LodMesh)
+                return loaded;
+            placeholder.replaceTopology(loaded.data());
+            return placeholder;
+        });
+    }
 
-            Vector3i textureIndex = fileTextureIndices != null ? fileTextureIndices.get(i) : null;
-            Vector2f[] textures = new Vector2f[3];
-            textures[0] = (textureIndex != null) ? fileVertexTextures.get(textureIndex.x) : null;
-            textures[1] = (textureIndex != null) ? fileVertexTextures.get(textureIndex.y) : null;
-            textures[2] = (textureIndex != null) ? fileVertexTextures.get(textureIndex.z) : null;
+    // Unit cube with texcoords and flat normals
+    private static MeshData placeholderCube() {
+        MeshData data = new MeshData(true, true, 24, 12);
+        float[][] axes = {{1, 0, 0}, {-1, 0, 0}, {0, 1, 0}, {0, -1, 0}, {0, 0, 1}, {0, 0, -1}};
+        for (float[] n : axes) {
+            // Two edges spanning the face, perpendicular to its normal
+            float[] u = n[0] != 0 ? new float[]{0, n[0], 0} : new float[]{n[1] + n[2], 0, 0};
+            float[] v = {n[1] * u[2] - n[2] * u[1], n[2] * u[0] - n[0] * u[2], n[0] * u[1] - n[1] * u[0]};
+            int first = data.vertexCount();
+            for (int corner = 0; corner < 4; corner++) {
+                float su = (corner == 1 || corner == 2) ? 0.5f : -0.5f;
+                float sv = corner >= 2 ? 0.5f : -0.5f;
+                int index = data.addVertex(n[0] * 0.5f + u[0] * su + v[0] * sv, n[1] * 0.5f + u[1] * su + v[1] * sv, n[2] * 0.5f + u[2] * su + v[2] * sv);
+                data.setTexCoord(index, su + 0.5f, sv + 0.5f);
+                data.setNormal(index, n[0], n[1], n[2]);
+            }
+            data.addFace(first, first + 1, first + 2);
+            data.addFace(first, first + 2, first + 3);
+        }
+        return data;
+    }
 
-            Vector3i normalIndex = fileNormalIndices != null ? fileNormalIndices.get(i) : null;
-            Vector3f[] normals = new Vector3f[3];
-            normals[0] = (normalIndex != null) ? fileVertexNormals.get(normalIndex.x) : null;
-            normals[1] = (normalIndex != null) ? fileVertexNormals.get(normalIndex.y) : null;
-            normals[2] = (normalIndex != null) ? fileVertexNormals.get(normalIndex.z) : null;
+    // Convert the parsed data into a Mesh object; what had to be fixed up is appended to details
+    private Mesh convertToMesh(ObjParser obj, StringBuilder details) {
+        Mesh mesh = new Mesh();
+        boolean hasTexCoords = obj.allCornersHaveTexCoords();
+        boolean hasFileNormals = obj.allCornersHaveNormals();
+        // Normals are always stored; they get computed below when the file has none
+        MeshData data = new MeshData(hasTexCoords, true, obj.positionCount, obj.triangleCount);
+        VertexIndexMap vertexMap = new VertexIndexMap(obj.positionCount);
 
+        // Corners that share their position, texcoord and normal indices share a vertex
+        for (int i = 0; i < obj.triangleCount; i++) {
+            int a = 0, b = 0;
             for(int vIndex = 0; vIndex < 3; vIndex++){
-                Vertex v = new Vertex(positions[vIndex], textures[vIndex], normals[vIndex]);
-                Integer existingVertex = vertexMap.get(v);
-                if (existingVertex != null) {
-                    indices.add(existingVertex);
-                } else {
-                    int newIndex = vertices.size();
-                    vertices.add(v);
-                    vertexMap.put(v, newIndex);
-                    indices.add(newIndex);
+                int c = i * 3 + vIndex;
+                int p = obj.positionIndices[c];
+                int t = hasTexCoords ? obj.texCoordIndices[c] : -1;
+                int n = hasFileNormals ? obj.normalIndices[c] : -1;
+                int index = vertexMap.get(p, t, n);
+                if (index < 0) {
+                    index = data.addVertex(obj.positions[p * 3], obj.positions[p * 3 + 1], obj.positions[p * 3 + 2]);
+                    if (t >= 0)
+                        data.setTexCoord(index, obj.texCoords[t * 2], obj.texCoords[t * 2 + 1]);
+                    if (n >= 0)
+                        data.setNormal(index, obj.normals[n * 3], obj.normals[n * 3 + 1], obj.normals[n * 3 + 2]);
+                    vertexMap.put(p, t, n, index);
                 }
+                if (vIndex == 0)
+                    a = index;
+                else if (vIndex == 1)
+                    b = index;
+                else
+                    data.addFace(a, b, index);
             }
         }
 
-        if (indices.size() % 3 != 0) {
-            Log.writeln(Log.WARNING, "Index list is not divisible by 3 (" + indices.size() + "). Dropping incomplete triangle.");
-        }
-
-        ArrayList<Vector3i> faces = new ArrayList<>(indices.size() / 3);
-        for(int i = 0; i < indices.size(); i += 3) {
-            faces.add(new Vector3i(indices.get(i), indices.get(i + 1), indices.get(i + 2)));
+        // Different indices can still point at identical values
+        if(weldEpsilon >= 0) {
+            int welded = MeshOptimizer.weldVertices(data, weldEpsilon);
+            if(welded > 0)
+                details.append(" (welded ").append(welded).append(" vertices)");
         }
 
         // If the normals aren't there, create them
-        if(vertices.get(0).normal == null || fileVertexNormals == null) {
-            Mesh.computeNormals(false, vertices, faces);
-            Log.write(" (computed normals)");
+        if(!hasFileNormals) {
+            Mesh.computeNormals(false, data);
+            details.append(" (computed normals)");
         }
 
-        mesh.setTopology(vertices, faces);
+        mesh.setTopology(data);
         return mesh;
     }
 
-    // Parse mesh data from an obj string
-    private void parseOBJ(String fileContents) {
-        String[] lines = fileContents.split("\n");
-        for (String line : lines) {
-            // Lines starting with V (vertex)
-            if (line.startsWith("v ")) {
-                parseVertexOBJ(line);
-            // Lines starting with vt (texture coordinates)
-            } else if (line.startsWith("vt ")){
-                parseVertexTextureOBJ(line);
-            // Lines starting with vn (vertex normals)
-            } else if (line.startsWith("vn ")) {
-                parseVertexNormalOBJ(line);
-            // Lines starting with f (face indices)
-            } else if (line.startsWith("f ")) {
-                parseFaceOBJ(line);
-            }
+    // Open addressing map from a corner's (position, texcoord, normal) index triple to its vertex.
+    // Position and texcoord are packed into the long key, the normal is compared alongside it
+    private static final class VertexIndexMap {
+        private static final long EMPTY = Long.MIN_VALUE; // Position indices are never negative
+        private long[] keys;
+        private int[] normals;
+        private int[] values;
+        private int size = 0;
+
+        VertexIndexMap(int expected) {
+            allocate(Integer.highestOneBit(Math.max(16, expected * 2 - 1)) << 1);
         }
-        if(skippedOBJFaces > 0)
-            Log.writeln(Log.WARNING, skippedOBJFaces + " faces skipped due to out of bounds indices");
-    }
 
-    private void parseVertexOBJ(String line){
-        String[] parts = line.split(" ");
-        if (parts.length == 4) {
-            float x = Float.parseFloat(parts[1]);
-            float y = Float.parseFloat(parts[2]);
-            float z = Float.parseFloat(parts[3]);
-            if(fileVertices == null)
-                fileVertices = new ArrayList<>();
-            fileVertices.add(new Vector3f(x, y, z));
-        }else {
-            Log.writeln(Log.WARNING, "Invalid vertex line: " + line + "; Expected format: v x y z");
+        int get(int position, int texCoord, int normal) {
+            long key = key(position, texCoord);
+            int mask = keys.length - 1;
+            for (int slot = slot(key, normal) & mask; ; slot = (slot + 1) & mask) {
+                if (keys[slot] == EMPTY)
+                    return -1;
+                if (keys[slot] == key && normals[slot] == normal)
+                    return values[slot];
+            }
         }
-    }
 
-    private void parseVertexTextureOBJ(String line){
-        String[] parts = line.split(" ");
-        if (parts.length == 3) {
-            float u = Float.parseFloat(parts[1]);
-            float v = Float.parseFloat(parts[2]);
-            if(fileVertexTextures == null)
-                fileVertexTextures = new ArrayList<>();
-            fileVertexTextures.add(new Vector2f(u, v));
-        }else{
-            Log.writeln(Log.WARNING, "Invalid texture line: " + line + "; Expected format: vt u v");
+        // Only called for missing triples
+        void put(int position, int texCoord, int normal, int value) {
+            if (++size * 2 > keys.length)
+                grow();
+            insert(key(position, texCoord), normal, value);
         }
-    }
 
-    private void parseVertexNormalOBJ(String line){
-        String[] parts = line.split(" ");
-        if (parts.length == 4) {
-            float x = Float.parseFloat(parts[1]);
-            float y = Float.parseFloat(parts[2]);
-            float z = Float.parseFloat(parts[3]);
-            if(fileVertexNormals == null) {
-                fileVertexNormals = new ArrayList<>();
-            }
-            fileVertexNormals.add(new Vector3f(x, y, z));
-        }else{
-            Log.writeln(Log.WARNING, "Invalid normal line: " + line + "; Expected format: vn x y z");
+        private void insert(long key, int normal, int value) {
+            int mask = keys.length - 1;
+            int slot = slot(key, normal) & mask;
+            while (keys[slot] != EMPTY)
+                slot = (slot + 1) & mask;
+            keys[slot] = key;
+            normals[slot] = normal;
+            values[slot] = value;
         }
-    }
 
-    private void parseFaceOBJ(String line){
-        // Split by space to get each index
-        String[] parts = line.replace("\r","").split(" ");
-        // check for invalid line
-        if (parts.length < 4)
-            Log.writeln(Log.WARNING, "Invalid face line: " + line + "; Expected format: f v1 v2 v3 ...");
-        // get each part for triangulation
-        Integer[] vIndicesRaw = new Integer[parts.length - 1];
-        Integer[] tIndicesRaw = null;
-        Integer[] nIndicesRaw = null;
-        for (int part = 1; part < parts.length; part++) {
-            // Split by / to get vertex, texture, and normal indices
-            String[] types = parts[part].split("/");
-            vIndicesRaw[part - 1] = parseVertexIndices(types[0]);
-            if(types.length > 1 && !types[1].isEmpty()) {
-                if(tIndicesRaw == null)
-                    tIndicesRaw = new Integer[parts.length - 1];
-                tIndicesRaw[part - 1] = parseTextureIndex(types[1]);
-            }
-            if(types.length > 2 && !types[2].isEmpty()) {
-                if(nIndicesRaw == null)
-                    nIndicesRaw = new Integer[parts.length - 1];
-                nIndicesRaw[part - 1] = parseNormalIndices(types[2]);
+        private void grow() {
+            long[] oldKeys = keys;
+            int[] oldNormals = normals, oldValues = values;
+            allocate(oldKeys.length * 2);
+            for (int i = 0; i < oldKeys.length; i++) {
+                if (oldKeys[i] != EMPTY)
+                    insert(oldKeys[i], oldNormals[i], oldValues[i]);
             }
         }
-        // Ensure initialization of proper indices
-        if(fileVertexIndices == null)
-            fileVertexIndices = new ArrayList<>();
-        if(tIndicesRaw != null && fileTextureIndices == null)
-            fileTextureIndices = new ArrayList<>();
-        if(nIndicesRaw != null && fileNormalIndices == null)
-            fileNormalIndices = new ArrayList<>();
-        // Triangulate and add the face to the indices list
-        triangulateMultiFaces(vIndicesRaw, fileVertexIndices);
-        triangulateMultiFaces(tIndicesRaw, fileTextureIndices);
-        triangulateMultiFaces(nIndicesRaw, fileNormalIndices);
-    }
 
-    private Integer parseVertexIndices(String indices){
-        // Check for empty indices
-        if(!indices.isEmpty()){
-            // Read the vertex index
-            int vIndex = Integer.parseInt(indices) - 1;
-            // Skip face if index not present
-            if(vIndex >= fileVertices.size()){
-                skippedOBJFaces++;
-                return null;
-            }
-            return vIndex;
-        }else
-            return null;
-    }
-    private Integer parseTextureIndex(String indices){
-        // Check for empty texture indices
-        if(!indices.isEmpty()){
-            // Read the texture index
-            int tIndex = Integer.parseInt(indices) - 1;
-            // Skip face if index not present
-            if(tIndex >= fileVertexTextures.size()){
-                skippedOBJFaces++;
-                return null;
-            }
-            return tIndex;
-        }else
-            return null;
-    }
-    private Integer parseNormalIndices(String indices){
-        // Check for empty normal indices
-        if(!indices.isEmpty()){
-            // Read normal index
-            int nIndex = Integer.parseInt(indices) - 1;
-            // Skip face if index not present
-            if(nIndex >= fileVertexNormals.size()){
-                skippedOBJFaces++;
-                return null;
-            }
-            return nIndex;
-        }else
-            return null;
-    }
+        private void allocate(int capacity) {
+            keys = new long[capacity];
+            Arrays.fill(keys, EMPTY);
+            normals = new int[capacity];
+            values = new int[capacity];
+        }
 
-    // Triangulate a face with multiple vertices
-    private void triangulateMultiFaces(Integer[] faceIndices, ArrayList<Vector3i> indicesList){
-        if(faceIndices == null)
-            return;
-        for (int i = 0; i < faceIndices.length - 2; i++) {
-            if(faceIndices[0] == null || faceIndices[i + 1] == null || faceIndices[i + 2] == null)
-                continue;
-            indicesList.add(new Vector3i(faceIndices[0], faceIndices[i + 1], faceIndices[i + 2]));
+        private static long key(int position, int texCoord) {
+            return ((long) position << 32) | (texCoord & 0xFFFFFFFFL);
+        }
+        private static int slot(long key, int normal) {
+            long hash = (key ^ ((long) normal * 0xC2B2AE3D27D4EB4FL)) * 0x9E3779B97F4A7C15L;
+            return (int) (hash >>> 32);
         }
     }
 
-    // Loads a mesh file and returns the string for the file
-    private String loadMeshFile(String name) {
+    // Path of the named mesh file, or null if it doesn't exist
+    private Path meshFilePath(String name) {
         String modelsDir = "src/main/resources/models";
         String objFilePath = modelsDir + "/" + name + ".obj";
         // Ensure the models directory exists
         FileTools.createDirectory(modelsDir);
         //check OBJ file existance
         if(FileTools.doesFileExist(objFilePath)){
-            return FileTools.readFile(objFilePath);
+            return Paths.get(objFilePath);
         }else{
             Log.writeln(Log.ERROR, "Mesh file not found: \"" + objFilePath + "\"");
             return null;
@@ -0,0 +1,508 @@
+package lucenforge.files;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.concurrent.ForkJoinPool;
+import java.util.stream.IntStream;
+
+// OBJ reader that scans the bytes of a memory mapped file directly. Numbers are parsed in place
+// and everything lands in growable primitive arrays, so the heap only holds the parsed output.
+// Polygons are fan triangulated; corners without a texture or normal index get -1.
+class ObjParser {
+
+    // Parsed attributes, tightly packed
+    float[] positions = new float[3 * 1024];
+    float[] texCoords = new float[2 * 1024];
+    float[] normals   = new float[3 * 1024];
+    int positionCount = 0;
+    int texCoordCount = 0;
+    int normalCount = 0;
+
+    // Three corners per triangle, zero based
+    int[] positionIndices = new int[3 * 1024];
+    int[] texCoordIndices = new int[3 * 1024];
+    int[] normalIndices   = new int[3 * 1024];
+    int triangleCount = 0;
+
+    int skippedFaces = 0;
+    int invalidLines = 0;
+
+    // Chunks of a parallel parse can't resolve indices until they know how many elements came
+    // before them, so they keep the raw file indices plus the chunk's own counts at each face
+    private boolean deferred = false;
+    private int[] countsAtTriangle;
+
+    // Current read position while parsing
+    private ByteBuffer buffer;
+    private int cursor;
+    private int limit;
+
+    // Scratch for one polygon's corners
+    private int[] polygonPositions = new int[16];
+    private int[] polygonTexCoords = new int[16];
+    private int[] polygonNormals   = new int[16];
+    // A corner's texcoord or normal index that was given but points nowhere
+    private static final int BAD_INDEX = -2;
+
+    private static final double[] POW10 = new double[23];
+    static {
+        POW10[0] = 1;
+        for (int i = 1; i < POW10.length; i++)
+            POW10[i] = POW10[i - 1] * 10;
+    }
+
+    // Parse a whole file; returns null if it can't be read
+    static ObjParser parse(Path path) {
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+            long size = channel.size();
+            if (size > Integer.MAX_VALUE) {
+                Log.writeln(Log.ERROR, "OBJ file too large to map: " + path + " (" + size + " bytes)");
+                return null;
+            }
+            MappedByteBuffer mapped = channel.map(FileChannel.MapMode.READ_ONLY, 0, size);
+            ObjParser parser = new ObjParser();
+            parser.parse(mapped, 0, (int) size);
+            return parser;
+        } catch (IOException e) {
+            Log.writeln(Log.ERROR, "Error reading OBJ file " + path + ": " + e.getMessage());
+            return null;
+        }
+    }
+
+    // Parse a file split into newline aligned chunks on the pool. The chunks are stitched
+    // together with prefix sums over their element counts, so the result is identical to parse(path).
+    static ObjParser parseParallel(Path path, ForkJoinPool pool, int chunkCount) {
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+            long size = channel.size();
+            if (size > Integer.MAX_VALUE) {
+                Log.writeln(Log.ERROR, "OBJ file too large to map: " + path + " (" + size + " bytes)");
+                return null;
+            }
+            MappedByteBuffer mapped = channel.map(FileChannel.MapMode.READ_ONLY, 0, size);
+            int[] bounds = chunkBounds(mapped, (int) size, Math.max(1, chunkCount));
+            ObjParser[] chunks = new ObjParser[bounds.length - 1];
+            pool.submit(() -> IntStream.range(0, chunks.length).parallel().forEach(c -> {
+                ObjParser chunk = new ObjParser();
+                chunk.deferred = true;
+                // Each worker gets its own view so the cursors don't interfere
+                chunk.parse(mapped.duplicate(), bounds[c], bounds[c + 1]);
+                chunks[c] = chunk;
+            })).join();
+            return stitch(chunks, pool);
+        } catch (IOException e) {
+            Log.writeln(Log.ERROR, "Error reading OBJ file " + path + ": " + e.getMessage());
+            return null;
+        }
+    }
+
+    // Chunk starts, each just after a newline, plus the end of the file
+    private static int[] chunkBounds(ByteBuffer buffer, int size, int chunkCount) {
+        int[] bounds = new int[chunkCount + 1];
+        int count = 1;
+        for (int c = 1; c < chunkCount; c++) {
+            int start = Math.max(Math.max(1, bounds[count - 1]), (int) ((long) size * c / chunkCount));
+            while (start < size && buffer.get(start - 1) != '\n')
+                start++;
+            if (start >= size)
+                break;
+            if (start > bounds[count - 1])
+                bounds[count++] = start;
+        }
+        bounds[count++] = size;
+        return Arrays.copyOf(bounds, count);
+    }
+
+    private static ObjParser stitch(ObjParser[] chunks, ForkJoinPool pool) {
+        int n = chunks.length;
+        // Elements before each chunk
+        int[] positionBase = new int[n + 1], texCoordBase = new int[n + 1], normalBase = new int[n + 1];
+        for (int c = 0; c < n; c++) {
+            positionBase[c + 1] = positionBase[c] + chunks[c].positionCount;
+            texCoordBase[c + 1] = texCoordBase[c] + chunks[c].texCoordCount;
+            normalBase[c + 1] = normalBase[c] + chunks[c].normalCount;
+        }
+        // Resolve the chunk's indices against the global counts and drop invalid triangles
+        pool.submit(() -> IntStream.range(0, n).parallel().forEach(c ->
+                chunks[c].resolveDeferred(positionBase[c], texCoordBase[c], normalBase[c]))).join();
+        int[] triangleBase = new int[n + 1];
+        for (int c = 0; c < n; c++)
+            triangleBase[c + 1] = triangleBase[c] + chunks[c].triangleCount;
+
+        ObjParser result = new ObjParser();
+        result.positions = new float[Math.max(3, positionBase[n] * 3)];
+        result.texCoords = new float[Math.max(2, texCoordBase[n] * 2)];
+        result.normals = new float[Math.max(3, normalBase[n] * 3)];
+        result.positionIndices = new int[Math.max(3, triangleBase[n] * 3)];
+        result.texCoordIndices = new int[result.positionIndices.length];
+        result.normalIndices = new int[result.positionIndices.length];
+        result.positionCount = positionBase[n];
+        result.texCoordCount = texCoordBase[n];
+        result.normalCount = normalBase[n];
+        result.triangleCount = triangleBase[n];
+        pool.submit(() -> IntStream.range(0, n).parallel().forEach(c -> {
+            ObjParser chunk = chunks[c];
+            System.arraycopy(chunk.positions, 0, result.positions, positionBase[c] * 3, chunk.positionCount * 3);
+            System.arraycopy(chunk.texCoords, 0, result.texCoords, texCoordBase[c] * 2, chunk.texCoordCount * 2);
+            System.arraycopy(chunk.normals, 0, result.normals, normalBase[c] * 3, chunk.normalCount * 3);
+            System.arraycopy(chunk.positionIndices, 0, result.positionIndices, triangleBase[c] * 3, chunk.triangleCount * 3);
+            System.arraycopy(chunk.texCoordIndices, 0, result.texCoordIndices, triangleBase[c] * 3, chunk.triangleCount * 3);
+            System.arraycopy(chunk.normalIndices, 0, result.normalIndices, triangleBase[c] * 3, chunk.triangleCount * 3);
+        })).join();
+        for (ObjParser chunk : chunks) {
+            result.skippedFaces += chunk.skippedFaces;
+            result.invalidLines += chunk.invalidLines;
+        }
+        return result;
+    }
+
+    // Turn raw indices into global zero based ones, compacting away triangles with bad positions
+    private void resolveDeferred(int positionBase, int texCoordBase, int normalBase) {
+        int kept = 0;
+        for (int t = 0; t < triangleCount; t++) {
+            int positionsSoFar = positionBase + countsAtTriangle[t * 3];
+            int texCoordsSoFar = texCoordBase + countsAtTriangle[t * 3 + 1];
+            int normalsSoFar = normalBase + countsAtTriangle[t * 3 + 2];
+            boolean valid = true;
+            for (int k = 0; k < 3; k++) {
+                int i = t * 3 + k;
+                int position = positionIndices[i] == 0 ? -1 : resolve(positionIndices[i], positionsSoFar);
+                valid &= position >= 0;
+                positionIndices[i] = position;
+                // 0 is a missing texcoord or normal; anything else has to resolve
+                int texCoord = texCoordIndices[i] == 0 ? -1 : resolve(texCoordIndices[i], texCoordsSoFar);
+                int normal = normalIndices[i] == 0 ? -1 : resolve(normalIndices[i], normalsSoFar);
+                valid &= (texCoordIndices[i] == 0 || texCoord >= 0) && (normalIndices[i] == 0 || normal >= 0);
+                texCoordIndices[i] = texCoord;
+                normalIndices[i] = normal;
+            }
+            if (!valid) {
+                skippedFaces++;
+                continue;
+            }
+            if (kept != t) {
+                System.arraycopy(positionIndices, t * 3, positionIndices, kept * 3, 3);
+                System.arraycopy(texCoordIndices, t * 3, texCoordIndices, kept * 3, 3);
+                System.arraycopy(normalIndices, t * 3, normalIndices, kept * 3, 3);
+            }
+            kept++;
+        }
+        triangleCount = kept;
+        countsAtTriangle = null;
+        deferred = false;
+    }
+
+    // Parse the lines in [start, end) of the buffer
+    void parse(ByteBuffer buffer, int start, int end) {
+        this.buffer = buffer;
+        this.cursor = start;
+        this.limit = end;
+        while (cursor < limit) {
+            skipBlanks();
+            if (cursor >= limit)
+                break;
+            byte first = buffer.get(cursor);
+            byte second = cursor + 1 < limit ? buffer.get(cursor + 1) : (byte) '\n';
+            if (first == 'v' && isBlank(second)) {
+                cursor++;
+                parseVertex();
+            } else if (first == 'v' && second == 't' && cursor + 2 < limit && isBlank(buffer.get(cursor + 2))) {
+                cursor += 2;
+                parseTexCoord();
+            } else if (first == 'v' && second == 'n' && cursor + 2 < limit && isBlank(buffer.get(cursor + 2))) {
+                cursor += 2;
+                parseNormal();
+            } else if (first == 'f' && isBlank(second)) {
+                cursor++;
+                parseFace();
+            }
+            // Comments, groups, materials and anything unknown
+            skipLine();
+        }
+        this.buffer = null;
+    }
+
+    private void parseVertex() {
+        positions = ensure(positions, positionCount * 3 + 3);
+        int base = positionCount * 3;
+        for (int i = 0; i < 3; i++) {
+            skipBlanks();
+            if (!startsNumber()) {
+                invalidLines++;
+                return;
+            }
+            positions[base + i] = parseFloat();
+        }
+        positionCount++;
+    }
+
+    private void parseTexCoord() {
+        texCoords = ensure(texCoords, texCoordCount * 2 + 2);
+        int base = texCoordCount * 2;
+        for (int i = 0; i < 2; i++) {
+            skipBlanks();
+            if (!startsNumber()) {
+                // A bare "vt u" means v = 0
+                if (i == 1) {
+                    texCoords[base + 1] = 0;
+                    break;
+                }
+                invalidLines++;
+                return;
+            }
+            texCoords[base + i] = parseFloat();
+        }
+        texCoordCount++;
+    }
+
+    private void parseNormal() {
+        normals = ensure(normals, normalCount * 3 + 3);
+        int base = normalCount * 3;
+        for (int i = 0; i < 3; i++) {
+            skipBlanks();
+            if (!startsNumber()) {
+                invalidLines++;
+                return;
+            }
+            normals[base + i] = parseFloat();
+        }
+        normalCount++;
+    }
+
+    private void parseFace() {
+        int corners = 0;
+        while (true) {
+            skipBlanks();
+            if (cursor >= limit || !startsNumber())
+                break;
+            if (corners == polygonPositions.length) {
+                polygonPositions = Arrays.copyOf(polygonPositions, corners * 2);
+                polygonTexCoords = Arrays.copyOf(polygonTexCoords, corners * 2);
+                polygonNormals = Arrays.copyOf(polygonNormals, corners * 2);
+            }
+            polygonPositions[corners] = index(parseInt(), positionCount);
+            polygonTexCoords[corners] = deferred ? 0 : -1;
+            polygonNormals[corners] = deferred ? 0 : -1;
+            // v/t, v//n or v/t/n
+            if (cursor < limit && buffer.get(cursor) == '/') {
+                cursor++;
+                if (cursor < limit && buffer.get(cursor) != '/' && startsNumber())
+                    polygonTexCoords[corners] = explicitIndex(parseInt(), texCoordCount);
+                if (cursor < limit && buffer.get(cursor) == '/') {
+                    cursor++;
+                    if (startsNumber())
+                        polygonNormals[corners] = explicitIndex(parseInt(), normalCount);
+                }
+            }
+            corners++;
+            // Skip anything else glued to the token
+            while (cursor < limit && !isBlank(buffer.get(cursor)) && !isLineEnd(buffer.get(cursor)))
+                cursor++;
+        }
+        if (corners < 3) {
+            invalidLines++;
+            return;
+        }
+        // Fan triangulation, dropping triangles that reference missing positions
+        for (int i = 0; i < corners - 2; i++) {
+            int a = 0, b = i + 1, c = i + 2;
+            if (deferred) {
+                // Validity is only known once the chunk is stitched
+                countsAtTriangle = ensure(countsAtTriangle, triangleCount * 3 + 3);
+                countsAtTriangle[triangleCount * 3    ] = positionCount;
+                countsAtTriangle[triangleCount * 3 + 1] = texCoordCount;
+                countsAtTriangle[triangleCount * 3 + 2] = normalCount;
+                addTriangle(a, b, c);
+                continue;
+            }
+            if (polygonPositions[a] < 0 || polygonPositions[b] < 0 || polygonPositions[c] < 0
+                    || isBad(polygonTexCoords, a, b, c) || isBad(polygonNormals, a, b, c)) {
+                skippedFaces++;
+                continue;
+            }
+            addTriangle(a, b, c);
+        }
+    }
+
+    private void addTriangle(int a, int b, int c) {
+        int index = triangleCount * 3;
+        positionIndices = ensure(positionIndices, index + 3);
+        texCoordIndices = ensure(texCoordIndices, index + 3);
+        normalIndices = ensure(normalIndices, index + 3);
+        putCorner(index    , a);
+        putCorner(index + 1, b);
+        putCorner(index + 2, c);
+        triangleCount++;
+    }
+    private void putCorner(int index, int corner) {
+        positionIndices[index] = polygonPositions[corner];
+        texCoordIndices[index] = polygonTexCoords[corner];
+        normalIndices[index] = polygonNormals[corner];
+    }
+
+    // Raw file index when deferred (0 stands for missing), resolved otherwise
+    private int index(long raw, int count) {
+        if (deferred)
+            return raw > Integer.MAX_VALUE || raw < Integer.MIN_VALUE ? 0 : (int) raw;
+        return resolve(raw, count);
+    }
+
+    // A texcoord or normal index that is written out. Unlike a missing one (-1, no attribute), an out
+    // of range one makes the face invalid. Deferred, it stays raw, with 0 marking a bad one.
+    private int explicitIndex(long raw, int count) {
+        if (deferred)
+            return raw == 0 || raw > Integer.MAX_VALUE || raw <= Integer.MIN_VALUE ? Integer.MIN_VALUE : (int) raw;
+        int resolved = resolve(raw, count);
+        return resolved < 0 ? BAD_INDEX : resolved;
+    }
+    private static boolean isBad(int[] indices, int a, int b, int c) {
+        return indices[a] == BAD_INDEX || indices[b] == BAD_INDEX || indices[c] == BAD_INDEX;
+    }
+
+    // One based or negative (relative to the end) index to zero based, -1 if out of range
+    private static int resolve(long index, int count) {
+        long resolved = index < 0 ? count + index : index - 1;
+        return resolved >= 0 && resolved < count ? (int) resolved : -1;
+    }
+
+    private long parseInt() {
+        boolean negative = false;
+        byte c = buffer.get(cursor);
+        if (c == '-' || c == '+') {
+            negative = c == '-';
+            cursor++;
+        }
+        long value = 0;
+        while (cursor < limit) {
+            c = buffer.get(cursor);
+            if (c < '0' || c > '9')
+                break;
+            value = value * 10 + (c - '0');
+            cursor++;
+        }
+        return negative ? -value : value;
+    }
+
+    // Decimal float with optional sign, fraction and exponent; anything else goes to Float.parseFloat
+    private float parseFloat() {
+        int tokenStart = cursor;
+        boolean negative = false;
+        byte c = buffer.get(cursor);
+        if (c == '-' || c == '+') {
+            negative = c == '-';
+            cursor++;
+        }
+        long mantissa = 0;
+        int digits = 0;
+        int exponent = 0;
+        boolean any = false;
+        while (cursor < limit && (c = buffer.get(cursor)) >= '0' && c <= '9') {
+            if (digits < 18) {
+                mantissa = mantissa * 10 + (c - '0');
+                if (mantissa != 0) digits++;
+            } else {
+                exponent++;
+            }
+            any = true;
+            cursor++;
+        }
+        if (cursor < limit && buffer.get(cursor) == '.') {
+            cursor++;
+            while (cursor < limit && (c = buffer.get(cursor)) >= '0' && c <= '9') {
+                if (digits < 18) {
+                    mantissa = mantissa * 10 + (c - '0');
+                    if (mantissa != 0) digits++;
+                    exponent--;
+                }
+                any = true;
+                cursor++;
+            }
+        }
+        if (any && cursor < limit && ((c = buffer.get(cursor)) == 'e' || c == 'E')) {
+            cursor++;
+            boolean negativeExponent = false;
+            if (cursor < limit && ((c = buffer.get(cursor)) == '-' || c == '+')) {
+                negativeExponent = c == '-';
+                cursor++;
+            }
+            int explicit = 0;
+            while (cursor < limit && (c = buffer.get(cursor)) >= '0' && c <= '9') {
+                explicit = Math.min(explicit * 10 + (c - '0'), 100000);
+                cursor++;
+            }
+            exponent += negativeExponent ? -explicit : explicit;
+        }
+        // nan, inf and other oddities
+        if (!any || (cursor < limit && !isBlank(buffer.get(cursor)) && !isLineEnd(buffer.get(cursor))))
+            return parseFallback(tokenStart);
+
+        double value = mantissa;
+        if (exponent < 0)
+            value = -exponent < POW10.length ? value / POW10[-exponent] : value * Math.pow(10, exponent);
+        else if (exponent > 0)
+            value = exponent < POW10.length ? value * POW10[exponent] : value * Math.pow(10, exponent);
+        return (float) (negative ? -value : value);
+    }
+
+    private float parseFallback(int tokenStart) {
+        cursor = tokenStart;
+        while (cursor < limit && !isBlank(buffer.get(cursor)) && !isLineEnd(buffer.get(cursor)))
+            cursor++;
+        byte[] token = new byte[cursor - tokenStart];
+        buffer.get(tokenStart, token);
+        try {
+            return Float.parseFloat(new String(token, java.nio.charset.StandardCharsets.US_ASCII));
+        } catch (NumberFormatException e) {
+            invalidLines++;
+            return 0;
+        }
+    }
+
+    private boolean startsNumber() {
+        if (cursor >= limit)
+            return false;
+        byte c = buffer.get(cursor);
+        return (c >= '0' && c <= '9') || c == '-' || c == '+' || c == '.' || c == 'n' || c == 'N' || c == 'i' || c == 'I';
+    }
+
+    private void skipBlanks() {
+        while (cursor < limit && isBlank(buffer.get(cursor)))
+            cursor++;
+    }
+    private void skipLine() {
+        while (cursor < limit && buffer.get(cursor) != '\n')
+            cursor++;
+        cursor++;
+    }
+    private static boolean isBlank(byte c) {
+        return c == ' ' || c == '\t' || c == '\r';
+    }
+    private static boolean isLineEnd(byte c) {
+        return c == '\n';
+    }
+
+    private static float[] ensure(float[] array, int size) {
+        return size <= array.length ? array : Arrays.copyOf(array, Math.max(size, array.length * 2));
+    }
+    private static int[] ensure(int[] array, int size) {
+        if (array == null)
+            return new int[Math.max(size, 3 * 1024)];
+        return size <= array.length ? array : Arrays.copyOf(array, Math.max(size, array.length * 2));
+    }
+
+    // Whether every corner has a texture / normal index
+    boolean allCornersHaveTexCoords() {
+        for (int i = 0; i < triangleCount * 3; i++)
+            if (texCoordIndices[i] < 0) return false;
+        return triangleCount > 0;
+    }
+    boolean allCornersHaveNormals() {
+        for (int i = 0; i < triangleCount * 3; i++)
+            if (normalIndices[i] < 0) return false;
+        return triangleCount > 0;
+    }
+}
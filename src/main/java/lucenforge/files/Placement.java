@@ -0,0 +1,47 @@
+package lucenforge.files;
+
+import lucenforge.entity.WorldEntity;
+import org.joml.Matrix3f;
+import org.joml.Matrix4f;
+import org.joml.Vector3f;
+
+// A scene node's world transform split the way WorldEntity stores it, for importers that turn
+// node hierarchies into MeshGroups
+record Placement(Vector3f position, Vector3f rotation, Vector3f scale) {
+
+    static final Placement ORIGIN = new Placement(new Vector3f(), new Vector3f(), new Vector3f(1));
+
+    // WorldEntity adds positions and angles down the hierarchy and multiplies scales, so each
+    // entity stores the difference between its world placement and its parent's
+    static Placement place(WorldEntity entity, Matrix4f world, Placement parent) {
+        Vector3f position = world.getTranslation(new Vector3f());
+        Vector3f scale = world.getScale(new Vector3f());
+        Matrix3f rotation = world.get3x3(new Matrix3f());
+        if (rotation.determinant() < 0)
+            scale.x = -scale.x;
+        rotation.m00(rotation.m00() / scale.x).m01(rotation.m01() / scale.x).m02(rotation.m02() / scale.x);
+        rotation.m10(rotation.m10() / scale.y).m11(rotation.m11() / scale.y).m12(rotation.m12() / scale.y);
+        rotation.m20(rotation.m20() / scale.z).m21(rotation.m21() / scale.z).m22(rotation.m22() / scale.z);
+        Vector3f angles = eulerYZX(rotation);
+
+        entity.setPosition(new Vector3f(position).sub(parent.position()));
+        entity.setRotation(new Vector3f(angles).sub(parent.rotation()));
+        entity.setScale(new Vector3f(scale).div(parent.scale()));
+        return new Placement(position, angles, scale);
+    }
+
+    // Degrees for Mesh.getModelMatrix's rotateY, rotateZ, rotateX order
+    static Vector3f eulerYZX(Matrix3f r) {
+        // JOML names elements column first: m01 is column 0, row 1
+        float sinZ = Math.max(-1, Math.min(1, r.m01()));
+        float x, y, z = (float) Math.asin(sinZ);
+        if (Math.abs(sinZ) < 0.9999f) {
+            x = (float) Math.atan2(-r.m21(), r.m11());
+            y = (float) Math.atan2(-r.m02(), r.m00());
+        } else {
+            x = 0;
+            y = (float) Math.atan2(r.m20(), r.m22());
+        }
+        return new Vector3f((float) Math.toDegrees(x), (float) Math.toDegrees(y), (float) Math.toDegrees(z));
+    }
+}
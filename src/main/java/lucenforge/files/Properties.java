@@ -6,13 +6,14 @@ import java.io.File;
 import java.io.IOException;
 import java.util.HashMap;
 
+// Synchronized throughout, since asset loader threads read settings while the render thread does
 public class Properties {
 
     private static final HashMap<String, String> properties = new HashMap<>();
     private static final String PROPERTIES_FILE_PATH = "src/main/resources/properties.ini";
     private static Wini ini;
 
-    public static void checkInit(){
+    public static synchronized void checkInit(){
         // Check if the properties file is already initialized
         if (ini != null) {
             return;
@@ -28,35 +29,35 @@ public class Properties {
     }
 
     // get boolean
-    public static boolean getBool(String section, String key, boolean defaultValue) {
+    public static synchronized boolean getBool(String section, String key, boolean defaultValue) {
         if(properties.containsKey(key)){
             return Boolean.parseBoolean(properties.get(key));
         }
         return get(section, key, Boolean.class, defaultValue);
     }
     // get integer
-    public static int getInt(String section, String key, int defaultValue) {
+    public static synchronized int getInt(String section, String key, int defaultValue) {
         if(properties.containsKey(key)){
             return Integer.parseInt(properties.get(key));
         }
         return get(section, key, Integer.class, defaultValue);
     }
     // get float
-    public static float getFloat(String section, String key, float defaultValue) {
+    public static synchronized float getFloat(String section, String key, float defaultValue) {
         if(properties.containsKey(key)){
             return Float.parseFloat(properties.get(key));
         }
         return get(section, key, Float.class, defaultValue);
     }
     // get string
-    public static String getString(String section, String key, String defaultValue) {
+    public static synchronized String getString(String section, String key, String defaultValue) {
         if(properties.containsKey(key)){
             return properties.get(key);
         }
         return get(section, key, String.class, defaultValue);
     }
     // get anything else (from file)
-    public static <T> T get(String section, String key, Class<T> type, T defaultValue) {
+    public static synchronized <T> T get(String section, String key, Class<T> type, T defaultValue) {
         checkInit();
         T value;
         try {
@@ -72,7 +73,7 @@ public class Properties {
         return value;
     }
 
-    public static void set(String section, String key, Object value) {
+    public static synchronized void set(String section, String key, Object value) {
         checkInit();
         // Check if the section exists
         Object current = null;
@@ -95,7 +96,7 @@ public class Properties {
         }
     }
 
-    public static void addComment(String section, String key, String comment) {
+    public static synchronized void addComment(String section, String key, String comment) {
         checkInit();
         try {
             Wini.Section s = ini.get(section);
@@ -11,12 +11,25 @@ public class ShaderFile {
 
     // Load a shader from the shaders directory
     public static Shader loadShader(String name){
+        String[] sources = readSources(name);
+        return compile(name, sources[0], sources[1]);
+    }
+
+    // Read the sources on a loader thread and compile during a later frame; get() is null until then
+    public static Asset<Shader> loadShaderAsync(String name){
+        return AssetLoader.submit(new Asset<>(name, null), () -> readSources(name),
+                sources -> compile(name, sources[0], sources[1]));
+    }
+
+    private static String[] readSources(String name){
         //Load the shader from the shaders directory
         String vertFilePath = "src/main/resources/shaders/" + name + ".vert.glsl";
         String fragFilePath = "src/main/resources/shaders/" + name + ".frag.glsl";
         //Read the shader files
-        String vertFileContents = FileTools.readFile(vertFilePath);
-        String fragFileContents = FileTools.readFile(fragFilePath);
+        return new String[]{FileTools.readFile(vertFilePath), FileTools.readFile(fragFilePath)};
+    }
+
+    private static Shader compile(String name, String vertFileContents, String fragFileContents){
         //Create the shader program
         Shader shader = new Shader(name, vertFileContents, fragFileContents);
         //Load it into the shader lookup table
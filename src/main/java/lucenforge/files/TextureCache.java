@@ -0,0 +1,177 @@
+package lucenforge.files;
+
+import lucenforge.graphics.StreamedTexture;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.AccessDeniedException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+
+import static org.lwjgl.system.MemoryUtil.*;
+
+// Full mip chain of a texture, block compressed or plain RGBA8, written next to its source image
+// so later loads map it and upload each level as is. Little endian, levels 16 byte aligned:
+//   magic, version, format, source size, source mtime, source hash,
+//   width, height, level count, (offset, size, width, height) per level, [levels]
+// Stale once the source changes (see MeshCache.hash) or a different format is wanted.
+class TextureCache {
+
+    private static final int MAGIC = 0x5854464C; // "LFTX"
+    private static final int VERSION = 1;
+    private static final int ALIGNMENT = 16;
+
+    static final String EXTENSION = ".lftex";
+
+    // What the levels hold; the ordinal is stored in the file
+    enum Format { RGBA8, BC1, BC3 }
+
+    // A mapped cache file; levels are slices of the mapping
+    record Entry(Format format, int width, int height, ByteBuffer[] levels, int[] widths, int[] heights) {}
+
+    // The source's full name plus ours (tree.png.lftex), so sources differing only in extension don't share one
+    static Path cachePath(Path source) {
+        return source.resolveSibling(source.getFileName() + EXTENSION);
+    }
+
+    // Map the cache for source, or null if there is none, it's stale, or it isn't compressed the
+    // way it should be now
+    static Entry load(Path source, boolean compress) {
+        Path cache = cachePath(source);
+        if (!Files.exists(cache) || ByteOrder.nativeOrder() != ByteOrder.LITTLE_ENDIAN)
+            return null;
+        try (FileChannel channel = FileChannel.open(cache, StandardOpenOption.READ)) {
+            long size = channel.size();
+            if (size > Integer.MAX_VALUE)
+                return null;
+            MappedByteBuffer mapped = channel.map(FileChannel.MapMode.READ_ONLY, 0, size);
+            mapped.order(ByteOrder.LITTLE_ENDIAN);
+            if (mapped.getInt() != MAGIC || mapped.getInt() != VERSION)
+                return null;
+            int formatOrdinal = mapped.getInt();
+            if (formatOrdinal < 0 || formatOrdinal >= Format.values().length)
+                return null;
+            Format format = Format.values()[formatOrdinal];
+            if ((format != Format.RGBA8) != compress)
+                return null;
+            long sourceSize = mapped.getLong();
+            long sourceTime = mapped.getLong();
+            long sourceHash = mapped.getLong();
+            if (!isCurrent(source, sourceSize, sourceTime, sourceHash))
+                return null;
+
+            int width = mapped.getInt();
+            int height = mapped.getInt();
+            int levelCount = mapped.getInt();
+            if (levelCount <= 0 || levelCount > 32)
+                return null;
+            ByteBuffer[] levels = new ByteBuffer[levelCount];
+            int[] widths = new int[levelCount], heights = new int[levelCount];
+            for (int level = 0; level < levelCount; level++) {
+                long offset = mapped.getLong();
+                int bytes = mapped.getInt();
+                widths[level] = mapped.getInt();
+                heights[level] = mapped.getInt();
+                if (offset + bytes > size || bytes != levelBytes(format, widths[level], heights[level]))
+                    return null;
+                // Slices keep the mapping alive for as long as a level is in use
+                levels[level] = mapped.slice((int) offset, bytes).order(ByteOrder.LITTLE_ENDIAN);
+            }
+            return new Entry(format, width, height, levels, widths, heights);
+        } catch (AccessDeniedException e) {
+            return null;
+        } catch (IOException e) {
+            Log.writeln(Log.WARNING, "Could not read texture cache " + cache + ": " + e.getMessage());
+            return null;
+        }
+    }
+
+    static int levelBytes(Format format, int width, int height) {
+        return format == Format.RGBA8 ? width * height * 4 : BlockCompressor.compressedSize(width, height, format == Format.BC3);
+    }
+
+    // Build the mip chain of decoded RGBA8 pixels, compress it if asked, and write the cache.
+    // Returns false when it couldn't be written (read only install, big endian platform).
+    static boolean write(Path source, ByteBuffer pixels, int width, int height, boolean compress) {
+        Path cache = cachePath(source);
+        Path temp = cache.resolveSibling(cache.getFileName() + ".tmp");
+        if (ByteOrder.nativeOrder() != ByteOrder.LITTLE_ENDIAN)
+            return false;
+        // Level 0 still belongs to the caller
+        StreamedTexture.MipChain chain = StreamedTexture.buildMipChain(pixels, width, height, false);
+        Format format = !compress ? Format.RGBA8 : BlockCompressor.hasAlpha(pixels, width, height) ? Format.BC3 : Format.BC1;
+        int levelCount = chain.levelCount();
+        ByteBuffer[] levels = new ByteBuffer[levelCount];
+        try {
+            for (int level = 0; level < levelCount; level++) {
+                int w = chain.widths()[level], h = chain.heights()[level];
+                if (format == Format.RGBA8) {
+                    levels[level] = chain.levels()[level];
+                } else {
+                    levels[level] = memAlloc(levelBytes(format, w, h));
+                    BlockCompressor.compress(chain.levels()[level], w, h, format == Format.BC3, levels[level]);
+                }
+            }
+
+            int headerBytes = 4 * 3 + 8 * 3 + 4 * 3 + levelCount * (8 + 4 * 3);
+            long[] offsets = new long[levelCount];
+            long offset = align(headerBytes);
+            for (int level = 0; level < levelCount; level++) {
+                offsets[level] = offset;
+                offset = align(offset + levels[level].remaining());
+            }
+            ByteBuffer header = ByteBuffer.allocate((int) align(headerBytes)).order(ByteOrder.LITTLE_ENDIAN);
+            header.putInt(MAGIC).putInt(VERSION).putInt(format.ordinal());
+            header.putLong(Files.size(source)).putLong(Files.getLastModifiedTime(source).toMillis()).putLong(MeshCache.hash(source));
+            header.putInt(width).putInt(height).putInt(levelCount);
+            for (int level = 0; level < levelCount; level++) {
+                header.putLong(offsets[level]).putInt(levels[level].remaining());
+                header.putInt(chain.widths()[level]).putInt(chain.heights()[level]);
+            }
+            header.position(0);
+
+            try (FileChannel channel = FileChannel.open(temp, StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE)) {
+                writeFully(channel, header, 0);
+                for (int level = 0; level < levelCount; level++)
+                    writeFully(channel, levels[level].duplicate(), offsets[level]);
+            }
+            Files.move(temp, cache, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            return true;
+        } catch (IOException | UnsupportedOperationException e) {
+            Log.writeln(Log.WARNING, "Could not write texture cache " + cache + ": " + e.getMessage());
+            try {
+                Files.deleteIfExists(temp);
+            } catch (IOException ignored) {}
+            return false;
+        } finally {
+            for (int level = 0; level < levelCount; level++) {
+                if (levels[level] != null && levels[level] != chain.levels()[level])
+                    memFree(levels[level]);
+                if (level > 0)
+                    memFree(chain.levels()[level]);
+            }
+        }
+    }
+
+    private static boolean isCurrent(Path source, long size, long time, long hash) throws IOException {
+        if (Files.size(source) != size)
+            return false;
+        if (Files.getLastModifiedTime(source).toMillis() == time)
+            return true;
+        return MeshCache.hash(source) == hash;
+    }
+
+    private static long align(long offset) {
+        return (offset + ALIGNMENT - 1) & -ALIGNMENT;
+    }
+
+    private static void writeFully(FileChannel channel, ByteBuffer buffer, long position) throws IOException {
+        while (buffer.hasRemaining())
+            position += channel.write(buffer, position);
+    }
+}
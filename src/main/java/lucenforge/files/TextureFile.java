@@ -1,11 +1,24 @@
 package lucenforge.files;
 
+import lucenforge.graphics.PixelUploader;
+import lucenforge.graphics.StreamedTexture;
 import lucenforge.graphics.Texture;
+import lucenforge.graphics.TextureAtlas;
+import org.lwjgl.opengl.GL;
 import org.lwjgl.stb.STBImage;
 import org.lwjgl.system.MemoryStack;
 
+import java.io.IOException;
 import java.nio.ByteBuffer;
 import java.nio.IntBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.lwjgl.opengl.EXTTextureCompressionS3TC.*;
+import static org.lwjgl.opengl.GL11.GL_RGBA8;
 
 public class TextureFile {
 
@@ -13,31 +26,221 @@ public class TextureFile {
     private final static String modelsDir = "src/main/resources/textures/";
     private final static String[] extensions = {".png", ".jpg", ".bmp"};
 
+    // Pixels decoded by STB, ready for upload
+    private record Image(String path, ByteBuffer pixels, int width, int height, int channels) {}
+
     public static Texture load(String name){
-        if(!initialized)
-            init();
+        Image image = decode(name);
+        if (image == null)
+            return null;
+        Log.write("Loading: " + image.path());
+        return new Texture(image.pixels(), image.width(), image.height(), image.channels());
+    }
+
+    // Shared texture from the asset cache, decoded and uploaded only if it isn't cached yet. Meshes
+    // it's set on won't delete it when they're cleaned up; the cache does once it's evicted.
+    public static AssetRef<Texture> acquire(String name){
+        return AssetCache.acquire("texture:" + name, () -> {
+            Texture texture = load(name);
+            return texture == null ? null : texture.setCached(true);
+        }, Texture::cpuBytes, Texture::gpuBytes, texture -> {
+            texture.setCached(false);
+            texture.freeImage();
+            texture.cleanup();
+        });
+    }
+
+    // Decode the named textures and pack them into shared atlas pages; look the views up by name
+    public static TextureAtlas loadAtlas(int pageSize, int padding, String... names){
+        TextureAtlas atlas = new TextureAtlas(pageSize, padding);
+        ArrayList<Image> images = new ArrayList<>();
+        for (String name : names) {
+            Image image = decode(name);
+            if (image == null)
+                continue;
+            images.add(image);
+            atlas.add(name, image.pixels(), image.width(), image.height());
+        }
+        atlas.build();
+        // The pages hold copies, so the decoded pixels can go
+        for (Image image : images)
+            STBImage.stbi_image_free(image.pixels());
+        return atlas;
+    }
+
+    // Decode on a loader thread and upload through a pixel buffer during a later frame; the asset
+    // holds a placeholder texture until the GPU has the pixels, and that texture becomes the real
+    // one in place. The decoded pixels are freed as soon as the transfer is fenced complete.
+    public static Asset<Texture> loadAsync(String name){
+        Texture texture = Texture.placeholder();
+        return AssetLoader.submitDeferred(new Asset<>(name, texture), () -> decode(name), image -> {
+            Log.writeln("Loaded: " + image.path());
+            return PixelUploader.upload(texture, image.pixels(), image.width(), image.height(), image.channels(),
+                    () -> STBImage.stbi_image_free(image.pixels()));
+        });
+    }
+    // Several at once; they decode in parallel across the loader threads
+    public static List<Asset<Texture>> loadAsync(String... names){
+        ArrayList<Asset<Texture>> assets = new ArrayList<>();
+        for (String name : names)
+            assets.add(loadAsync(name));
+        return assets;
+    }
+
+    // Streamed texture: the mip chain is mapped from the texture cache (built on a worker the first
+    // time), then only its small levels go up and TextureStreamer brings in finer ones as the
+    // texture is drawn larger on screen
+    public static Asset<StreamedTexture> loadStreamed(String name){
+        StreamedTexture texture = new StreamedTexture();
+        return AssetLoader.submit(new Asset<>(name, texture), () -> {
+            // Stream out of the uncompressed cache so the levels stay in the file rather than in
+            // memory; only if it can't be written is the decoded chain kept around
+            Prepared prepared = prepare(name, false);
+            if (prepared == null)
+                return null;
+            if (prepared.cached() != null)
+                return StreamedTexture.MipChain.mapped(prepared.cached().levels(), prepared.cached().widths(), prepared.cached().heights());
+            Image image = prepared.image();
+            return StreamedTexture.buildMipChain(image.pixels(), image.width(), image.height(), true);
+        }, chain -> {
+            Log.writeln("Streaming: " + name + " (" + chain.levelCount() + " levels)");
+            texture.setMipChain(chain);
+            return texture;
+        });
+    }
+
+    // Precomputed mip chain from the texture cache, block compressed where the driver takes S3TC.
+    // The cache is built from the source image the first time and whenever the source changes;
+    // after that loading is a map and one upload per level, with no decode. Falls back to a plain
+    // load if the cache can't be written.
+    public static Texture loadCompressed(String name){
+        Prepared prepared = prepare(name, isCompressionSupported());
+        if (prepared == null)
+            return null;
+        Texture texture = Texture.placeholder();
+        return finish(texture, prepared);
+    }
+    public static Asset<Texture> loadCompressedAsync(String name){
+        // GL capabilities belong to the render thread, so ask before handing off
+        boolean compress = isCompressionSupported();
+        Texture texture = Texture.placeholder();
+        return AssetLoader.submit(new Asset<>(name, texture), () -> prepare(name, compress), prepared -> finish(texture, prepared));
+    }
+
+    // Either the mapped cache or, without one, the decoded image
+    private record Prepared(TextureCache.Entry cached, Image image) {}
 
+    private static Prepared prepare(String name, boolean compress){
+        String path = sourcePath(name);
+        if (!FileTools.doesFileExist(path)) {
+            Log.writeln(Log.ERROR, "No texture named \"" + name + "\" in " + modelsDir);
+            return null;
+        }
+        Path source = Path.of(path);
+        TextureCache.Entry cached = TextureCache.load(source, compress);
+        if (cached != null)
+            return new Prepared(cached, null);
+        Image image = decode(name);
+        if (image == null)
+            return null;
+        Log.writeln("Building texture cache for " + path);
+        if (TextureCache.write(source, image.pixels(), image.width(), image.height(), compress)) {
+            cached = TextureCache.load(source, compress);
+            if (cached != null) {
+                STBImage.stbi_image_free(image.pixels());
+                return new Prepared(cached, null);
+            }
+        }
+        return new Prepared(null, image);
+    }
+
+    private static Texture finish(Texture texture, Prepared prepared){
+        if (prepared.image() != null) {
+            Image image = prepared.image();
+            texture.setImage(image.pixels(), image.width(), image.height(), image.channels());
+            return texture;
+        }
+        TextureCache.Entry cached = prepared.cached();
+        int internalFormat = switch (cached.format()) {
+            case RGBA8 -> GL_RGBA8;
+            case BC1 -> GL_COMPRESSED_RGB_S3TC_DXT1_EXT;
+            case BC3 -> GL_COMPRESSED_RGBA_S3TC_DXT5_EXT;
+        };
+        texture.setLevels(internalFormat, cached.format() != TextureCache.Format.RGBA8, cached.levels(), cached.widths(), cached.heights());
+        return texture;
+    }
+
+    // S3TC is on practically every desktop driver; it can be turned off in the properties
+    private static boolean isCompressionSupported(){
+        return GL.getCapabilities().GL_EXT_texture_compression_s3tc && Properties.getBool("files", "texture_compression", true);
+    }
+
+    // Offline converter: build the cache for the named textures, or every texture when none are
+    // named, so the first launch doesn't have to
+    public static void main(String[] args) {
+        boolean compress = true;
+        ArrayList<String> names = new ArrayList<>();
+        for (String arg : args) {
+            if (arg.equals("--uncompressed"))
+                compress = false;
+            else
+                names.add(arg);
+        }
+        if (names.isEmpty()) {
+            for (String ext : extensions) {
+                for (Path path : FileTools.getFilesInDir(modelsDir, ext)) {
+                    String fileName = path.getFileName().toString();
+                    if (fileName.endsWith(ext))
+                        names.add(fileName.substring(0, fileName.length() - ext.length()));
+                }
+            }
+        }
+        for (String name : names) {
+            Prepared prepared = prepare(name, compress);
+            if (prepared == null || prepared.cached() == null) {
+                Log.writeln(Log.ERROR, "Could not convert \"" + name + "\"");
+                continue;
+            }
+            Log.writeln(Log.SUCCESS, "Converted \"" + name + "\" to " + prepared.cached().format() + " with " + prepared.cached().levels().length + " levels");
+        }
+    }
+
+    private static String sourcePath(String name){
+        synchronized (TextureFile.class) {
+            if(!initialized)
+                init();
+        }
         String path = null;
         for (String ext : extensions) {
             path = modelsDir + name + ext;
             if(FileTools.doesFileExist(path))
                 break;
         }
-        Log.write("Loading: " + path);
+        return path;
+    }
 
-        MemoryStack stack = MemoryStack.stackPush();
+    private static Image decode(String name){
+        String path = sourcePath(name);
 
-        IntBuffer width = stack.mallocInt(1);
-        IntBuffer height = stack.mallocInt(1);
-        IntBuffer channels = stack.mallocInt(1); // unused
-        int desiredChannels = 4; // RGBA
+        // Map the file and decode from memory, which stb allows from any number of threads at once
+        try (FileChannel file = FileChannel.open(Path.of(path), StandardOpenOption.READ);
+             MemoryStack stack = MemoryStack.stackPush()) {
+            ByteBuffer encoded = file.map(FileChannel.MapMode.READ_ONLY, 0, file.size());
+            IntBuffer width = stack.mallocInt(1);
+            IntBuffer height = stack.mallocInt(1);
+            IntBuffer channels = stack.mallocInt(1); // unused
+            int desiredChannels = 4; // RGBA
 
-        ByteBuffer image = STBImage.stbi_load(path, width, height, channels, desiredChannels);
-        if (image == null) {
-            Log.writeln(Log.ERROR, "Failed to load image: " + path + " because " + STBImage.stbi_failure_reason());
+            ByteBuffer image = STBImage.stbi_load_from_memory(encoded, width, height, channels, desiredChannels);
+            if (image == null) {
+                Log.writeln(Log.ERROR, "Failed to load image: " + path + " because " + STBImage.stbi_failure_reason());
+                return null;
+            }
+            return new Image(path, image, width.get(0), height.get(0), desiredChannels);
+        } catch (IOException e) {
+            Log.writeln(Log.ERROR, "Failed to read image: " + path + " because " + e.getMessage());
             return null;
         }
-        return new Texture(image, width.get(), height.get(), desiredChannels);
     }
 
     private static void init(){
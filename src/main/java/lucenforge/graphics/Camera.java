@@ -8,6 +8,9 @@ import org.joml.Vector3f;
 
 public class Camera extends WorldEntity {
 
+    // The camera of the render layer being drawn
+    private static Camera currentCamera;
+
     protected Vector3f lookDirection = new Vector3f(0, 0, -1);
     protected boolean shouldLookAtTarget = false;
     protected Vector3f lookAtPos;
@@ -83,4 +86,22 @@ public class Camera extends WorldEntity {
         this.viewAngle = angle;
     }
 
+    // Fraction of the view height covered by a sphere (1 = fills the screen vertically)
+    public float projectedSize(Vector3f center, float radius){
+        if (isOrtho)
+            return radius / orthoHeight;
+        float distance = position().distance(center);
+        if (distance <= radius)
+            return Float.POSITIVE_INFINITY;
+        return radius / (distance * (float) Math.tan(Math.toRadians(viewAngle) / 2.0));
+    }
+
+    // Set by the render layer before it draws, for meshes that depend on the view
+    static void makeCurrent(Camera camera){
+        currentCamera = camera;
+    }
+    public static Camera current(){
+        return currentCamera;
+    }
+
 }
@@ -30,6 +30,12 @@ public class GraphicsManager {
     private static long lastLastFrameTimestamp;
     private static boolean shouldRender = false;
 
+    // Buffer upload counters (bytes sent to the GPU)
+    private static long frameUploadBytes = 0;
+    private static long lastFrameUploadBytes = 0;
+    private static long frameUploadCalls = 0;
+    private static long lastFrameUploadCalls = 0;
+
     // Initialize the renderer
     public static void init(Window window) {
         Window.set(window);
@@ -75,6 +81,20 @@ public class GraphicsManager {
         return lastFrameTimestamp - lastLastFrameTimestamp;
     }
 
+    // Record a buffer upload for the per-frame counters
+    public static void countUpload(long bytes){
+        frameUploadBytes += bytes;
+        frameUploadCalls++;
+    }
+    // Bytes uploaded to GPU buffers during the last completed frame
+    public static long lastFrameUploadBytes(){
+        return lastFrameUploadBytes;
+    }
+    // Number of buffer uploads issued during the last completed frame
+    public static long lastFrameUploadCalls(){
+        return lastFrameUploadCalls;
+    }
+
     public static boolean shouldRender(){
         return shouldRender;
     }
@@ -89,6 +109,11 @@ public class GraphicsManager {
             lastFrameTimestamp = currentTimeMillis;
             fpsRecord[fpsRecordIndex] = getFPS();
             fpsRecordIndex = (fpsRecordIndex + 1) % fpsRecord.length;
+
+            lastFrameUploadBytes = frameUploadBytes;
+            lastFrameUploadCalls = frameUploadCalls;
+            frameUploadBytes = 0;
+            frameUploadCalls = 0;
         }else{
             shouldRender = false;
         }
@@ -109,6 +134,9 @@ public class GraphicsManager {
             layer.cleanup();
         }
         renderLayers.clear();
+        // Then the texture arrays their meshes sampled from, and the pixel upload buffers
+        TextureArray.cleanupAll();
+        PixelUploader.cleanup();
     }
 
     private GraphicsManager(){} // Prevent instantiation
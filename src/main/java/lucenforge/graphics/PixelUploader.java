@@ -0,0 +1,127 @@
+package lucenforge.graphics;
+
+import lucenforge.files.Log;
+import lucenforge.files.Properties;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.concurrent.CompletableFuture;
+
+import static org.lwjgl.opengl.GL32.*;
+import static org.lwjgl.system.MemoryUtil.*;
+
+// Texture uploads through a small pool of pixel buffer objects. The pixels are copied into a
+// mapped PBO and glTexImage2D reads from it, so the driver returns at once and the GPU does the
+// transfer on its own. A fence marks the end of it; a later update() sees it signalled, frees the
+// decoded pixels, recycles the PBO and completes the upload's future.
+public class PixelUploader {
+
+    private static class PixelBuffer {
+        final int id = glGenBuffers();
+        long capacity = 0;
+    }
+    private record Request(Texture texture, ByteBuffer pixels, int width, int height, int channels,
+                           Runnable release, CompletableFuture<Texture> done) {}
+    private record InFlight(PixelBuffer buffer, long fence, Request request) {}
+
+    private static final ArrayList<PixelBuffer> free = new ArrayList<>();
+    private static final ArrayDeque<Request> waiting = new ArrayDeque<>();
+    private static final ArrayList<InFlight> inFlight = new ArrayList<>();
+    private static int bufferCount = 0;
+    private static int maxBuffers = -1;
+
+    // Start uploading pixels into texture (render thread). release frees the pixels once the GPU has
+    // them; the future completes with the texture on a later frame. With every PBO busy the request
+    // waits for one to come back.
+    public static CompletableFuture<Texture> upload(Texture texture, ByteBuffer pixels, int width, int height, int channels, Runnable release) {
+        Request request = new Request(texture, pixels, width, height, channels, release, new CompletableFuture<>());
+        if (!start(request))
+            waiting.add(request);
+        return request.done();
+    }
+
+    private static boolean start(Request request) {
+        long bytes = (long) request.width() * request.height() * request.channels();
+        PixelBuffer buffer = acquire();
+        if (buffer == null)
+            return false;
+
+        glBindBuffer(GL_PIXEL_UNPACK_BUFFER, buffer.id);
+        if (buffer.capacity < bytes) {
+            glBufferData(GL_PIXEL_UNPACK_BUFFER, bytes, GL_STREAM_DRAW);
+            buffer.capacity = bytes;
+        }
+        // The buffer's last fence has passed, so the driver needn't synchronize the mapping
+        ByteBuffer mapped = glMapBufferRange(GL_PIXEL_UNPACK_BUFFER, 0, bytes,
+                GL_MAP_WRITE_BIT | GL_MAP_INVALIDATE_BUFFER_BIT | GL_MAP_UNSYNCHRONIZED_BIT);
+        if (mapped == null) {
+            glBindBuffer(GL_PIXEL_UNPACK_BUFFER, 0);
+            free.add(buffer);
+            request.release().run();
+            request.done().completeExceptionally(new IllegalStateException("could not map pixel buffer"));
+            return true;
+        }
+        memCopy(memAddress(request.pixels()), memAddress(mapped), bytes);
+        glUnmapBuffer(GL_PIXEL_UNPACK_BUFFER);
+        request.texture().setImageFromUnpackBuffer(0, request.width(), request.height(), request.channels());
+        glBindBuffer(GL_PIXEL_UNPACK_BUFFER, 0);
+        GraphicsManager.countUpload(bytes);
+
+        inFlight.add(new InFlight(buffer, glFenceSync(GL_SYNC_GPU_COMMANDS_COMPLETE, 0), request));
+        return true;
+    }
+
+    private static PixelBuffer acquire() {
+        if (!free.isEmpty())
+            return free.remove(free.size() - 1);
+        if (maxBuffers < 0)
+            maxBuffers = Math.max(1, Properties.getInt("graphics", "pixel_buffers", 4));
+        if (bufferCount >= maxBuffers)
+            return null;
+        bufferCount++;
+        return new PixelBuffer();
+    }
+
+    // Render Loop Iteration: retire finished transfers, then start waiting ones on the freed buffers
+    public static void update() {
+        for (int i = 0; i < inFlight.size(); i++) {
+            InFlight upload = inFlight.get(i);
+            int status = glClientWaitSync(upload.fence(), GL_SYNC_FLUSH_COMMANDS_BIT, 0);
+            if (status == GL_TIMEOUT_EXPIRED)
+                continue;
+            if (status == GL_WAIT_FAILED)
+                Log.writeln(Log.ERROR, "Waiting on pixel buffer fence failed!");
+            glDeleteSync(upload.fence());
+            inFlight.remove(i--);
+            free.add(upload.buffer());
+            upload.request().release().run();
+            upload.request().done().complete(upload.request().texture());
+        }
+        while (!waiting.isEmpty() && start(waiting.peek()))
+            waiting.poll();
+    }
+
+    public static int pendingUploads() {
+        return inFlight.size() + waiting.size();
+    }
+
+    // Wait out the transfers and delete the buffers; pixels still waiting are freed unuploaded
+    public static void cleanup() {
+        for (InFlight upload : inFlight) {
+            glDeleteSync(upload.fence());
+            free.add(upload.buffer());
+            upload.request().release().run();
+        }
+        inFlight.clear();
+        for (Request request : waiting)
+            request.release().run();
+        waiting.clear();
+        for (PixelBuffer buffer : free)
+            glDeleteBuffers(buffer.id);
+        free.clear();
+        bufferCount = 0;
+    }
+
+    private PixelUploader(){} // Prevent instantiation
+}
@@ -89,6 +89,9 @@ public class RenderLayer implements Renderable{
             renderable.render();
         }
 
+        // Detail levels, however deeply nested, are picked from this camera
+        Camera.makeCurrent(camera);
+
         // Go through each shader and render the meshes
         for(Shader shader : shaderMeshBatches.keySet()) {
             // Get the meshes for this shader
@@ -105,9 +108,19 @@ public class RenderLayer implements Renderable{
                 shader.requiredParameter("aspectRatio").set(Window.current().getAspectRatio());
             if(shader.isUniformRequired("cameraPos"))
                 shader.requiredParameter("cameraPos").set(camera.position());
+            // Meshes in texture arrays share the one sampler; they bind only when the array changes
+            if(shader.isUniformRequired("textureArray0"))
+                shader.requiredParameter("textureArray0").set(TextureArray.TEXTURE_UNIT);
+            TextureArray.forgetBindings();
 
             // Set the shader parameters for each mesh
             for (Mesh mesh : meshes) {
+                // Tell streamed textures how large they're drawn so the streamer can pick their detail
+                if (camera != null && mesh.texture() != null && mesh.texture().page() instanceof StreamedTexture streamed) {
+                    float size = mesh.projectedSize(camera);
+                    if (size >= 0)
+                        streamed.requestSize(Math.min(size, 1f) * Window.current().height());
+                }
                 mesh.render();
             }
             shader.unbind();
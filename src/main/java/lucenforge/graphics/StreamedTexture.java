@@ -0,0 +1,226 @@
+package lucenforge.graphics;
+
+import lucenforge.files.Properties;
+
+import java.nio.ByteBuffer;
+
+import static org.lwjgl.opengl.GL20.*;
+import static org.lwjgl.stb.STBImage.stbi_image_free;
+import static org.lwjgl.system.MemoryUtil.*;
+
+// A texture whose mip chain is built on a worker and uploaded a level at a time. Only the small
+// levels go up at first; GL_TEXTURE_BASE_LEVEL keeps sampling inside what's resident, and
+// TextureStreamer moves it as the requested screen size and the memory budget allow.
+public class StreamedTexture extends Texture {
+
+    // RGBA8 levels, level 0 first. Mapped levels are slices of a texture cache file, so the OS
+    // pages them in when a level goes up and can drop them again; otherwise they were allocated
+    // here and level 0 may still belong to STB
+    public record MipChain(ByteBuffer[] levels, int[] widths, int[] heights, boolean stbBase, boolean mapped) {
+        public static MipChain mapped(ByteBuffer[] levels, int[] widths, int[] heights) {
+            return new MipChain(levels, widths, heights, false, true);
+        }
+        public int levelCount() {
+            return levels.length;
+        }
+        public long levelBytes(int level) {
+            return (long) widths[level] * heights[level] * 4;
+        }
+    }
+
+    private MipChain chain;
+    // Finest level uploaded; everything from here to the last level is resident
+    private int residentBase;
+    private long residentBytes = 0;
+
+    // Largest on-screen size asked for since the streamer last looked, in pixels
+    private float requestedPixels = 0;
+    private long lastRequestFrame = -1;
+
+    // Starts as a single white pixel until the chain arrives
+    public StreamedTexture() {
+        super();
+        ByteBuffer pixel = memAlloc(4).putInt(0, -1);
+        glBindTexture(GL_TEXTURE_2D, id());
+        glTexImage2D(GL_TEXTURE_2D, 0, GL_RGBA, 1, 1, 0, GL_RGBA, GL_UNSIGNED_BYTE, pixel);
+        glTexParameteri(GL_TEXTURE_2D, GL_TEXTURE_MAX_LEVEL, 0);
+        glBindTexture(GL_TEXTURE_2D, 0);
+        memFree(pixel);
+    }
+
+    // Box-filter the mip chain on the CPU; safe on any thread
+    public static MipChain buildMipChain(ByteBuffer base, int width, int height, boolean stbBase) {
+        int count = 1 + (31 - Integer.numberOfLeadingZeros(Math.max(width, height)));
+        ByteBuffer[] levels = new ByteBuffer[count];
+        int[] widths = new int[count], heights = new int[count];
+        levels[0] = base;
+        widths[0] = width;
+        heights[0] = height;
+        for (int level = 1; level < count; level++) {
+            int w = Math.max(1, widths[level - 1] / 2), h = Math.max(1, heights[level - 1] / 2);
+            widths[level] = w;
+            heights[level] = h;
+            levels[level] = memAlloc(w * h * 4);
+            downsample(levels[level - 1], widths[level - 1], heights[level - 1], levels[level], w, h);
+        }
+        return new MipChain(levels, widths, heights, stbBase, false);
+    }
+
+    // Average each 2x2 block (clamped at odd edges) per channel
+    private static void downsample(ByteBuffer source, int sourceWidth, int sourceHeight, ByteBuffer target, int width, int height) {
+        long from = memAddress(source), to = memAddress(target);
+        for (int y = 0; y < height; y++) {
+            int y0 = Math.min(sourceHeight - 1, y * 2), y1 = Math.min(sourceHeight - 1, y * 2 + 1);
+            for (int x = 0; x < width; x++) {
+                int x0 = Math.min(sourceWidth - 1, x * 2), x1 = Math.min(sourceWidth - 1, x * 2 + 1);
+                int a = memGetInt(from + ((long) y0 * sourceWidth + x0) * 4);
+                int b = memGetInt(from + ((long) y0 * sourceWidth + x1) * 4);
+                int c = memGetInt(from + ((long) y1 * sourceWidth + x0) * 4);
+                int d = memGetInt(from + ((long) y1 * sourceWidth + x1) * 4);
+                int result = 0;
+                for (int shift = 0; shift < 32; shift += 8) {
+                    int sum = ((a >>> shift) & 0xFF) + ((b >>> shift) & 0xFF) + ((c >>> shift) & 0xFF) + ((d >>> shift) & 0xFF);
+                    result |= ((sum + 2) >> 2) << shift;
+                }
+                memPutInt(to + ((long) y * width + x) * 4, result);
+            }
+        }
+    }
+
+    // Upload the levels no larger than the initial streaming size and start streaming (render thread)
+    public void setMipChain(MipChain chain) {
+        this.chain = chain;
+        int last = chain.levelCount() - 1;
+        int initialSize = Properties.getInt("graphics", "texture_stream_initial_size", 64);
+        int base = 0;
+        while (base < last && Math.max(chain.widths()[base], chain.heights()[base]) > initialSize)
+            base++;
+        glBindTexture(GL_TEXTURE_2D, id());
+        // Drop the placeholder pixel before the chain takes over level 0
+        glTexImage2D(GL_TEXTURE_2D, 0, GL_RGBA, 0, 0, 0, GL_RGBA, GL_UNSIGNED_BYTE, (ByteBuffer) null);
+        glTexParameteri(GL_TEXTURE_2D, GL_TEXTURE_MAX_LEVEL, last);
+        residentBase = last + 1;
+        residentBytes = 0;
+        for (int level = last; level >= base; level--)
+            uploadLevel(level);
+        glTexParameteri(GL_TEXTURE_2D, GL_TEXTURE_BASE_LEVEL, residentBase);
+        glBindTexture(GL_TEXTURE_2D, 0);
+        TextureStreamer.register(this);
+    }
+
+    private void uploadLevel(int level) {
+        glTexImage2D(GL_TEXTURE_2D, level, GL_RGBA, chain.widths()[level], chain.heights()[level], 0, GL_RGBA, GL_UNSIGNED_BYTE, chain.levels()[level]);
+        GraphicsManager.countUpload(chain.levelBytes(level));
+        residentBytes += chain.levelBytes(level);
+        residentBase = level;
+    }
+
+    // Make the next finer level resident
+    void raise() {
+        if (chain == null || residentBase == 0)
+            return;
+        glBindTexture(GL_TEXTURE_2D, id());
+        uploadLevel(residentBase - 1);
+        glTexParameteri(GL_TEXTURE_2D, GL_TEXTURE_BASE_LEVEL, residentBase);
+        glBindTexture(GL_TEXTURE_2D, 0);
+    }
+
+    // Evict the finest resident level, freeing its GPU storage; the last level always stays
+    void drop() {
+        if (chain == null || residentBase >= chain.levelCount() - 1)
+            return;
+        int level = residentBase;
+        glBindTexture(GL_TEXTURE_2D, id());
+        glTexParameteri(GL_TEXTURE_2D, GL_TEXTURE_BASE_LEVEL, level + 1);
+        glTexImage2D(GL_TEXTURE_2D, level, GL_RGBA, 0, 0, 0, GL_RGBA, GL_UNSIGNED_BYTE, (ByteBuffer) null);
+        glBindTexture(GL_TEXTURE_2D, 0);
+        residentBytes -= chain.levelBytes(level);
+        residentBase = level + 1;
+    }
+
+    // Ask for enough detail to cover this many pixels on screen this frame
+    public void requestSize(float pixels) {
+        long frame = TextureStreamer.frame();
+        if (lastRequestFrame != frame)
+            requestedPixels = 0;
+        requestedPixels = Math.max(requestedPixels, pixels);
+        lastRequestFrame = frame;
+    }
+
+    // Finest level worth having for the latest request; without a recent one, the current level
+    int wantedLevel(long frame, int idleFrames) {
+        if (chain == null)
+            return 0;
+        if (lastRequestFrame < 0 || frame - lastRequestFrame > idleFrames)
+            return residentBase;
+        int size = Math.max(chain.widths()[0], chain.heights()[0]);
+        int level = 0;
+        while (level < chain.levelCount() - 1 && (size >> (level + 1)) >= requestedPixels)
+            level++;
+        return level;
+    }
+
+    int levelCount() {
+        return chain == null ? 1 : chain.levelCount();
+    }
+    long lastRequestFrame() {
+        return lastRequestFrame;
+    }
+    int residentBase() {
+        return residentBase;
+    }
+    long finestResidentBytes() {
+        return chain == null ? 0 : chain.levelBytes(residentBase);
+    }
+    public boolean isStreaming() {
+        return chain != null;
+    }
+    public int residentLevel() {
+        return chain == null ? 0 : residentBase;
+    }
+
+    // Streaming keeps moving the base level, which a bindless handle would freeze
+    @Override
+    public long handle() {
+        return 0;
+    }
+    @Override
+    public int width() {
+        return chain == null ? 1 : chain.widths()[0];
+    }
+    @Override
+    public int height() {
+        return chain == null ? 1 : chain.heights()[0];
+    }
+    // A mapped chain only takes page cache, which the OS reclaims on its own
+    @Override
+    public long cpuBytes() {
+        if (chain == null || chain.mapped())
+            return 0;
+        long bytes = 0;
+        for (int level = 0; level < chain.levelCount(); level++)
+            bytes += chain.levelBytes(level);
+        return bytes;
+    }
+    @Override
+    public long gpuBytes() {
+        return chain == null ? 4 : residentBytes;
+    }
+
+    @Override
+    public void cleanup() {
+        TextureStreamer.unregister(this);
+        super.cleanup();
+        if (chain == null || chain.mapped()) {
+            chain = null;
+            return;
+        }
+        for (int level = 0; level < chain.levelCount(); level++) {
+            if (level == 0 && chain.stbBase())
+                stbi_image_free(chain.levels()[0]);
+            else
+                memFree(chain.levels()[level]);
+        }
+        chain = null;
+    }
+}
@@ -3,37 +3,101 @@ package lucenforge.graphics;
 import lucenforge.files.Log;
 import lucenforge.graphics.shaders.Shader;
 import org.joml.Vector2f;
+import org.lwjgl.BufferUtils;
 
 import java.nio.ByteBuffer;
 
 import static org.lwjgl.opengl.GL20.*;
 import static org.lwjgl.opengl.GL30.*; // for glGenerateMipmap
+import static org.lwjgl.opengl.ARBBindlessTexture.*;
+import static org.lwjgl.stb.STBImage.stbi_image_free;
 import static org.lwjgl.stb.STBImage.stbi_set_flip_vertically_on_load;
 
 public class Texture {
 
-    private final ByteBuffer imageData;
+    private ByteBuffer imageData;
+    private int width, height, channels;
     private final int textureID;
+    // The texture this one is a view into, or null when it owns its GL texture
+    private final Texture page;
     private final Vector2f uvScale = new Vector2f(1, 1);
     private final Vector2f uvOffset = new Vector2f(0, 0);
+    // Layer this texture's pixels were copied to, if it was put in a texture array
+    private TextureArray array = null;
+    private int layer = -1;
+    // Resident bindless handle, 0 until first asked for
+    private long handle = 0;
+    // Size of a precomputed mip chain, or -1 when GL generated the mips
+    private long levelBytes = -1;
+    // Set while the asset cache holds this texture: cleanup() leaves it alone then, so a mesh it's
+    // attached to can't delete it from under the cache and everyone else sharing it
+    private boolean cached = false;
+    private boolean deleted = false;
 
     public static void init(boolean flipVertically){
         stbi_set_flip_vertically_on_load(flipVertically);
     }
 
     public Texture(ByteBuffer image, int width, int height, int channels) {
+        page = null;
+        textureID = glGenTextures();
+        setRepeat(false);
+        setImage(image, width, height, channels);
+    }
+
+    // An empty texture for subclasses that fill it themselves
+    protected Texture() {
+        page = null;
+        textureID = glGenTextures();
+        setRepeat(false);
+    }
+    protected int id() {
+        return textureID;
+    }
+
+    // A view of part of another texture (an atlas page); it shares the GL texture and only
+    // carries its own uvScale/uvOffset
+    private Texture(Texture page, float offsetU, float offsetV, float scaleU, float scaleV) {
+        this.page = page;
+        this.textureID = page.textureID;
+        this.width = Math.round(page.width * scaleU);
+        this.height = Math.round(page.height * scaleV);
+        this.uvOffset.set(offsetU, offsetV);
+        this.uvScale.set(scaleU, scaleV);
+    }
+    public Texture view(float offsetU, float offsetV, float scaleU, float scaleV) {
+        return new Texture(page(), offsetU, offsetV, scaleU, scaleV);
+    }
+    // The texture owning the GL object; views of the same page can share draws
+    public Texture page() {
+        return page == null ? this : page;
+    }
+    public boolean isView() {
+        return page != null;
+    }
+
+    // A single white pixel, standing in for a texture that is still loading
+    public static Texture placeholder() {
+        ByteBuffer pixel = BufferUtils.createByteBuffer(4);
+        pixel.put(0, (byte) -1).put(1, (byte) -1).put(2, (byte) -1).put(3, (byte) -1);
+        return new Texture(pixel, 1, 1, 4);
+    }
+
+    // Replace the pixels (and size) of this texture, keeping its id and wrap settings
+    public void setImage(ByteBuffer image, int width, int height, int channels) {
         this.imageData = image;
+        this.width = width;
+        this.height = height;
+        this.channels = channels;
+        this.levelBytes = -1;
         Log.writeln(" - loaded: " + width + "x" + height + "x" + channels);
 
-        textureID = glGenTextures();
         glBindTexture(GL_TEXTURE_2D, textureID);
 
         // Filtering
 //        glTexParameteri(GL_TEXTURE_2D, GL_TEXTURE_MIN_FILTER, GL_LINEAR);
 //        glTexParameteri(GL_TEXTURE_2D, GL_TEXTURE_MAG_FILTER, GL_LINEAR);
 
-        setRepeat(false);
-
         // Format matching
         int format = (channels == 3) ? GL_RGB : GL_RGBA;
         glTexImage2D(GL_TEXTURE_2D, 0, format, width, height, 0, format, GL_UNSIGNED_BYTE, imageData);
@@ -44,6 +108,44 @@ public class Texture {
         glBindTexture(GL_TEXTURE_2D, 0);
     }
 
+    // Replace the pixels from the bound GL_PIXEL_UNPACK_BUFFER; the GPU copies them in its own
+    // time, so no CPU copy is kept
+    public void setImageFromUnpackBuffer(long offset, int width, int height, int channels) {
+        this.imageData = null;
+        this.width = width;
+        this.height = height;
+        this.channels = channels;
+        this.levelBytes = -1;
+
+        glBindTexture(GL_TEXTURE_2D, textureID);
+        int format = (channels == 3) ? GL_RGB : GL_RGBA;
+        glTexImage2D(GL_TEXTURE_2D, 0, format, width, height, 0, format, GL_UNSIGNED_BYTE, offset);
+        glGenerateMipmap(GL_TEXTURE_2D);
+        glBindTexture(GL_TEXTURE_2D, 0);
+    }
+
+    // Replace the pixels with a precomputed mip chain, level 0 first, keeping the id and wrap
+    // settings. Compressed levels (internalFormat one of the GL_COMPRESSED_* formats) go up as they
+    // are; otherwise they're RGBA8. Nothing is kept on the CPU side.
+    public void setLevels(int internalFormat, boolean compressed, ByteBuffer[] levels, int[] widths, int[] heights) {
+        this.imageData = null;
+        this.width = widths[0];
+        this.height = heights[0];
+        this.channels = 4;
+        this.levelBytes = 0;
+        glBindTexture(GL_TEXTURE_2D, textureID);
+        for (int level = 0; level < levels.length; level++) {
+            if (compressed)
+                glCompressedTexImage2D(GL_TEXTURE_2D, level, internalFormat, widths[level], heights[level], 0, levels[level]);
+            else
+                glTexImage2D(GL_TEXTURE_2D, level, internalFormat, widths[level], heights[level], 0, GL_RGBA, GL_UNSIGNED_BYTE, levels[level]);
+            levelBytes += levels[level].remaining();
+            GraphicsManager.countUpload(levels[level].remaining());
+        }
+        glTexParameteri(GL_TEXTURE_2D, GL_TEXTURE_MAX_LEVEL, levels.length - 1);
+        glBindTexture(GL_TEXTURE_2D, 0);
+    }
+
     public void pushParamsToShader(Shader shader, int textureUnit) {
         shader.requiredParameter("texture"+ textureUnit).set(textureUnit);
         shader.requiredParameter("uvScale").set(uvScale);
@@ -55,7 +157,92 @@ public class Texture {
         glBindTexture(GL_TEXTURE_2D, textureID);
     }
 
+    // Bindless handle for this texture, made resident the first time it's asked for, or 0 when
+    // bindless textures aren't available. GL freezes the texture's parameters once it has one.
+    public long handle(){
+        if (handle == 0 && page == null && TextureArray.isBindlessSupported()) {
+            handle = glGetTextureHandleARB(textureID);
+            glMakeTextureHandleResidentARB(handle);
+        }
+        return handle;
+    }
+
+    // The texture array holding a copy of these pixels, and which layer
+    public TextureArray array(){
+        return array;
+    }
+    public int layer(){
+        return layer;
+    }
+    void setArrayLayer(TextureArray array, int layer){
+        this.array = layer < 0 ? null : array;
+        this.layer = layer;
+    }
+    ByteBuffer imageData(){
+        return imageData;
+    }
+    int channels(){
+        return channels;
+    }
+
+    public int width(){
+        return width;
+    }
+    public int height(){
+        return height;
+    }
+    // Memory held by the decoded pixels, and by the texture with its mip chain (a third more)
+    public long cpuBytes(){
+        return imageData == null || page != null ? 0 : imageData.capacity();
+    }
+    public long gpuBytes(){
+        if (page != null)
+            return 0;
+        return levelBytes >= 0 ? levelBytes : (long) width * height * 4 * 4 / 3;
+    }
+
+    // Forget the CPU copy of the pixels once the caller has freed them; the GL texture keeps its copy
+    public void releaseImage() {
+        imageData = null;
+    }
+    // Free the CPU copy of pixels that were decoded by STB, then forget it
+    public void freeImage() {
+        if (imageData != null && page == null)
+            stbi_image_free(imageData);
+        releaseImage();
+    }
+
+    public Texture setCached(boolean cached) {
+        this.cached = cached;
+        return this;
+    }
+
+    // Stop sampling below this mip level, e.g. where atlas gutters run out
+    public Texture setMaxLevel(int level) {
+        glBindTexture(GL_TEXTURE_2D, textureID);
+        glTexParameteri(GL_TEXTURE_2D, GL_TEXTURE_MAX_LEVEL, level);
+        glBindTexture(GL_TEXTURE_2D, 0);
+        return this;
+    }
+
+    public Vector2f uvScale() {
+        return uvScale;
+    }
+    public Vector2f uvOffset() {
+        return uvOffset;
+    }
+
     public void cleanup(){
+        // The page owns the GL texture; the cache cleans up what it holds when it evicts it
+        if(page != null || cached || deleted)
+            return;
+        deleted = true;
+        if (array != null)
+            array.remove(layer);
+        array = null;
+        if (handle != 0)
+            glMakeTextureHandleNonResidentARB(handle);
+        handle = 0;
         glDeleteTextures(textureID);
     }
 
@@ -0,0 +1,161 @@
+package lucenforge.graphics;
+
+import lucenforge.files.Log;
+import lucenforge.files.Properties;
+import org.lwjgl.opengl.GL;
+import org.lwjgl.opengl.GLCapabilities;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+
+import static org.lwjgl.opengl.GL30.*;
+
+// Textures of one size packed as layers of a GL_TEXTURE_2D_ARRAY, so every mesh sampling one of
+// them draws with the same bind and only a per-draw layer attribute changes. Shaders opt in with
+//   layout (location = N) in float textureLayer;   uniform sampler2DArray textureArray0;
+// and sample texture(textureArray0, vec3(uv, textureLayer)). Arrays bind to their own texture unit,
+// so a shader can sample texture0 next to textureArray0. Where ARB_bindless_texture is available,
+// shaders can instead take
+//   layout (location = N) in uvec2 textureHandle;
+// and sample texture(sampler2D(textureHandle), uv), with no binds at all (see Texture.handle()).
+public class TextureArray {
+
+    // Unit textureArray0 samples from, clear of the units plain textures use
+    public static final int TEXTURE_UNIT = 8;
+
+    // Every array created through insert, looked up by layer size
+    private static final ArrayList<TextureArray> arrays = new ArrayList<>();
+    // Array last bound per texture unit, so a batch of meshes on one array binds it once
+    private static final TextureArray[] bound = new TextureArray[16];
+    private static Boolean bindlessSupported = null;
+
+    private final int textureID;
+    private final int width, height;
+    private final boolean[] used;
+    private int layerCount = 0;
+    private boolean mipsDirty = false;
+
+    public TextureArray(int width, int height, int capacity) {
+        this.width = width;
+        this.height = height;
+        this.used = new boolean[Math.max(1, Math.min(capacity, glGetInteger(GL_MAX_ARRAY_TEXTURE_LAYERS)))];
+        textureID = glGenTextures();
+        glBindTexture(GL_TEXTURE_2D_ARRAY, textureID);
+        glTexImage3D(GL_TEXTURE_2D_ARRAY, 0, GL_RGBA8, width, height, used.length, 0, GL_RGBA, GL_UNSIGNED_BYTE, (ByteBuffer) null);
+        glTexParameteri(GL_TEXTURE_2D_ARRAY, GL_TEXTURE_MIN_FILTER, GL_LINEAR_MIPMAP_LINEAR);
+        glTexParameteri(GL_TEXTURE_2D_ARRAY, GL_TEXTURE_MAG_FILTER, GL_LINEAR);
+        glBindTexture(GL_TEXTURE_2D_ARRAY, 0);
+    }
+
+    // Move a texture's pixels into a layer of an array of its size, making one if needed.
+    // The texture keeps its own GL texture for draws that don't use arrays.
+    public static Texture insert(Texture texture) {
+        if (texture.isView() || texture.imageData() == null) {
+            Log.writeln(Log.WARNING, "Texture has no pixels of its own to put in a texture array");
+            return texture;
+        }
+        if (texture.array() != null)
+            return texture;
+        TextureArray target = null;
+        for (TextureArray array : arrays) {
+            if (array.width == texture.width() && array.height == texture.height() && array.layerCount < array.used.length) {
+                target = array;
+                break;
+            }
+        }
+        if (target == null) {
+            target = new TextureArray(texture.width(), texture.height(), Properties.getInt("graphics", "texture_array_layers", 64));
+            arrays.add(target);
+        }
+        int layer = target.add(texture.imageData(), texture.channels());
+        texture.setArrayLayer(target, layer);
+        return texture;
+    }
+
+    // Upload pixels into the first free layer and return it
+    public int add(ByteBuffer pixels, int channels) {
+        int layer = 0;
+        while (layer < used.length && used[layer])
+            layer++;
+        if (layer == used.length) {
+            Log.writeln(Log.ERROR, "Texture array " + width + "x" + height + " is full");
+            return -1;
+        }
+        glBindTexture(GL_TEXTURE_2D_ARRAY, textureID);
+        glTexSubImage3D(GL_TEXTURE_2D_ARRAY, 0, 0, 0, layer, width, height, 1, channels == 3 ? GL_RGB : GL_RGBA, GL_UNSIGNED_BYTE, pixels);
+        glBindTexture(GL_TEXTURE_2D_ARRAY, 0);
+        GraphicsManager.countUpload((long) width * height * channels);
+        used[layer] = true;
+        layerCount++;
+        mipsDirty = true;
+        return layer;
+    }
+
+    // Free a layer for reuse; its pixels stay until overwritten
+    public void remove(int layer) {
+        if (layer < 0 || layer >= used.length || !used[layer])
+            return;
+        used[layer] = false;
+        layerCount--;
+    }
+
+    // Bind to a unit unless it's already there; mips are rebuilt once after a run of adds
+    public void bind(int textureUnit) {
+        if (mipsDirty) {
+            glBindTexture(GL_TEXTURE_2D_ARRAY, textureID);
+            glGenerateMipmap(GL_TEXTURE_2D_ARRAY);
+            glBindTexture(GL_TEXTURE_2D_ARRAY, 0);
+            mipsDirty = false;
+            // That unbound whichever unit was active
+            forgetBindings();
+        }
+        if (bound[textureUnit] == this)
+            return;
+        glActiveTexture(GL_TEXTURE0 + textureUnit);
+        glBindTexture(GL_TEXTURE_2D_ARRAY, textureID);
+        // Plain textures bind to whatever unit is active; leave it on theirs
+        glActiveTexture(GL_TEXTURE0);
+        bound[textureUnit] = this;
+    }
+
+    // Forget what's bound, for when something outside this class may have changed it
+    public static void forgetBindings() {
+        Arrays.fill(bound, null);
+    }
+
+    // Bindless handles, unless disabled in the properties
+    public static boolean isBindlessSupported() {
+        if (bindlessSupported == null) {
+            GLCapabilities caps = GL.getCapabilities();
+            bindlessSupported = caps.GL_ARB_bindless_texture && Properties.getBool("graphics", "bindless_textures", true);
+        }
+        return bindlessSupported;
+    }
+
+    public int width() {
+        return width;
+    }
+    public int height() {
+        return height;
+    }
+    public int layerCount() {
+        return layerCount;
+    }
+    public int capacity() {
+        return used.length;
+    }
+
+    public void cleanup() {
+        glDeleteTextures(textureID);
+        arrays.remove(this);
+        for (int unit = 0; unit < bound.length; unit++) {
+            if (bound[unit] == this)
+                bound[unit] = null;
+        }
+    }
+    public static void cleanupAll() {
+        for (TextureArray array : new ArrayList<>(arrays))
+            array.cleanup();
+    }
+}
@@ -0,0 +1,198 @@
+package lucenforge.graphics;
+
+import lucenforge.files.Log;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.LinkedHashMap;
+
+import static org.lwjgl.system.MemoryUtil.*;
+
+// Packs many RGBA images into shared square pages with a skyline packer and hands out Texture
+// views whose uvScale/uvOffset address each image. Meshes and sprites using views of one page
+// can then be drawn together. Every image is surrounded by a gutter of its own edge pixels
+// (padding wide) and placed on a grid of the largest power of two within the padding, which
+// keeps the first log2 of that many mip levels from bleeding; the pages stop at that level.
+public class TextureAtlas {
+
+    private record Image(String name, ByteBuffer pixels, int width, int height) {}
+
+    // The skyline of a page: segment i covers [x[i], x[i] + width[i]) at height y[i]
+    private static final class Skyline {
+        final ArrayList<int[]> segments = new ArrayList<>(); // x, y, width
+        Skyline(int size) {
+            segments.add(new int[]{0, 0, size});
+        }
+    }
+
+    private final int pageSize;
+    private final int padding;
+    private final int alignment;
+    private final ArrayList<Image> pending = new ArrayList<>();
+    private final ArrayList<Texture> pages = new ArrayList<>();
+    private final LinkedHashMap<String, Texture> views = new LinkedHashMap<>();
+
+    public TextureAtlas(int pageSize, int padding) {
+        this.pageSize = pageSize;
+        this.padding = Math.max(0, padding);
+        this.alignment = Math.max(1, Integer.highestOneBit(Math.max(1, this.padding)));
+    }
+
+    // Queue tightly packed RGBA pixels; they're copied during build, so the caller may free them after
+    public TextureAtlas add(String name, ByteBuffer rgba, int width, int height) {
+        pending.add(new Image(name, rgba, width, height));
+        return this;
+    }
+
+    // Pack everything added so far into new pages and upload them
+    public TextureAtlas build() {
+        // Tallest first keeps the skyline flat
+        pending.sort(Comparator.comparingInt((Image image) -> image.height).thenComparingInt(image -> image.width).reversed());
+        ArrayList<Skyline> skylines = new ArrayList<>();
+        ArrayList<ByteBuffer> pixels = new ArrayList<>();
+        // Page, x, y, width and height of each image that fit, in pixels
+        ArrayList<int[]> placements = new ArrayList<>();
+        ArrayList<String> placementNames = new ArrayList<>();
+        int[] placement = new int[2];
+        for (Image image : pending) {
+            int width = alignUp(image.width + padding * 2);
+            int height = alignUp(image.height + padding * 2);
+            if (width > pageSize || height > pageSize) {
+                Log.writeln(Log.ERROR, "Image \"" + image.name + "\" (" + image.width + "x" + image.height + ") does not fit a " + pageSize + " atlas page");
+                continue;
+            }
+            int page = -1;
+            for (int p = 0; p < skylines.size() && page < 0; p++) {
+                if (insert(skylines.get(p), width, height, placement))
+                    page = p;
+            }
+            if (page < 0) {
+                skylines.add(new Skyline(pageSize));
+                pixels.add(memCalloc(pageSize * pageSize * 4));
+                page = skylines.size() - 1;
+                insert(skylines.get(page), width, height, placement);
+            }
+            blit(pixels.get(page), image, placement[0], placement[1], width, height);
+            placements.add(new int[]{pages.size() + page, placement[0] + padding, placement[1] + padding, image.width, image.height});
+            placementNames.add(image.name);
+        }
+        pending.clear();
+
+        int firstPage = pages.size();
+        int mipLevels = Integer.numberOfTrailingZeros(alignment);
+        for (ByteBuffer page : pixels) {
+            Texture texture = new Texture(page, pageSize, pageSize, 4);
+            texture.setMaxLevel(mipLevels);
+            pages.add(texture);
+            // The GL copy is enough; the page keeps no pixels of its own
+            memFree(page);
+            texture.releaseImage();
+        }
+        float inverse = 1f / pageSize;
+        for (int i = 0; i < placements.size(); i++) {
+            int[] p = placements.get(i);
+            views.put(placementNames.get(i), pages.get(p[0]).view(p[1] * inverse, p[2] * inverse, p[3] * inverse, p[4] * inverse));
+        }
+        Log.writeln(Log.TELEMETRY, "Packed " + views.size() + " images into " + pages.size() + " atlas pages (" + (pages.size() - firstPage) + " new)");
+        return this;
+    }
+    // Bottom-left skyline: the lowest spot the rectangle fits, ties going to the narrower fit
+    private static boolean insert(Skyline skyline, int width, int height, int[] placement) {
+        ArrayList<int[]> segments = skyline.segments;
+        int pageWidth = segments.get(segments.size() - 1)[0] + segments.get(segments.size() - 1)[2];
+        int bestIndex = -1, bestY = Integer.MAX_VALUE, bestWaste = Integer.MAX_VALUE;
+        for (int i = 0; i < segments.size(); i++) {
+            int x = segments.get(i)[0];
+            if (x + width > pageWidth)
+                break;
+            // The rectangle rests on the highest segment it spans
+            int y = 0, span = 0, waste = 0;
+            for (int j = i; span < width; j++) {
+                y = Math.max(y, segments.get(j)[1]);
+                span += segments.get(j)[2];
+            }
+            if (y + height > pageWidth)
+                continue;
+            span = 0;
+            for (int j = i; span < width; j++) {
+                int covered = Math.min(segments.get(j)[2], width - span);
+                waste += (y - segments.get(j)[1]) * covered;
+                span += segments.get(j)[2];
+            }
+            if (y < bestY || (y == bestY && waste < bestWaste)) {
+                bestIndex = i;
+                bestY = y;
+                bestWaste = waste;
+            }
+        }
+        if (bestIndex < 0)
+            return false;
+        int x = segments.get(bestIndex)[0];
+        placement[0] = x;
+        placement[1] = bestY;
+
+        // Replace the covered segments with the new top, keeping what sticks out on the right
+        int end = x + width;
+        int i = bestIndex;
+        while (i < segments.size() && segments.get(i)[0] < end) {
+            int[] segment = segments.get(i);
+            int segmentEnd = segment[0] + segment[2];
+            if (segmentEnd > end) {
+                segment[2] = segmentEnd - end;
+                segment[0] = end;
+                break;
+            }
+            segments.remove(i);
+        }
+        segments.add(bestIndex, new int[]{x, bestY + height, width});
+        // Merge neighbours at the same height
+        for (int j = segments.size() - 1; j > 0; j--) {
+            if (segments.get(j)[1] == segments.get(j - 1)[1]) {
+                segments.get(j - 1)[2] += segments.get(j)[2];
+                segments.remove(j);
+            }
+        }
+        return true;
+    }
+
+    // Copy the image into its cell with the gutter filled by its clamped edge pixels
+    private void blit(ByteBuffer page, Image image, int cellX, int cellY, int cellWidth, int cellHeight) {
+        long pageAddress = memAddress(page);
+        long imageAddress = memAddress(image.pixels);
+        for (int row = 0; row < cellHeight; row++) {
+            int sourceRow = Math.max(0, Math.min(image.height - 1, row - padding));
+            long source = imageAddress + (long) sourceRow * image.width * 4;
+            long target = pageAddress + ((long) (cellY + row) * pageSize + cellX) * 4;
+            int left = padding, right = cellWidth - padding - image.width;
+            int first = memGetInt(source), last = memGetInt(source + (image.width - 1) * 4L);
+            for (int i = 0; i < left; i++)
+                memPutInt(target + i * 4L, first);
+            memCopy(source, target + left * 4L, image.width * 4L);
+            for (int i = 0; i < right; i++)
+                memPutInt(target + (left + image.width + i) * 4L, last);
+        }
+    }
+
+    private int alignUp(int size) {
+        return (size + alignment - 1) / alignment * alignment;
+    }
+
+    // View of a packed image, or null if it wasn't added or didn't fit
+    public Texture get(String name) {
+        return views.get(name);
+    }
+    public int pageCount() {
+        return pages.size();
+    }
+    public Texture page(int index) {
+        return pages.get(index);
+    }
+
+    public void cleanup() {
+        for (Texture page : pages)
+            page.cleanup();
+        pages.clear();
+        views.clear();
+    }
+}
@@ -0,0 +1,96 @@
+package lucenforge.graphics;
+
+import lucenforge.files.Log;
+import lucenforge.files.Properties;
+
+import java.util.ArrayList;
+
+// Moves StreamedTexture residency each frame: finer levels go up for textures drawn larger than
+// their resident detail, within a per-frame time budget, and when the resident total passes the
+// memory budget the finest levels of the least recently requested textures are dropped
+public class TextureStreamer {
+
+    private static final ArrayList<StreamedTexture> textures = new ArrayList<>();
+    private static long frame = 0;
+    private static long budgetBytes = -1;
+    private static long uploadBudgetNanos;
+    // A texture nobody asked about for this many frames keeps its level until the budget needs it
+    private static final int IDLE_FRAMES = 60;
+
+    static void register(StreamedTexture texture) {
+        if (!textures.contains(texture))
+            textures.add(texture);
+    }
+    static void unregister(StreamedTexture texture) {
+        textures.remove(texture);
+    }
+    static long frame() {
+        return frame;
+    }
+
+    // Render Loop Iteration: stream levels in and out
+    public static void update() {
+        frame++;
+        if (textures.isEmpty())
+            return;
+        if (budgetBytes < 0) {
+            budgetBytes = (long) Properties.getInt("graphics", "texture_stream_budget_mb", 256) << 20;
+            uploadBudgetNanos = (long) (Properties.getFloat("graphics", "texture_stream_ms", 1f) * 1_000_000);
+        }
+
+        // Raise the textures furthest below what they're drawn at first, one level per pass
+        long start = System.nanoTime();
+        boolean raised = true;
+        while (raised && System.nanoTime() - start < uploadBudgetNanos) {
+            raised = false;
+            StreamedTexture neediest = null;
+            int neediestGap = 0;
+            for (StreamedTexture texture : textures) {
+                int gap = texture.residentBase() - texture.wantedLevel(frame, IDLE_FRAMES);
+                if (gap > neediestGap && residentBytes() + texture.finestResidentBytes() * 4 <= budgetBytes) {
+                    neediest = texture;
+                    neediestGap = gap;
+                }
+            }
+            if (neediest != null) {
+                neediest.raise();
+                raised = true;
+            }
+        }
+
+        // Over budget: drop detail nobody is asking for, oldest requests first
+        long resident = residentBytes();
+        while (resident > budgetBytes) {
+            StreamedTexture victim = null;
+            for (StreamedTexture texture : textures) {
+                if (texture.residentBase() >= texture.levelCount() - 1)
+                    continue;
+                boolean surplus = texture.residentBase() < texture.wantedLevel(frame, IDLE_FRAMES);
+                boolean victimSurplus = victim != null && victim.residentBase() < victim.wantedLevel(frame, IDLE_FRAMES);
+                if (victim == null || (surplus && !victimSurplus)
+                        || (surplus == victimSurplus && texture.lastRequestFrame() < victim.lastRequestFrame()))
+                    victim = texture;
+            }
+            if (victim == null)
+                break;
+            resident -= victim.finestResidentBytes();
+            victim.drop();
+        }
+    }
+
+    public static long residentBytes() {
+        long bytes = 0;
+        for (StreamedTexture texture : textures)
+            bytes += texture.gpuBytes();
+        return bytes;
+    }
+    public static int textureCount() {
+        return textures.size();
+    }
+
+    public static void logStats() {
+        Log.writeln(Log.TELEMETRY, "Texture streaming: " + textures.size() + " textures, " + (residentBytes() >> 10) + " KiB resident of " + (budgetBytes >> 10) + " KiB");
+    }
+
+    private TextureStreamer(){} // Prevent instantiation
+}
@@ -1,12 +1,8 @@
 package lucenforge.graphics.primitives;
 
 import lucenforge.graphics.primitives.mesh.Mesh;
-import lucenforge.graphics.primitives.mesh.Vertex;
-import org.joml.Vector2f;
+import lucenforge.graphics.primitives.mesh.MeshData;
 import org.joml.Vector3f;
-import org.joml.Vector3i;
-
-import java.util.ArrayList;
 
 public class Quadrilateral extends Mesh {
 
@@ -17,41 +13,40 @@ public class Quadrilateral extends Mesh {
 
     public void setCorners(Vector3f p1, Vector3f p2, Vector3f p3, Vector3f p4){
         // Define the vertices of the quadrilateral
-        ArrayList<Vertex> verts = new ArrayList<>();
-        verts.add(new Vertex(new Vector3f(p1.x, p1.y, p1.z)));
-        verts.add(new Vertex(new Vector3f(p2.x, p2.y, p2.z)));
-        verts.add(new Vertex(new Vector3f(p3.x, p3.y, p3.z)));
-        verts.add(new Vertex(new Vector3f(p4.x, p4.y, p4.z)));
+        MeshData data = new MeshData(true, true, 4, 2);
+        data.addVertex(p1.x, p1.y, p1.z);
+        data.addVertex(p2.x, p2.y, p2.z);
+        data.addVertex(p3.x, p3.y, p3.z);
+        data.addVertex(p4.x, p4.y, p4.z);
 
         // Add UV coordinates
         float width = 1f;
         float height = 1f;
-        verts.get(0).texture = new Vector2f(0  , 0  ); // bottom-left
-        verts.get(1).texture = new Vector2f(0  , height); // top-left
-        verts.get(2).texture = new Vector2f(width , height); // top-right
-        verts.get(3).texture = new Vector2f(width , 0  ); // bottom-right
+        data.setTexCoord(0, 0    , 0     ); // bottom-left
+        data.setTexCoord(1, 0    , height); // top-left
+        data.setTexCoord(2, width, height); // top-right
+        data.setTexCoord(3, width, 0     ); // bottom-right
 
         // Define the indices for the two triangles that make up the quadrilateral
-        ArrayList<Vector3i> faces = new ArrayList<Vector3i>();
-        faces.add(new Vector3i(0, 1, 2));  // Lower-left triangle
-        faces.add(new Vector3i(0, 2, 3));  // Upper-right triangle
+        data.addFace(0, 1, 2);  // Lower-left triangle
+        data.addFace(0, 2, 3);  // Upper-right triangle
 
-        computeNormals(false, verts, faces);
+        computeNormals(false, data);
 
-        super.setTopology(verts, faces);
+        super.setTopology(data);
     }
 
     public void update(Vector3f p1, Vector3f p2, Vector3f p3, Vector3f p4) {
-        // Update the vertices of the quadrilateral
-        ArrayList<Vertex> verts = new ArrayList<>();
-        verts.add(new Vertex(new Vector3f(p1.x, p1.y, p1.z)));
-        verts.add(new Vertex(new Vector3f(p2.x, p2.y, p2.z)));
-        verts.add(new Vertex(new Vector3f(p3.x, p3.y, p3.z)));
-        verts.add(new Vertex(new Vector3f(p4.x, p4.y, p4.z)));
+        // Update the vertices of the quadrilateral in place
+        MeshData data = data();
+        data.setPosition(0, p1.x, p1.y, p1.z);
+        data.setPosition(1, p2.x, p2.y, p2.z);
+        data.setPosition(2, p3.x, p3.y, p3.z);
+        data.setPosition(3, p4.x, p4.y, p4.z);
 
-        computeNormals(false, verts, faces());
+        computeNormals(false, data);
 
         // Update the vertex buffer with the new vertices
-        super.updateVerts(verts);
+        super.updateVerts();
     }
 }
@@ -0,0 +1,350 @@
+package lucenforge.graphics.primitives;
+
+import lucenforge.files.Log;
+import lucenforge.graphics.GraphicsManager;
+import lucenforge.graphics.Renderable;
+import lucenforge.graphics.Texture;
+import lucenforge.graphics.primitives.mesh.StreamBuffer;
+import lucenforge.graphics.shaders.Shader;
+import lucenforge.graphics.shaders.VertexAttributeType;
+import org.joml.Matrix4f;
+import org.joml.Vector2f;
+
+import java.nio.ByteBuffer;
+import java.nio.IntBuffer;
+import java.util.ArrayList;
+import java.util.HashMap;
+
+import static org.lwjgl.opengl.ARBVertexArrayObject.*;
+import static org.lwjgl.opengl.GL20.*;
+import static org.lwjgl.opengl.GL32.glDrawElementsBaseVertex;
+import static org.lwjgl.system.MemoryUtil.*;
+
+// Immediate mode 2D renderer: quads, lines and sprites submitted during a frame are collected
+// into runs of consecutive submissions sharing a shader and texture, uploaded into one streamed
+// vertex buffer and drawn with one call per run, in submission order so later quads still draw
+// over earlier ones. Nothing is retained between frames. Add it to a RenderLayer as a Renderable.
+public class SpriteBatch implements Renderable {
+
+    // Position (3 floats), texture coordinate (2 floats), color (4 normalized bytes)
+    private static final int VERTEX_BYTES = 24;
+    private static final int QUAD_BYTES = VERTEX_BYTES * 4;
+    private static final int COLOR_OFFSET = 20;
+
+    // Quads submitted one after another with the same shader and texture
+    private static class Group {
+        Shader shader;
+        Texture texture;
+        ByteBuffer vertices;
+        int quads = 0;
+        int baseVertex = 0;
+
+        Group(Shader shader, Texture texture, int capacity) {
+            this.shader = shader;
+            this.texture = texture;
+            vertices = memAlloc(capacity * QUAD_BYTES);
+        }
+    }
+
+    // Runs of this frame are the first groupCount; the rest are kept for their allocations
+    private final ArrayList<Group> groups = new ArrayList<>();
+    private int groupCount = 0;
+
+    // Current drawing state
+    private Shader shader;
+    private int color = 0xFFFFFFFF; // ABGR so it lands as RGBA bytes in memory
+    private float depth = 0;
+    private final Matrix4f projection = new Matrix4f();
+    private final Matrix4f identity = new Matrix4f();
+
+    // GPU side, sized to the largest frame so far
+    private int vbo = 0;
+    private int ebo = 0;
+    private StreamBuffer streamBuffer = null;
+    private int quadCapacity = 0;
+    private ByteBuffer staging = null;
+    private final HashMap<Shader, Integer> vaos = new HashMap<>();
+
+    public SpriteBatch(Shader shader) {
+        this.shader = shader;
+    }
+
+    // State for the following submissions
+    public SpriteBatch setShader(Shader shader) {
+        this.shader = shader;
+        return this;
+    }
+    public SpriteBatch setColor(float r, float g, float b, float a) {
+        color = toByte(r) | (toByte(g) << 8) | (toByte(b) << 16) | (toByte(a) << 24);
+        return this;
+    }
+    public SpriteBatch setDepth(float depth) {
+        this.depth = depth;
+        return this;
+    }
+    // Sent to shaders with a "projection" uniform; identity (NDC coordinates) by default
+    public SpriteBatch setProjection(Matrix4f projection) {
+        this.projection.set(projection);
+        return this;
+    }
+
+    // Untextured axis aligned rectangle
+    public void rect(float x, float y, float width, float height) {
+        sprite(null, x, y, width, height, 0, 0, 1, 1);
+    }
+
+    public void sprite(Texture texture, float x, float y, float width, float height) {
+        sprite(texture, x, y, width, height, 0, 0, 1, 1);
+    }
+    // Sprite showing the [u0, u1] x [v0, v1] part of the texture
+    public void sprite(Texture texture, float x, float y, float width, float height, float u0, float v0, float u1, float v1) {
+        quad(texture,
+                x        , y         , u0, v0,
+                x        , y + height, u0, v1,
+                x + width, y + height, u1, v1,
+                x + width, y         , u1, v0);
+    }
+
+    // Arbitrary quad, corners in the same order as Quadrilateral (bottom-left, top-left, top-right, bottom-right)
+    public void quad(float x1, float y1, float x2, float y2, float x3, float y3, float x4, float y4) {
+        quad(null, x1, y1, 0, 0, x2, y2, 0, 1, x3, y3, 1, 1, x4, y4, 1, 0);
+    }
+
+    // Line of the given width between two points, built like Line
+    public void line(float x1, float y1, float x2, float y2, float width) {
+        float px = y2 - y1, py = -(x2 - x1);
+        float length = (float) Math.sqrt(px * px + py * py);
+        if (length == 0)
+            return;
+        px *= width / 2.0f / length;
+        py *= width / 2.0f / length;
+        quad(null,
+                x2 + px, y2 + py, 0, 0,
+                x2 - px, y2 - py, 0, 1,
+                x1 - px, y1 - py, 1, 1,
+                x1 + px, y1 + py, 1, 0);
+    }
+
+    private void quad(Texture texture,
+                      float x1, float y1, float u1, float v1,
+                      float x2, float y2, float u2, float v2,
+                      float x3, float y3, float u3, float v3,
+                      float x4, float y4, float u4, float v4) {
+        if (shader == null) {
+            Log.writeln(Log.ERROR, "SpriteBatch has no shader; skipping quad");
+            return;
+        }
+        // Atlas views draw with their page, their rectangle baked into the coordinates
+        if (texture != null && texture.isView()) {
+            Vector2f scale = texture.uvScale(), offset = texture.uvOffset();
+            u1 = u1 * scale.x + offset.x; v1 = v1 * scale.y + offset.y;
+            u2 = u2 * scale.x + offset.x; v2 = v2 * scale.y + offset.y;
+            u3 = u3 * scale.x + offset.x; v3 = v3 * scale.y + offset.y;
+            u4 = u4 * scale.x + offset.x; v4 = v4 * scale.y + offset.y;
+            texture = texture.page();
+        }
+        Group group = groupFor(shader, texture);
+        if ((group.quads + 1) * QUAD_BYTES > group.vertices.capacity())
+            group.vertices = memRealloc(group.vertices, group.vertices.capacity() * 2);
+        long address = memAddress(group.vertices) + (long) group.quads * QUAD_BYTES;
+        putVertex(address                    , x1, y1, u1, v1);
+        putVertex(address + VERTEX_BYTES     , x2, y2, u2, v2);
+        putVertex(address + VERTEX_BYTES * 2L, x3, y3, u3, v3);
+        putVertex(address + VERTEX_BYTES * 3L, x4, y4, u4, v4);
+        group.quads++;
+    }
+
+    private void putVertex(long address, float x, float y, float u, float v) {
+        memPutFloat(address     , x);
+        memPutFloat(address + 4 , y);
+        memPutFloat(address + 8 , depth);
+        memPutFloat(address + 12, u);
+        memPutFloat(address + 16, v);
+        memPutInt(address + COLOR_OFFSET, color);
+    }
+
+    // Extend the current run, or start a new one when the state changes. Earlier runs with the
+    // same state are not reused, since drawing into them would reorder overlapping quads.
+    private Group groupFor(Shader shader, Texture texture) {
+        if (groupCount > 0) {
+            Group last = groups.get(groupCount - 1);
+            if (last.shader == shader && last.texture == texture)
+                return last;
+        }
+        Group group;
+        if (groupCount < groups.size()) {
+            group = groups.get(groupCount);
+            group.shader = shader;
+            group.texture = texture;
+        } else {
+            group = new Group(shader, texture, 256);
+            groups.add(group);
+        }
+        groupCount++;
+        return group;
+    }
+
+    public int quadCount() {
+        int quads = 0;
+        for (int g = 0; g < groupCount; g++)
+            quads += groups.get(g).quads;
+        return quads;
+    }
+
+    // Upload everything submitted this frame and draw it, one call per run, then start over
+    @Override
+    public void render() {
+        int totalQuads = quadCount();
+        if (totalQuads == 0) {
+            clear();
+            return;
+        }
+        ensureCapacity(totalQuads);
+
+        // Groups go back to back so one write covers the frame
+        long offset = 0;
+        int baseVertex = 0;
+        for (int g = 0; g < groupCount; g++) {
+            Group group = groups.get(g);
+            group.baseVertex = baseVertex;
+            long bytes = (long) group.quads * QUAD_BYTES;
+            memCopy(memAddress(group.vertices), memAddress(staging) + offset, bytes);
+            offset += bytes;
+            baseVertex += group.quads * 4;
+        }
+        glBindBuffer(GL_ARRAY_BUFFER, vbo);
+        streamBuffer.write(memAddress(staging), offset);
+        glBindBuffer(GL_ARRAY_BUFFER, 0);
+        GraphicsManager.countUpload(offset);
+
+        int regionVertex = streamBuffer.region() * quadCapacity * 4;
+        for (int g = 0; g < groupCount; g++) {
+            Group group = groups.get(g);
+            if (group.quads == 0)
+                continue;
+            Shader groupShader = group.shader;
+            groupShader.bind();
+            if (groupShader.isUniformRequired("projection"))
+                groupShader.requiredParameter("projection").set(projection);
+            if (groupShader.isUniformRequired("view"))
+                groupShader.requiredParameter("view").set(identity);
+            if (groupShader.isUniformRequired("model"))
+                groupShader.requiredParameter("model").set(identity);
+            if (group.texture != null && groupShader.isUniformRequired("texture0")) {
+                group.texture.bind(0);
+                group.texture.pushParamsToShader(groupShader, 0);
+            }
+            if (groupShader.checkAndSendParametersToGPU()) {
+                glBindVertexArray(vaoFor(groupShader));
+                glDrawElementsBaseVertex(GL_TRIANGLES, group.quads * 6, GL_UNSIGNED_INT, 0, regionVertex + group.baseVertex);
+                glBindVertexArray(0);
+            }
+            groupShader.unbind();
+        }
+        streamBuffer.fence();
+        clear();
+    }
+
+    // Drop this frame's submissions, keeping the allocations
+    public void clear() {
+        for (Group group : groups) {
+            group.quads = 0;
+            group.shader = null;
+            group.texture = null;
+        }
+        groupCount = 0;
+    }
+
+    // Grow the GPU buffers to hold at least the given number of quads
+    private void ensureCapacity(int quads) {
+        if (quads <= quadCapacity)
+            return;
+        releaseBuffers();
+        quadCapacity = Math.max(quads, quadCapacity * 2);
+        staging = memAlloc(quadCapacity * QUAD_BYTES);
+
+        // Persistent storage is immutable, so growing means a new buffer
+        vbo = glGenBuffers();
+        glBindBuffer(GL_ARRAY_BUFFER, vbo);
+        streamBuffer = new StreamBuffer(vbo, (long) quadCapacity * QUAD_BYTES);
+        glBindBuffer(GL_ARRAY_BUFFER, 0);
+
+        // Every quad uses the same pattern, so the indices never change
+        IntBuffer indices = memAllocInt(quadCapacity * 6);
+        for (int q = 0; q < quadCapacity; q++) {
+            int base = q * 4;
+            indices.put(base).put(base + 1).put(base + 2);
+            indices.put(base).put(base + 2).put(base + 3);
+        }
+        indices.flip();
+        ebo = glGenBuffers();
+        glBindBuffer(GL_ELEMENT_ARRAY_BUFFER, ebo);
+        glBufferData(GL_ELEMENT_ARRAY_BUFFER, indices, GL_STATIC_DRAW);
+        glBindBuffer(GL_ELEMENT_ARRAY_BUFFER, 0);
+        memFree(indices);
+    }
+
+    // One vertex array per shader, since attribute locations differ between shaders
+    private int vaoFor(Shader shader) {
+        Integer existing = vaos.get(shader);
+        if (existing != null)
+            return existing;
+        int vao = glGenVertexArrays();
+        glBindVertexArray(vao);
+        glBindBuffer(GL_ARRAY_BUFFER, vbo);
+        glBindBuffer(GL_ELEMENT_ARRAY_BUFFER, ebo);
+        Integer posLoc = shader.getAttributeLocation(VertexAttributeType.POSITION_IN);
+        if (posLoc != null) {
+            glVertexAttribPointer(posLoc, 3, GL_FLOAT, false, VERTEX_BYTES, 0);
+            glEnableVertexAttribArray(posLoc);
+        } else {
+            Log.writeln(Log.ERROR, "Shader " + shader.name() + " has no position input!");
+        }
+        Integer texLoc = shader.getAttributeLocation(VertexAttributeType.TEXTURE_IN);
+        if (texLoc != null) {
+            glVertexAttribPointer(texLoc, 2, GL_FLOAT, false, VERTEX_BYTES, 12);
+            glEnableVertexAttribArray(texLoc);
+        }
+        Integer colorLoc = shader.getAttributeLocation(VertexAttributeType.COLOR_IN);
+        if (colorLoc != null) {
+            glVertexAttribPointer(colorLoc, 4, GL_UNSIGNED_BYTE, true, VERTEX_BYTES, COLOR_OFFSET);
+            glEnableVertexAttribArray(colorLoc);
+        }
+        glBindBuffer(GL_ARRAY_BUFFER, 0);
+        glBindVertexArray(0);
+        vaos.put(shader, vao);
+        return vao;
+    }
+
+    private void releaseBuffers() {
+        for (int vao : vaos.values())
+            glDeleteVertexArrays(vao);
+        vaos.clear();
+        if (streamBuffer != null)
+            streamBuffer.cleanup();
+        streamBuffer = null;
+        if (vbo != 0)
+            glDeleteBuffers(vbo);
+        if (ebo != 0)
+            glDeleteBuffers(ebo);
+        vbo = 0;
+        ebo = 0;
+        if (staging != null)
+            memFree(staging);
+        staging = null;
+    }
+
+    private static int toByte(float value) {
+        return Math.round(Math.max(0.0f, Math.min(1.0f, value)) * 255.0f);
+    }
+
+    @Override
+    public void cleanup() {
+        releaseBuffers();
+        quadCapacity = 0;
+        for (Group group : groups)
+            memFree(group.vertices);
+        groups.clear();
+        groupCount = 0;
+    }
+}
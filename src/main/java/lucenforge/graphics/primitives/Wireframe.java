@@ -1,27 +1,186 @@
 package lucenforge.graphics.primitives;
 
 import lucenforge.graphics.primitives.mesh.Mesh;
-import lucenforge.graphics.primitives.mesh.MeshGroup;
-import lucenforge.graphics.primitives.mesh.Vertex;
-import lucenforge.graphics.shaders.Shader;
-import org.joml.Vector3i;
+import lucenforge.graphics.primitives.mesh.MeshData;
 
-import java.util.ArrayList;
+import java.util.Arrays;
 
-public class Wireframe extends MeshGroup {
+// Edges of a mesh drawn as thin quads, all in one vertex buffer and one draw call. Edges shared by
+// two faces are only drawn once. When the target deforms, only the quads of edges touching moved
+// vertices are rebuilt and re-uploaded.
+public class Wireframe extends Mesh {
+
+    private final Mesh target;
+    private final float width;
+
+    // Unique edges as vertex pairs: edges[e * 2], edges[e * 2 + 1]
+    private int[] edges;
+    private int edgeCount;
+    // Edges touching each target vertex (CSR)
+    private int[] vertexEdgeStart;
+    private int[] vertexEdges;
+    // Target positions the quads were last built from
+    private float[] builtPositions;
+    private float[] currentPositions;
+    private boolean[] edgeStale;
+    // Target data version the quads were last checked against; a static target costs nothing
+    private int builtVersion;
 
     public Wireframe(Mesh target){
-        float width = 0.01f;
-        ArrayList<Vertex> vertices = target.vertices();
-        ArrayList<Vector3i> faces = target.faces();
-        for(Vector3i face : faces){
-            Line line1 = new Line(width, vertices.get(face.x).position, vertices.get(face.y).position);
-            Line line2 = new Line(width, vertices.get(face.y).position, vertices.get(face.z).position);
-            Line line3 = new Line(width, vertices.get(face.z).position, vertices.get(face.x).position);
-            addMesh(line1);
-            addMesh(line2);
-            addMesh(line3);
+        this(target, 0.01f);
+    }
+    public Wireframe(Mesh target, float width){
+        this.target = target;
+        this.width = width;
+        MeshData source = target.data();
+        findEdges(source);
+        buildVertexEdges(source.vertexCount());
+
+        builtPositions = new float[source.vertexCount() * 3];
+        currentPositions = new float[source.vertexCount() * 3];
+        edgeStale = new boolean[edgeCount];
+        source.getPositions(builtPositions);
+        builtVersion = source.version();
+
+        // Four corners and two triangles per edge, same attributes as a Line
+        MeshData data = new MeshData(true, true, edgeCount * 4, edgeCount * 2);
+        for (int e = 0; e < edgeCount; e++) {
+            int base = e * 4;
+            for (int corner = 0; corner < 4; corner++)
+                data.addVertex(0, 0, 0);
+            data.setTexCoord(base    , 0, 0);
+            data.setTexCoord(base + 1, 0, 1);
+            data.setTexCoord(base + 2, 1, 1);
+            data.setTexCoord(base + 3, 1, 0);
+            data.addFace(base, base + 1, base + 2);
+            data.addFace(base, base + 2, base + 3);
+            writeEdge(data, e);
+        }
+        setTopology(data);
+    }
+
+    // Collect every edge once using an open addressing set keyed on the sorted vertex pair
+    private void findEdges(MeshData source) {
+        int faceCount = source.faceCount();
+        int tableSize = Integer.highestOneBit(Math.max(4, faceCount * 3) * 2 - 1) << 1;
+        long[] table = new long[tableSize];
+        int mask = tableSize - 1;
+        edges = new int[faceCount * 6];
+        edgeCount = 0;
+        for (int f = 0; f < faceCount; f++) {
+            for (int corner = 0; corner < 3; corner++) {
+                int a = source.faceIndex(f, corner);
+                int b = source.faceIndex(f, (corner + 1) % 3);
+                if (a == b)
+                    continue;
+                // min < max, so a key is never 0 and 0 can mark empty slots
+                long key = ((long) Math.min(a, b) << 32) | Math.max(a, b);
+                int slot = (int) (mix(key) & mask);
+                while (table[slot] != 0 && table[slot] != key)
+                    slot = (slot + 1) & mask;
+                if (table[slot] == key)
+                    continue;
+                table[slot] = key;
+                edges[edgeCount * 2] = a;
+                edges[edgeCount * 2 + 1] = b;
+                edgeCount++;
+            }
         }
+        edges = Arrays.copyOf(edges, edgeCount * 2);
+    }
+
+    private static long mix(long key) {
+        key *= 0x9E3779B97F4A7C15L;
+        return key ^ (key >>> 29);
+    }
+
+    private void buildVertexEdges(int vertexCount) {
+        vertexEdgeStart = new int[vertexCount + 1];
+        for (int i = 0; i < edgeCount * 2; i++)
+            vertexEdgeStart[edges[i] + 1]++;
+        for (int v = 0; v < vertexCount; v++)
+            vertexEdgeStart[v + 1] += vertexEdgeStart[v];
+        vertexEdges = new int[edgeCount * 2];
+        int[] fill = Arrays.copyOf(vertexEdgeStart, vertexCount);
+        for (int i = 0; i < edgeCount * 2; i++)
+            vertexEdges[fill[edges[i]]++] = i / 2;
     }
 
+    // Rebuild the quad of one edge from builtPositions
+    private void writeEdge(MeshData data, int e) {
+        int a = edges[e * 2] * 3, b = edges[e * 2 + 1] * 3;
+        float ax = builtPositions[a], ay = builtPositions[a + 1], az = builtPositions[a + 2];
+        float bx = builtPositions[b], by = builtPositions[b + 1], bz = builtPositions[b + 2];
+        // Offset perpendicular to the edge in the xy plane, like Line
+        float px = by - ay, py = -(bx - ax);
+        float length = (float) Math.sqrt(px * px + py * py);
+        if (length > 0) {
+            px *= width / 2.0f / length;
+            py *= width / 2.0f / length;
+        } else {
+            px = width / 2.0f;
+            py = 0;
+        }
+        int base = e * 4;
+        data.setPosition(base    , bx + px, by + py, bz);
+        data.setPosition(base + 1, bx - px, by - py, bz);
+        data.setPosition(base + 2, ax - px, ay - py, az);
+        data.setPosition(base + 3, ax + px, ay + py, az);
+        // Flat normal of the quad, across its width and along the edge
+        float ux = -px, uy = -py, uz = 0;
+        float vx = ax - bx, vy = ay - by, vz = az - bz;
+        float nx = uy * vz - uz * vy, ny = uz * vx - ux * vz, nz = ux * vy - uy * vx;
+        float normalLength = (float) Math.sqrt(nx * nx + ny * ny + nz * nz);
+        if (normalLength > 0) {
+            nx /= normalLength;
+            ny /= normalLength;
+            nz /= normalLength;
+        }
+        for (int corner = 0; corner < 4; corner++)
+            data.setNormal(base + corner, nx, ny, nz);
+    }
+
+    // Rebuild the quads of edges whose vertices moved in the target since the last update
+    public void update() {
+        MeshData source = target.data();
+        MeshData data = data();
+        if (source == null || data == null || source.vertexCount() * 3 != currentPositions.length)
+            return;
+        if (source.version() == builtVersion)
+            return;
+        builtVersion = source.version();
+        source.getPositions(currentPositions);
+        int vertexCount = source.vertexCount();
+        boolean any = false;
+        for (int v = 0; v < vertexCount; v++) {
+            int i = v * 3;
+            if (currentPositions[i] == builtPositions[i] && currentPositions[i + 1] == builtPositions[i + 1] && currentPositions[i + 2] == builtPositions[i + 2])
+                continue;
+            for (int k = vertexEdgeStart[v]; k < vertexEdgeStart[v + 1]; k++)
+                edgeStale[vertexEdges[k]] = true;
+            any = true;
+        }
+        if (!any)
+            return;
+        float[] swap = builtPositions;
+        builtPositions = currentPositions;
+        currentPositions = swap;
+        // Dirty ranges in MeshData keep the upload down to the rebuilt quads
+        for (int e = 0; e < edgeCount; e++) {
+            if (edgeStale[e]) {
+                writeEdge(data, e);
+                edgeStale[e] = false;
+            }
+        }
+    }
+
+    public int edgeCount() {
+        return edgeCount;
+    }
+
+    @Override
+    public void render() {
+        update();
+        super.render();
+    }
 }
@@ -0,0 +1,186 @@
+package lucenforge.graphics.primitives.mesh;
+
+import lucenforge.files.Log;
+import lucenforge.graphics.GraphicsManager;
+import lucenforge.graphics.shaders.Shader;
+import lucenforge.graphics.shaders.VertexAttributeType;
+import org.joml.Vector3f;
+
+import java.nio.ByteBuffer;
+
+import static org.lwjgl.opengl.ARBVertexArrayObject.*;
+import static org.lwjgl.opengl.GL20.*;
+
+// One glTF primitive drawn straight from its file's binary chunk. Every primitive of a file shares
+// one GL buffer holding the whole chunk, and its vertex array points the attributes (and indices)
+// at the accessor offsets in the stored formats, so nothing is repacked on the way to the GPU.
+// There is no MeshData, so these meshes are never merged into static batches.
+public class GltfMesh extends Mesh {
+
+    // The binary chunk of one file, uploaded when the first primitive using it is initialized
+    public static final class SharedBuffer {
+        private ByteBuffer source;
+        private final long bytes;
+        private int id = 0;
+        private int users = 0;
+        private int primitives = 0;
+
+        public SharedBuffer(ByteBuffer source) {
+            this.source = source;
+            this.bytes = source.remaining();
+        }
+
+        int acquire() {
+            if (id == 0) {
+                id = glGenBuffers();
+                glBindBuffer(GL_ARRAY_BUFFER, id);
+                glBufferData(GL_ARRAY_BUFFER, source, GL_STATIC_DRAW);
+                glBindBuffer(GL_ARRAY_BUFFER, 0);
+                GraphicsManager.countUpload(bytes);
+                // The GL copy is all that's needed now; let the mapping go
+                source = null;
+            }
+            users++;
+            return id;
+        }
+        void release() {
+            if (--users == 0) {
+                glDeleteBuffers(id);
+                id = 0;
+            }
+        }
+        public long bytes() {
+            return bytes;
+        }
+    }
+
+    // An accessor bound to an attribute; glType is the accessor's component type, which glTF
+    // defines with the GL enum values
+    public record Attribute(VertexAttributeType type, int components, int glType, boolean normalized, int byteStride, long byteOffset) {}
+
+    private final SharedBuffer buffer;
+    private final int mode;
+    private final Attribute[] attributes;
+    private final int vertexCount;
+    // Index type is 0 for primitives drawn without indices
+    private final int indexType;
+    private final long indexOffset;
+    private final int indexCount;
+
+    private int vao = 0;
+
+    // Position bounds from the accessor, when the file gives them
+    private final Vector3f boundsMin = new Vector3f(), boundsMax = new Vector3f();
+    private boolean hasBounds = false;
+
+    public GltfMesh(SharedBuffer buffer, int mode, Attribute[] attributes, int vertexCount, int indexType, long indexOffset, int indexCount) {
+        this.buffer = buffer;
+        buffer.primitives++;
+        this.mode = mode;
+        this.attributes = attributes;
+        this.vertexCount = vertexCount;
+        this.indexType = indexType;
+        this.indexOffset = indexOffset;
+        this.indexCount = indexCount;
+    }
+
+    // Usage is ignored; the shared buffer is always static
+    @Override
+    public void init(Usage usage, Shader shader) {
+        setShader(shader);
+        if (vao != 0)
+            return;
+        int id = buffer.acquire();
+        vao = glGenVertexArrays();
+        glBindVertexArray(vao);
+        glBindBuffer(GL_ARRAY_BUFFER, id);
+        for (Attribute attribute : attributes) {
+            Integer location = shader.getAttributeLocation(attribute.type());
+            if (location == null)
+                continue;
+            glVertexAttribPointer(location, attribute.components(), attribute.glType(), attribute.normalized(), attribute.byteStride(), attribute.byteOffset());
+            glEnableVertexAttribArray(location);
+        }
+        for (VertexAttributeType required : VertexAttributeType.all()) {
+            if (shader.getAttributeLocation(required) != null && !hasAttribute(required) && required.components <= 4 && !required.isPerDraw())
+                Log.writeln(Log.WARNING, "glTF primitive has no " + required + " for shader " + shader.name());
+        }
+        // The same buffer also holds the indices
+        if (indexType != 0)
+            glBindBuffer(GL_ELEMENT_ARRAY_BUFFER, id);
+        glBindBuffer(GL_ARRAY_BUFFER, 0);
+        glBindVertexArray(0);
+    }
+
+    public GltfMesh setBounds(float[] min, float[] max) {
+        if (min == null || max == null || min.length < 3 || max.length < 3)
+            return this;
+        boundsMin.set(min[0], min[1], min[2]);
+        boundsMax.set(max[0], max[1], max[2]);
+        hasBounds = true;
+        return this;
+    }
+
+    @Override
+    protected float localBounds(Vector3f center) {
+        if (!hasBounds)
+            return -1;
+        center.set(boundsMin).add(boundsMax).mul(0.5f);
+        return boundsMax.distance(boundsMin) * 0.5f;
+    }
+
+    private boolean hasAttribute(VertexAttributeType type) {
+        for (Attribute attribute : attributes) {
+            if (attribute.type() == type)
+                return true;
+        }
+        return false;
+    }
+
+    @Override
+    public void render() {
+        Shader shader = shader();
+        if (vao == 0 || shader == null) {
+            Log.writeln(Log.ERROR, "Mesh not initialized; Cannot render!");
+            return;
+        }
+        if (texture() != null)
+            texture().pushParamsToShader(shader, 0);
+        pushParamsToShader();
+        if (!shader.checkAndSendParametersToGPU()) {
+            shader.unbind();
+            return;
+        }
+        glBindVertexArray(vao);
+        if (indexType != 0)
+            glDrawElements(mode, indexCount, indexType, indexOffset);
+        else
+            glDrawArrays(mode, 0, vertexCount);
+        glBindVertexArray(0);
+    }
+
+    public int vertexCount() {
+        return vertexCount;
+    }
+
+    @Override
+    public long cpuBytes() {
+        return 0;
+    }
+    @Override
+    public long gpuBytes() {
+        // Each primitive carries its share of the chunk, so a whole file adds up to it once
+        return buffer.id == 0 ? 0 : buffer.bytes / buffer.primitives;
+    }
+
+    @Override
+    public void cleanup() {
+        if (texture() != null)
+            texture().cleanup();
+        if (vao != 0) {
+            glDeleteVertexArrays(vao);
+            buffer.release();
+        }
+        vao = 0;
+    }
+}
@@ -0,0 +1,262 @@
+package lucenforge.graphics.primitives.mesh;
+
+import lucenforge.files.Log;
+import lucenforge.graphics.GraphicsManager;
+import lucenforge.graphics.shaders.Shader;
+import lucenforge.graphics.shaders.VertexAttributeType;
+import org.joml.Matrix4f;
+
+import java.nio.FloatBuffer;
+import java.util.Arrays;
+
+import static org.lwjgl.opengl.GL20.*;
+import static org.lwjgl.opengl.ARBVertexArrayObject.*;
+import static org.lwjgl.opengl.GL31.glDrawElementsInstanced;
+import static org.lwjgl.opengl.GL33.glVertexAttribDivisor;
+import static org.lwjgl.system.MemoryUtil.*;
+
+// One geometry drawn many times in a single glDrawElementsInstanced. Every instance has a model
+// matrix (shader input "instanceModel", applied after the mesh's own model matrix) and optionally
+// up to 4 custom floats (shader input "instanceData"). Instances are addressed by handles that
+// stay valid while other instances come and go; only the edited slots are re-uploaded.
+public class InstancedMesh extends Mesh {
+
+    private static final int MATRIX_FLOATS = 16;
+
+    private final int dataFloats;
+    private final int floatStride;
+
+    // Packed per instance data, in slot order
+    private FloatBuffer instances;
+    private int instanceCount = 0;
+    private int capacity;
+
+    // Handles map to slots; removing an instance moves the last slot into the hole
+    private int[] slotOfHandle;
+    private int[] handleOfSlot;
+    private int[] freeHandles;
+    private int freeHandleCount = 0;
+    private int handleCount = 0;
+
+    // Slots edited since the last upload, [dirtyStart, dirtyEnd)
+    private int dirtyStart = Integer.MAX_VALUE;
+    private int dirtyEnd = 0;
+
+    private int instanceVbo = 0;
+    private int gpuCapacity = 0;
+
+    public InstancedMesh() {
+        this(0, 64);
+    }
+    // dataFloats custom floats per instance (0 to 4), room for capacity instances before growing
+    public InstancedMesh(int dataFloats, int capacity) {
+        if (dataFloats < 0 || dataFloats > 4) {
+            Log.writeln(Log.ERROR, "Instances can carry 0 to 4 custom floats, not " + dataFloats + "; clamping");
+            dataFloats = Math.max(0, Math.min(4, dataFloats));
+        }
+        this.dataFloats = dataFloats;
+        this.floatStride = MATRIX_FLOATS + dataFloats;
+        this.capacity = Math.max(1, capacity);
+        instances = memAllocFloat(this.capacity * floatStride);
+        slotOfHandle = new int[this.capacity];
+        handleOfSlot = new int[this.capacity];
+        freeHandles = new int[this.capacity];
+    }
+
+    @Override
+    public void init(Usage usage, Shader shader) {
+        // Streamed geometry would need a base vertex per instance draw, which isn't worth it here
+        if (usage == Usage.STREAM) {
+            Log.writeln(Log.WARNING, "Instanced meshes don't support STREAM usage; using DYNAMIC");
+            usage = Usage.DYNAMIC;
+        }
+        super.init(usage, shader);
+        if (vao() == 0)
+            return;
+
+        instanceVbo = glGenBuffers();
+        glBindVertexArray(vao());
+        glBindBuffer(GL_ARRAY_BUFFER, instanceVbo);
+        allocateGpuBuffer();
+
+        int byteStride = floatStride * Float.BYTES;
+        Integer modelLoc = shader.getAttributeLocation(VertexAttributeType.INSTANCE_MODEL_IN);
+        if (modelLoc != null) {
+            // A mat4 input is four vec4 columns in consecutive locations
+            for (int column = 0; column < 4; column++) {
+                glVertexAttribPointer(modelLoc + column, 4, GL_FLOAT, false, byteStride, (long) column * 4 * Float.BYTES);
+                glEnableVertexAttribArray(modelLoc + column);
+                glVertexAttribDivisor(modelLoc + column, 1);
+            }
+        } else {
+            Log.writeln(Log.WARNING, "Shader " + shader.name() + " has no instanceModel input; all instances will overlap");
+        }
+        Integer dataLoc = shader.getAttributeLocation(VertexAttributeType.INSTANCE_DATA_IN);
+        if (dataLoc != null && dataFloats > 0) {
+            glVertexAttribPointer(dataLoc, dataFloats, GL_FLOAT, false, byteStride, (long) MATRIX_FLOATS * Float.BYTES);
+            glEnableVertexAttribArray(dataLoc);
+            glVertexAttribDivisor(dataLoc, 1);
+        }
+
+        glBindBuffer(GL_ARRAY_BUFFER, 0);
+        glBindVertexArray(0);
+    }
+
+    // Size the GPU buffer to the CPU capacity and upload every instance (buffer must be bound)
+    private void allocateGpuBuffer() {
+        gpuCapacity = capacity;
+        glBufferData(GL_ARRAY_BUFFER, (long) gpuCapacity * floatStride * Float.BYTES, GL_DYNAMIC_DRAW);
+        if (instanceCount > 0) {
+            glBufferSubData(GL_ARRAY_BUFFER, 0, memSlice(instances, 0, instanceCount * floatStride));
+            GraphicsManager.countUpload((long) instanceCount * floatStride * Float.BYTES);
+        }
+        clearDirty();
+    }
+
+    // Add an instance and get its handle
+    public int addInstance(Matrix4f model) {
+        ensureCapacity(instanceCount + 1);
+        int handle = freeHandleCount > 0 ? freeHandles[--freeHandleCount] : handleCount++;
+        int slot = instanceCount++;
+        slotOfHandle[handle] = slot;
+        handleOfSlot[slot] = handle;
+        model.get(slot * floatStride, instances);
+        for (int i = 0; i < dataFloats; i++)
+            instances.put(slot * floatStride + MATRIX_FLOATS + i, 0);
+        markDirty(slot);
+        return handle;
+    }
+
+    public void setInstance(int handle, Matrix4f model) {
+        if (!isLive(handle))
+            return;
+        int slot = slotOfHandle[handle];
+        model.get(slot * floatStride, instances);
+        markDirty(slot);
+    }
+
+    // Custom per instance floats; components beyond dataFloats are ignored
+    public void setInstanceData(int handle, float x, float y, float z, float w) {
+        if (!isLive(handle))
+            return;
+        int base = slotOfHandle[handle] * floatStride + MATRIX_FLOATS;
+        float[] values = {x, y, z, w};
+        for (int i = 0; i < dataFloats; i++)
+            instances.put(base + i, values[i]);
+        markDirty(slotOfHandle[handle]);
+    }
+
+    public Matrix4f getInstance(int handle, Matrix4f dest) {
+        if (!isLive(handle))
+            return dest;
+        return dest.set(slotOfHandle[handle] * floatStride, instances);
+    }
+
+    public void removeInstance(int handle) {
+        if (!isLive(handle))
+            return;
+        int slot = slotOfHandle[handle];
+        int last = --instanceCount;
+        // Fill the hole with the last instance so the live ones stay contiguous
+        if (slot != last) {
+            memCopy(memAddress(instances) + (long) last * floatStride * Float.BYTES,
+                    memAddress(instances) + (long) slot * floatStride * Float.BYTES,
+                    (long) floatStride * Float.BYTES);
+            int moved = handleOfSlot[last];
+            slotOfHandle[moved] = slot;
+            handleOfSlot[slot] = moved;
+            markDirty(slot);
+        }
+        slotOfHandle[handle] = -1;
+        freeHandles[freeHandleCount++] = handle;
+    }
+
+    public void clearInstances() {
+        instanceCount = 0;
+        handleCount = 0;
+        freeHandleCount = 0;
+        clearDirty();
+    }
+
+    public int instanceCount() {
+        return instanceCount;
+    }
+
+    private boolean isLive(int handle) {
+        if (handle < 0 || handle >= handleCount || slotOfHandle[handle] < 0) {
+            Log.writeln(Log.ERROR, "No instance with handle " + handle);
+            return false;
+        }
+        return true;
+    }
+
+    private void ensureCapacity(int needed) {
+        if (needed <= capacity)
+            return;
+        capacity = Math.max(needed, capacity * 2);
+        instances = memRealloc(instances, capacity * floatStride);
+        slotOfHandle = Arrays.copyOf(slotOfHandle, capacity);
+        handleOfSlot = Arrays.copyOf(handleOfSlot, capacity);
+        freeHandles = Arrays.copyOf(freeHandles, capacity);
+    }
+
+    private void markDirty(int slot) {
+        dirtyStart = Math.min(dirtyStart, slot);
+        dirtyEnd = Math.max(dirtyEnd, slot + 1);
+    }
+    private void clearDirty() {
+        dirtyStart = Integer.MAX_VALUE;
+        dirtyEnd = 0;
+    }
+
+    // Send the instances edited since the last frame
+    private void uploadInstances() {
+        if (instanceVbo == 0)
+            return;
+        if (capacity > gpuCapacity) {
+            glBindBuffer(GL_ARRAY_BUFFER, instanceVbo);
+            allocateGpuBuffer();
+            glBindBuffer(GL_ARRAY_BUFFER, 0);
+            return;
+        }
+        int end = Math.min(dirtyEnd, instanceCount);
+        if (dirtyStart < end) {
+            glBindBuffer(GL_ARRAY_BUFFER, instanceVbo);
+            glBufferSubData(GL_ARRAY_BUFFER, (long) dirtyStart * floatStride * Float.BYTES,
+                    memSlice(instances, dirtyStart * floatStride, (end - dirtyStart) * floatStride));
+            glBindBuffer(GL_ARRAY_BUFFER, 0);
+            GraphicsManager.countUpload((long) (end - dirtyStart) * floatStride * Float.BYTES);
+        }
+        clearDirty();
+    }
+
+    @Override
+    public void render() {
+        if (instanceCount == 0)
+            return;
+        uploadInstances();
+        super.render();
+    }
+
+    @Override
+    protected void draw() {
+        glDrawElementsInstanced(GL_TRIANGLES, elementCount(), elementType(), 0, instanceCount);
+    }
+
+    @Override
+    protected void releaseBuffers() {
+        super.releaseBuffers();
+        if (instanceVbo != 0)
+            glDeleteBuffers(instanceVbo);
+        instanceVbo = 0;
+        gpuCapacity = 0;
+    }
+
+    @Override
+    public void cleanup() {
+        super.cleanup();
+        if (instances != null)
+            memFree(instances);
+        instances = null;
+    }
+}
@@ -0,0 +1,160 @@
+package lucenforge.graphics.primitives.mesh;
+
+import lucenforge.files.Properties;
+import lucenforge.graphics.Camera;
+import lucenforge.graphics.Texture;
+import org.joml.Vector3f;
+
+// A chain of detail levels for one mesh; level 0 is the full mesh. The level is picked from the
+// current camera each time it's drawn, wherever it sits (in a layer, a group, or a nested group),
+// and only that level is drawn.
+public class LodMesh extends MeshGroup {
+
+    // Level i is used while the mesh covers at least thresholds[i] of the view height
+    private float[] thresholds;
+    // Relative margin a size has to cross a threshold by before the level changes
+    private float hysteresis = 0.1f;
+    private int currentLevel = 0;
+
+    // Local bounding sphere of the full detail level
+    private final Vector3f boundsCenter = new Vector3f();
+    private float boundsRadius = 0;
+
+    // The chain this one instances, if any; its texture isn't ours to clean up
+    private final LodMesh source;
+
+    // Build levels from full detail mesh data, each one simplified by ratio from the previous
+    public LodMesh(MeshData full, int levels, float ratio) {
+        source = null;
+        Mesh base = new Mesh();
+        base.setTopology(full);
+        addMesh(base);
+        MeshData previous = full;
+        for (int level = 1; level < levels; level++) {
+            MeshData simplified = MeshSimplifier.simplify(previous, ratio);
+            // Stop once simplification no longer makes progress
+            if (simplified.faceCount() >= previous.faceCount()) {
+                simplified.free();
+                break;
+            }
+            Mesh mesh = new Mesh();
+            mesh.setTopology(simplified);
+            addMesh(mesh);
+            previous = simplified;
+        }
+
+        // Full detail down to lod_detail_size of the view height, then each level for as long as it
+        // keeps no more triangles per covered area than the full mesh had at that size
+        float detailSize = Properties.getFloat("graphics", "lod_detail_size", 0.25f);
+        float fullFaces = Math.max(1, full.faceCount());
+        thresholds = new float[meshes.size()];
+        for (int level = 0; level < thresholds.length; level++)
+            thresholds[level] = detailSize * (float) Math.sqrt(meshes.get(level).data().faceCount() / fullFaces);
+        thresholds[thresholds.length - 1] = 0;
+
+        computeBounds(full);
+    }
+
+    private LodMesh(LodMesh source) {
+        this.source = source.source != null ? source.source : source;
+        source.copyInstanceInto(this);
+        thresholds = source.thresholds.clone();
+        hysteresis = source.hysteresis;
+        boundsCenter.set(source.boundsCenter);
+        boundsRadius = source.boundsRadius;
+    }
+
+    // Instances of every level sharing their buffers, with a transform and level choice of their own
+    @Override
+    public LodMesh instance() {
+        return new LodMesh(this);
+    }
+
+    private void computeBounds(MeshData data) {
+        Vector3f min = new Vector3f(Float.POSITIVE_INFINITY);
+        Vector3f max = new Vector3f(Float.NEGATIVE_INFINITY);
+        Vector3f position = new Vector3f();
+        for (int v = 0; v < data.vertexCount(); v++) {
+            data.getPosition(v, position);
+            min.min(position);
+            max.max(position);
+        }
+        boundsCenter.set(min).add(max).mul(0.5f);
+        boundsRadius = max.distance(min) * 0.5f;
+    }
+
+    // Choose the level for this frame from how large the mesh appears to the camera
+    public void selectLevel(Camera camera) {
+        if (camera == null || meshes.size() < 2)
+            return;
+        float size = projectedSize(camera);
+
+        // Coarser once the size drops clearly below this level's threshold
+        while (currentLevel < meshes.size() - 1 && size < thresholds[currentLevel] * (1 - hysteresis))
+            currentLevel++;
+        // Finer once the size rises clearly above the previous level's threshold
+        while (currentLevel > 0 && size > thresholds[currentLevel - 1] * (1 + hysteresis))
+            currentLevel--;
+    }
+
+    // Set the screen coverage below which each level switches to the next (one per level but the last)
+    public void setThresholds(float... levelThresholds) {
+        for (int level = 0; level < thresholds.length - 1 && level < levelThresholds.length; level++)
+            thresholds[level] = levelThresholds[level];
+    }
+    public void setHysteresis(float hysteresis) {
+        this.hysteresis = hysteresis;
+    }
+
+    public int levelCount() {
+        return meshes.size();
+    }
+    public int currentLevel() {
+        return currentLevel;
+    }
+    public Mesh level(int level) {
+        return meshes.get(level);
+    }
+
+    // Every level is measured by the full detail one
+    @Override
+    protected float localBounds(Vector3f center) {
+        center.set(boundsCenter);
+        return boundsRadius;
+    }
+
+    @Override
+    public MeshData data() {
+        return meshes.get(0).data();
+    }
+
+    @Override
+    public void setTexture(Texture texture) {
+        for (Mesh mesh : meshes) {
+            mesh.setTexture(texture);
+        }
+    }
+
+    @Override
+    public Texture texture() {
+        return meshes.get(0).texture();
+    }
+
+    @Override
+    public void render() {
+        selectLevel(Camera.current());
+        meshes.get(currentLevel).render();
+    }
+
+    @Override
+    public void cleanup() {
+        // Levels share the texture, so only release it once
+        Texture texture = texture();
+        for (Mesh mesh : meshes) {
+            mesh.setTexture(null);
+            mesh.cleanup();
+        }
+        if (texture != null && (source == null || texture != source.texture()))
+            texture.cleanup();
+    }
+}
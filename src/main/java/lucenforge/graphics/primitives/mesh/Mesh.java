@@ -2,9 +2,11 @@ package lucenforge.graphics.primitives.mesh;
 
 import lucenforge.entity.WorldEntity;
 import lucenforge.files.Log;
+import lucenforge.graphics.Camera;
 import lucenforge.graphics.GraphicsManager;
 import lucenforge.graphics.Renderable;
 import lucenforge.graphics.Texture;
+import lucenforge.graphics.TextureArray;
 import lucenforge.graphics.shaders.Shader;
 import lucenforge.graphics.shaders.ShaderParameter;
 import lucenforge.graphics.shaders.VertexAttributeType;
@@ -12,12 +14,14 @@ import org.joml.*;
 
 import java.lang.Math;
 import java.nio.ByteBuffer;
-import java.nio.FloatBuffer;
 import java.util.ArrayList;
 import java.util.HashMap;
 
 import static org.lwjgl.opengl.GL20.*;
 import static org.lwjgl.opengl.ARBVertexArrayObject.*;
+import static org.lwjgl.opengl.GL30.glVertexAttribI2ui;
+import static org.lwjgl.opengl.GL32.glDrawElementsBaseVertex;
+import static org.lwjgl.system.MemoryUtil.*;
 
 public class Mesh extends WorldEntity implements Renderable {
 
@@ -34,11 +38,11 @@ public class Mesh extends WorldEntity implements Renderable {
     private int vbo; // Vertex Buffer Object
     private int ebo; // Element Buffer Object
     private int eboLength;
+    private long gpuBytes = 0;
+    private int eboType = GL_UNSIGNED_INT;
 
-    // Vertexes
-    private ArrayList<Vertex> vertices;
-    // Indices
-    private ArrayList<Vector3i> faces;
+    // Packed vertices and indices
+    private MeshData data;
     // Texture
     private Texture texture;
     private final int textureSlot = 0;
@@ -47,19 +51,100 @@ public class Mesh extends WorldEntity implements Renderable {
     private Shader shader;
     private final HashMap<String, ShaderParameter> params = new HashMap<>();
 
-    FloatBuffer mappedBuffer = null;
+    // Ring of mapped regions used when usage is STREAM
+    private StreamBuffer streamBuffer = null;
+
+    // GPU storage format, and the bounds used when positions are quantized
+    private VertexEncoding encoding = VertexEncoding.FULL;
+    private final Vector3f quantOffset = new Vector3f();
+    private final Vector3f quantScale = new Vector3f(1);
+
+    // The mesh owning the data and GPU buffers when this one is an instance of it
+    private Mesh source = null;
+    // Live instances of this mesh, whose vertex arrays point at its buffers
+    private int instanceCount = 0;
+
+    // Local bounding sphere, measured from the data the first time it's needed
+    private final Vector3f boundsCenter = new Vector3f();
+    private float boundsRadius = -1;
+    private MeshData boundsData = null;
 
     public void setTopology(ArrayList<Vertex> vertices, ArrayList<Vector3i> faces) {
-        this.vertices = vertices;
-        this.faces = faces;
+        setTopology(MeshData.fromVertices(vertices, faces));
+    }
+    public void setTopology(MeshData data) {
+        if (source != null) {
+            Log.writeln(Log.ERROR, "Mesh instance shares its source's data; change the source instead");
+            return;
+        }
+        if (this.data != null && this.data != data)
+            this.data.free();
+        this.data = data;
+        boundsRadius = -1;
+    }
+
+    // Swap in new data; a mesh that is already initialized rebuilds its GPU buffers (render thread only)
+    public void replaceTopology(MeshData data) {
+        if (source != null) {
+            Log.writeln(Log.ERROR, "Mesh instance shares its source's data; change the source instead");
+            return;
+        }
+        // Their vertex arrays point at the buffers this would delete
+        if (instanceCount > 0) {
+            Log.writeln(Log.ERROR, "Mesh has " + instanceCount + " live instances; clean them up before replacing its topology");
+            return;
+        }
+        setTopology(data);
+        if (vao == 0)
+            return;
+        releaseBuffers();
+        init(usage, shader);
+    }
+
+    // Delete the GPU side, leaving the data; subclasses with buffers of their own release them too
+    protected void releaseBuffers() {
+        if (streamBuffer != null)
+            streamBuffer.cleanup();
+        streamBuffer = null;
+        glDeleteVertexArrays(vao);
+        glDeleteBuffers(vbo);
+        glDeleteBuffers(ebo);
+        vao = vbo = ebo = 0;
+        gpuBytes = 0;
+    }
+
+    // Another mesh drawing this one's geometry, with its own transform, shader, params and texture.
+    // It shares the data and the vertex and index buffers, and only builds its own vertex array.
+    public Mesh instance() {
+        if (data == null) {
+            Log.writeln(Log.ERROR, "Cannot instance a mesh without data");
+            return null;
+        }
+        Mesh instance = new Mesh();
+        instance.source = source != null ? source : this;
+        instance.source.instanceCount++;
+        instance.data = data;
+        instance.encoding = encoding;
+        instance.shader = shader;
+        instance.texture = texture;
+        instance.copyTransform(this);
+        return instance;
+    }
+    public boolean isInstance() {
+        return source != null;
     }
 
     public void init(Usage usage, Shader shader) {
+        if (source != null) {
+            initInstance(usage, shader);
+            return;
+        }
         this.shader = shader;
 
         // Fail gracefully if no vertices are provided
-        if (vertices.isEmpty()) {
+        if (data == null || data.vertexCount() == 0) {
             Log.writeln(Log.ERROR, "Cannot initialize mesh with no vertices.");
+            return;
         }
 
         this.usage = usage;
@@ -71,32 +156,39 @@ public class Mesh extends WorldEntity implements Renderable {
 
         glBindVertexArray(vao);
 
-        // Vertex buffer
-        glBindBuffer(GL_ARRAY_BUFFER, vbo);
-        // Allocate buffer space
-        Vertex firstVertex = vertices.get(0);
-        int floatStride = firstVertex.getFloatStride(); // 3 floats per vertex, 3 for normals
-        int byteStride = floatStride * Float.BYTES;
-        glBufferData(GL_ARRAY_BUFFER, (long) vertices.size() * byteStride, usage.glID);
-        // If usage is STREAM, use mapped buffer
-        if (usage == Usage.STREAM) {
-            ByteBuffer mapBuffer = glMapBuffer(GL_ARRAY_BUFFER, GL_WRITE_ONLY);
-            if (mapBuffer == null) {
-                Log.writeln(Log.ERROR, "Failed to map buffer!");
+        // Quantized positions only work if the shader can undo them
+        if (encoding.isQuantized()) {
+            if (shader.isUniformRequired("positionScale") && shader.isUniformRequired("positionOffset")) {
+                VertexEncoding.computeBounds(data, quantOffset, quantScale);
             } else {
-                mappedBuffer = mapBuffer.asFloatBuffer();
-                mappedBuffer.put(compileVBO()).flip();
-                glUnmapBuffer(GL_ARRAY_BUFFER);
-                mappedBuffer = null;
+                Log.writeln(Log.WARNING, "Shader " + shader.name() + " has no positionScale/positionOffset uniforms; storing float positions");
+                encoding = encoding.withPositions(VertexEncoding.Positions.FLOAT);
             }
-        } else {
-            glBufferSubData(GL_ARRAY_BUFFER, 0, compileVBO());
         }
+        int byteStride = encoding.byteStride(data);
 
+        // Vertex buffer
+        glBindBuffer(GL_ARRAY_BUFFER, vbo);
+        // Allocate buffer space
+        if (usage == Usage.STREAM)
+            streamBuffer = new StreamBuffer(vbo, (long) data.vertexCount() * byteStride);
+        else
+            glBufferData(GL_ARRAY_BUFFER, (long) data.vertexCount() * byteStride, usage.glID);
+        uploadVertices();
 
-        // Element buffer
+        // Element buffer, straight from the packed indices unless they fit in 16 bits
         glBindBuffer(GL_ELEMENT_ARRAY_BUFFER, ebo);
-        glBufferData(GL_ELEMENT_ARRAY_BUFFER, compileEBO(), GL_STATIC_DRAW);
+        eboType = encoding.indexType(data);
+        if (eboType == GL_UNSIGNED_SHORT) {
+            ByteBuffer shortIndices = VertexEncoding.encodeShortIndices(data.indexBuffer());
+            glBufferData(GL_ELEMENT_ARRAY_BUFFER, shortIndices, GL_STATIC_DRAW);
+            memFree(shortIndices);
+        } else {
+            glBufferData(GL_ELEMENT_ARRAY_BUFFER, data.indexBuffer(), GL_STATIC_DRAW);
+        }
+        eboLength = data.indexCount();
+        gpuBytes = (streamBuffer != null ? streamBuffer.capacity() : (long) data.vertexCount() * byteStride)
+                + (long) eboLength * (eboType == GL_UNSIGNED_SHORT ? Short.BYTES : Integer.BYTES);
 
         bindVertexAttributes(byteStride);
 
@@ -105,78 +197,98 @@ public class Mesh extends WorldEntity implements Renderable {
         glBindVertexArray(0);
     }
 
+    // Point a vertex array of our own at the source's buffers, uploading them first if need be
+    private void initInstance(Usage usage, Shader shader) {
+        this.shader = shader;
+        if (source.vao == 0)
+            source.init(usage, shader);
+        if (source.vao == 0)
+            return;
+        this.usage = source.usage;
+        encoding = source.encoding;
+        quantOffset.set(source.quantOffset);
+        quantScale.set(source.quantScale);
+        vbo = source.vbo;
+        ebo = source.ebo;
+        eboLength = source.eboLength;
+        eboType = source.eboType;
+        streamBuffer = source.streamBuffer;
+        vao = glGenVertexArrays();
+        glBindVertexArray(vao);
+        glBindBuffer(GL_ARRAY_BUFFER, vbo);
+        bindVertexAttributes(encoding.byteStride(data));
+        glBindBuffer(GL_ELEMENT_ARRAY_BUFFER, ebo);
+        glBindBuffer(GL_ARRAY_BUFFER, 0);
+        glBindVertexArray(0);
+    }
 
-    // Compile vertices and normals from Vector3f array to float array
-    private float[] compileVBO() {
-        int stride = vertices.get(0).getFloatStride();
-        float[] vertexBuffer = new float[vertices.size() * stride];
-        // For every vertex, add the position and normal (if present) to the buffer
-        for (int i = 0; i < vertices.size(); i++) {
-            int base = i * stride;
-            int offset = 0;
-            vertexBuffer[base + offset++] = vertices.get(i).position.x;
-            vertexBuffer[base + offset++] = vertices.get(i).position.y;
-            vertexBuffer[base + offset++] = vertices.get(i).position.z;
-            if (hasTexCoords()) {
-                vertexBuffer[base + offset++] = vertices.get(i).texture.x;
-                vertexBuffer[base + offset++] = vertices.get(i).texture.y;
-            }
-            if (hasNormals()) {
-                vertexBuffer[base + offset++] = vertices.get(i).normal.x;
-                vertexBuffer[base + offset++] = vertices.get(i).normal.y;
-                vertexBuffer[base + offset++] = vertices.get(i).normal.z;
-            }
-        }
-        return vertexBuffer;
-    }
-
-    // Compile indices from Vector3i array to int array
-    private int[] compileEBO(){
-        int[] indexBuffer = new int[faces.size() * 3];
-        // For every index, add the vertex indices to the buffer
-        for (int i = 0; i < faces.size(); i++) {
-            Vector3i face = faces.get(i);
-            indexBuffer[i * 3    ] = face.x;
-            indexBuffer[i * 3 + 1] = face.y;
-            indexBuffer[i * 3 + 2] = face.z;
+    // Upload the packed vertex data into the bound VBO
+    private void uploadVertices() {
+        if (encoding.isPassthrough()) {
+            // If usage is STREAM, write into the next free region of the ring
+            if (streamBuffer != null)
+                streamBuffer.write(data.vertexBuffer());
+            else
+                glBufferSubData(GL_ARRAY_BUFFER, 0, data.vertexBuffer());
+            GraphicsManager.countUpload(data.vertexBytes());
+        } else {
+            ByteBuffer packed = encodeVertices(0, data.vertexCount());
+            if (streamBuffer != null)
+                streamBuffer.write(packed);
+            else
+                glBufferSubData(GL_ARRAY_BUFFER, 0, packed);
+            GraphicsManager.countUpload(packed.remaining());
+            memFree(packed);
         }
-        eboLength = indexBuffer.length;
-        return indexBuffer;
+        data.clearDirty();
     }
 
-    private void bindVertexAttributes(int byteStride) {
-        int offsetBytes = 0;
-
-        // Position (always present)
-        int posLoc = shader.getAttributeLocation(VertexAttributeType.POSITION_IN);
-        glVertexAttribPointer(posLoc, 3, GL_FLOAT, false, byteStride, offsetBytes);
-        glEnableVertexAttribArray(posLoc);
-        offsetBytes += 3 * Float.BYTES;
-        // Texture (if present)
-        if (hasTexCoords()) {
-            Integer texLoc = shader.getAttributeLocation(VertexAttributeType.TEXTURE_IN);
-            if(texLoc != null) {
-                glVertexAttribPointer(texLoc, 2, GL_FLOAT, false, byteStride, offsetBytes);
-                glEnableVertexAttribArray(texLoc);
-            }
-            offsetBytes += 2 * Float.BYTES; // Always advance if texcoords present, even if shader doesn't use them
+    // Pack a run of vertices into the GPU format; the caller frees the result
+    private ByteBuffer encodeVertices(int first, int count) {
+        ByteBuffer packed = memAlloc(count * encoding.byteStride(data));
+        encoding.encode(data, first, count, quantOffset, quantScale, packed);
+        return packed;
+    }
+
+    // Upload only the vertex ranges edited since the last upload into the bound VBO
+    private void uploadDirtyVertices() {
+        // Every ring region holds its own copy, so streamed meshes always write in full
+        if (streamBuffer != null) {
+            uploadVertices();
+            return;
         }
-        // Normal (if present)
-        if (hasNormals()) {
-            Integer normLoc = shader.getAttributeLocation(VertexAttributeType.NORMAL_IN);
-            if(normLoc != null) {
-                glVertexAttribPointer(normLoc, 3, GL_FLOAT, false, byteStride, offsetBytes);
-                glEnableVertexAttribArray(normLoc);
+        int byteStride = encoding.byteStride(data);
+        for (int r = 0; r < data.dirtyRangeCount(); r++) {
+            int start = data.dirtyStart(r);
+            int count = data.dirtyEnd(r) - start;
+            if (count <= 0)
+                continue;
+            if (encoding.isPassthrough()) {
+                glBufferSubData(GL_ARRAY_BUFFER, (long) start * byteStride, data.vertexBuffer(start, count));
+            } else {
+                // Quantized positions keep the bounds from init; edits outside them get clamped
+                ByteBuffer packed = encodeVertices(start, count);
+                glBufferSubData(GL_ARRAY_BUFFER, (long) start * byteStride, packed);
+                memFree(packed);
             }
+            GraphicsManager.countUpload((long) count * byteStride);
         }
+        data.clearDirty();
     }
 
-    private boolean hasTexCoords() {
-        return vertices.stream().allMatch(v -> v.texture != null);
-    }
-
-    private boolean hasNormals() {
-        return vertices.get(0).normal != null;
+    private void bindVertexAttributes(int byteStride) {
+        // Feed every attribute the mesh has and the shader reads, at the offsets from the layout
+        for (VertexAttributeType type : data.layout().attributes()) {
+            Integer location = shader.getAttributeLocation(type);
+            if (location == null) {
+                if (type == VertexAttributeType.POSITION_IN)
+                    Log.writeln(Log.ERROR, "Shader " + shader.name() + " has no position input!");
+                continue;
+            }
+            glVertexAttribPointer(location, encoding.attributeSize(type), encoding.attributeType(type),
+                    encoding.attributeNormalized(type), byteStride, encoding.byteOffset(data, type));
+            glEnableVertexAttribArray(location);
+        }
     }
 
     public void updateVerts(ArrayList<Vertex> vertices) {
@@ -184,46 +296,67 @@ public class Mesh extends WorldEntity implements Renderable {
             Log.writeln(Log.ERROR, "updateVerts called before init!");
             return;
         }
-        // Update the vertex data
-        this.vertices = vertices;
-        // Recompile the VBO
-        glBindBuffer(GL_ARRAY_BUFFER, vbo);
-        // If usage is STREAM, use mapped buffer
-        if (usage == Usage.STREAM) {
-            ByteBuffer mapBuffer = glMapBuffer(GL_ARRAY_BUFFER, GL_WRITE_ONLY);
-            if (mapBuffer == null) {
-                Log.writeln(Log.ERROR, "Failed to map buffer!");
-            } else {
-                mappedBuffer = mapBuffer.asFloatBuffer();
-                mappedBuffer.put(compileVBO()).flip();
-                glUnmapBuffer(GL_ARRAY_BUFFER);
-                mappedBuffer = null;
-            }
-        } else {
-            glBufferSubData(GL_ARRAY_BUFFER, 0, compileVBO());
+        // Copy the vertex data into the packed storage
+        for (int i = 0; i < vertices.size() && i < data.vertexCount(); i++) {
+            Vertex v = vertices.get(i);
+            data.setPosition(i, v.position.x, v.position.y, v.position.z);
+            if (data.hasTexCoords() && v.texture != null)
+                data.setTexCoord(i, v.texture.x, v.texture.y);
+            if (data.hasNormals() && v.normal != null)
+                data.setNormal(i, v.normal.x, v.normal.y, v.normal.z);
         }
-
+        updateVerts();
+    }
+    // Upload the vertex ranges edited in place now instead of waiting for render
+    public void updateVerts() {
+        if (vbo == 0) {
+            Log.writeln(Log.ERROR, "updateVerts called before init!");
+            return;
+        }
+        if (!data.isDirty())
+            return;
+        glBindBuffer(GL_ARRAY_BUFFER, vbo);
+        uploadDirtyVertices();
         // Unbind the buffer
         glBindBuffer(GL_ARRAY_BUFFER, 0);
     }
 
-    private void pushParamsToShader(){
+    void pushParamsToShader(){
         if(shader.isUniformRequired("model"))
             setParam("model", getModelMatrix());
+        if(encoding.isQuantized()) {
+            setParam("positionScale", quantScale);
+            setParam("positionOffset", quantOffset);
+        }
         //Push uniforms (parameters)
         for(ShaderParameter param : params.values()){
             param.pushToShader();
         }
     }
 
+    // Values of the uniforms set with setParam, minus the ones a static batch sets itself
+    HashMap<String, Object> paramValues(){
+        HashMap<String, Object> values = new HashMap<>();
+        for(ShaderParameter param : params.values()){
+            String name = param.name();
+            if(param.isSet() && !name.equals("model") && !name.equals("positionScale") && !name.equals("positionOffset"))
+                values.put(name, param.value());
+        }
+        return values;
+    }
+
     public void render() {
-        if(vertices == null){
+        if(data == null){
             Log.writeln(Log.ERROR, "Mesh not initialized; Cannot render!");
             return;
         }
 
+        // Send any in-place vertex edits before drawing
+        if(data.isDirty())
+            updateVerts();
+
         if(texture != null)
-            texture.pushParamsToShader(shader, textureSlot);
+            pushTexture();
 
         pushParamsToShader();
 
@@ -233,64 +366,53 @@ public class Mesh extends WorldEntity implements Renderable {
         }
 
         glBindVertexArray(vao);
-        glDrawElements(GL_TRIANGLES, eboLength, GL_UNSIGNED_INT, 0);
+        draw();
         glBindVertexArray(0);
 
     }
 
-    // Compute normals for the mesh
-    public void shadeSmooth(boolean smooth){
-        if (vertices == null || faces == null) {
-            Log.writeln(Log.ERROR, "Mesh not initialized; Cannot compute normals!");
+    // Hand the texture to the shader the cheapest way it accepts: a bindless handle or a layer of
+    // the texture array, both per-draw attributes, otherwise the texture0 sampler uniforms
+    private void pushTexture() {
+        Integer handleLoc = shader.getAttributeLocation(VertexAttributeType.TEXTURE_HANDLE_IN);
+        long handle = handleLoc == null ? 0 : texture.handle();
+        if (handle != 0) {
+            glVertexAttribI2ui(handleLoc, (int) handle, (int) (handle >>> 32));
             return;
         }
-        computeNormals(smooth, vertices, faces);
-    }
-    public static void computeNormals(boolean smooth, ArrayList<Vertex> vertices, ArrayList<Vector3i> faces) {
-        if (!smooth) {
-            // Flat shading: use existing logic
-            for (Vector3i face : faces) {
-                Vector3f v1 = vertices.get(face.x).position;
-                Vector3f v2 = vertices.get(face.y).position;
-                Vector3f v3 = vertices.get(face.z).position;
-
-                Vector3f edge1 = new Vector3f(v2).sub(v1);
-                Vector3f edge2 = new Vector3f(v3).sub(v1);
-                Vector3f normal = edge1.cross(edge2).normalize();
-
-                vertices.get(face.x).normal = new Vector3f(normal);
-                vertices.get(face.y).normal = new Vector3f(normal);
-                vertices.get(face.z).normal = new Vector3f(normal);
-            }
+        Integer layerLoc = shader.getAttributeLocation(VertexAttributeType.TEXTURE_LAYER_IN);
+        if (layerLoc != null && texture.array() != null) {
+            texture.array().bind(TextureArray.TEXTURE_UNIT);
+            glVertexAttrib1f(layerLoc, texture.layer());
             return;
         }
+        texture.pushParamsToShader(shader, textureSlot);
+    }
 
-        // Smooth shading
-        // Map from position to accumulated normal
-        HashMap<Vector3f, Vector3f> normalMap = new HashMap<>(vertices.size());
-
-        // First pass: accumulate face normals
-        for (Vector3i face : faces) {
-            Vertex v0 = vertices.get(face.x);
-            Vertex v1 = vertices.get(face.y);
-            Vertex v2 = vertices.get(face.z);
-
-            Vector3f edge1 = new Vector3f(v1.position).sub(v0.position);
-            Vector3f edge2 = new Vector3f(v2.position).sub(v0.position);
-            Vector3f faceNormal = edge1.cross(edge2).normalize();
-
-            for (Vertex v : new Vertex[] { v0, v1, v2 }) {
-                Vector3f key = v.position; // assumes no two Vector3f instances represent the same point unless shared
-                Vector3f acc = normalMap.computeIfAbsent(key, k -> new Vector3f());
-                acc.add(faceNormal);
-            }
+    // Issue the draw call with the VAO bound
+    protected void draw() {
+        if (streamBuffer != null) {
+            // Streamed vertices live in the region last written; shift the indices onto it
+            glDrawElementsBaseVertex(GL_TRIANGLES, eboLength, eboType, 0, streamBuffer.region() * data.vertexCount());
+            streamBuffer.fence();
+        } else {
+            glDrawElements(GL_TRIANGLES, eboLength, eboType, 0);
         }
+    }
 
-        // Second pass: normalize and assign
-        for (Vertex v : vertices) {
-            Vector3f key = v.position;
-            v.normal = new Vector3f(normalMap.get(key)).normalize();
+    // Compute normals for the mesh
+    public void shadeSmooth(boolean smooth){
+        if (data == null) {
+            Log.writeln(Log.ERROR, "Mesh not initialized; Cannot compute normals!");
+            return;
         }
+        computeNormals(smooth, data);
+    }
+    public static void computeNormals(boolean smooth, MeshData data) {
+        if (smooth)
+            new MeshNormals().compute(data);
+        else
+            new MeshNormals().computeFlat(data);
     }
 
     // Get Model Matrix for rendering
@@ -304,6 +426,40 @@ public class Mesh extends WorldEntity implements Renderable {
                 .scale(scale());
     }
 
+    // Fraction of the view height the mesh covers for the camera, or -1 without anything to measure
+    public float projectedSize(Camera camera) {
+        Vector3f center = new Vector3f();
+        float radius = localBounds(center);
+        if (radius < 0)
+            return -1;
+        getModelMatrix().transformPosition(center);
+        Vector3f scale = scale();
+        return camera.projectedSize(center, radius * Math.max(Math.abs(scale.x), Math.max(Math.abs(scale.y), Math.abs(scale.z))));
+    }
+
+    // Bounding sphere in the mesh's own space: sets center and returns the radius, or -1 if unknown.
+    // Measured from data() the first time and again whenever the data is swapped out; meshes that
+    // don't keep their geometry in MeshData override this.
+    protected float localBounds(Vector3f center) {
+        MeshData data = data();
+        if (data == null || data.vertexCount() == 0)
+            return -1;
+        if (boundsRadius < 0 || boundsData != data) {
+            Vector3f min = new Vector3f(Float.POSITIVE_INFINITY), max = new Vector3f(Float.NEGATIVE_INFINITY);
+            Vector3f position = new Vector3f();
+            for (int v = 0; v < data.vertexCount(); v++) {
+                data.getPosition(v, position);
+                min.min(position);
+                max.max(position);
+            }
+            boundsCenter.set(min).add(max).mul(0.5f);
+            boundsRadius = max.distance(min) * 0.5f;
+            boundsData = data;
+        }
+        center.set(boundsCenter);
+        return boundsRadius;
+    }
+
     // Shader setters and getters
     public void setParam(String paramName, Object value) {
         if(shader == null) {
@@ -332,6 +488,15 @@ public class Mesh extends WorldEntity implements Renderable {
     public Shader shader(){
         return shader;
     }
+    // Pick the GPU storage format; takes effect at init
+    public void setEncoding(VertexEncoding encoding){
+        if (vbo != 0)
+            Log.writeln(Log.WARNING, "Mesh already initialized; new vertex encoding applies on the next init");
+        this.encoding = encoding;
+    }
+    public VertexEncoding encoding(){
+        return encoding;
+    }
     public void setTexture(Texture texture){
         this.texture = texture;
     }
@@ -339,31 +504,49 @@ public class Mesh extends WorldEntity implements Renderable {
         return texture;
     }
 
-    // Getters for vertices and indices
-    public ArrayList<Vertex> vertices(){
-        return vertices;
+    // Getter for the packed geometry
+    public MeshData data(){
+        return data;
     }
-    public ArrayList<Vector3i> faces(){
-        return faces;
+
+    // Memory held by the packed geometry and by the GPU buffers built from it
+    // Instances count nothing; the source holds it all
+    public long cpuBytes(){
+        return data == null || source != null ? 0 : data.vertexBytes() + data.indexBytes();
+    }
+    public long gpuBytes(){
+        return vao == 0 || source != null ? 0 : gpuBytes;
     }
-    public void setVertices(ArrayList<Vertex> vertices){
-        this.vertices = vertices;
+
+    // GPU handles for subclasses that extend the vertex array
+    protected int vao(){
+        return vao;
     }
-    public void setFaces(ArrayList<Vector3i> faces){
-        this.faces = faces;
+    protected int elementCount(){
+        return eboLength;
+    }
+    protected int elementType(){
+        return eboType;
     }
 
 
     // Cleanup method
     public void cleanup() {
-        if(texture != null)
+        if(texture != null && (source == null || texture != source.texture))
             texture.cleanup();
-        if (mappedBuffer != null) {
-            glBindBuffer(GL_ARRAY_BUFFER, vbo);
-            glUnmapBuffer(GL_ARRAY_BUFFER);
+        // An instance only owns its vertex array
+        if (source != null) {
+            if (vao != 0)
+                glDeleteVertexArrays(vao);
+            vao = 0;
+            if (data != null)
+                source.instanceCount--;
+            data = null;
+            return;
         }
-        glDeleteVertexArrays(vao);
-        glDeleteBuffers(vbo);
-        glDeleteBuffers(ebo);
+        releaseBuffers();
+        if (data != null)
+            data.free();
+        data = null;
     }
 }
\ No newline at end of file
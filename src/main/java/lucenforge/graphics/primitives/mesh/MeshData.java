@@ -0,0 +1,449 @@
+package lucenforge.graphics.primitives.mesh;
+
+import lucenforge.graphics.shaders.VertexAttributeType;
+import org.joml.Vector2f;
+import org.joml.Vector3f;
+import org.joml.Vector3i;
+
+import java.nio.FloatBuffer;
+import java.nio.IntBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+
+import static org.lwjgl.system.MemoryUtil.*;
+
+// Packed geometry container: interleaved vertices and triangle indices kept off-heap
+// so they can be handed to glBufferData as-is. Must be freed with free().
+public class MeshData {
+
+    // Layout (fixed for the lifetime of the data)
+    private final VertexLayout layout;
+    private final int floatStride;
+    private final int texCoordOffset; // in floats, -1 if absent
+    private final int normalOffset;   // in floats, -1 if absent
+
+    // Storage
+    private FloatBuffer vertices;
+    private IntBuffer indices;
+    private int vertexCount = 0;
+    private int faceCount = 0;
+    // Set while the storage lives in a mapped file instead of our own allocations
+    private Object mapping = null;
+
+    // Dirty vertex ranges as sorted, non-overlapping [start, end) pairs
+    private static final int DIRTY_MERGE_GAP = 16;   // Ranges closer than this are uploaded as one
+    private static final int MAX_DIRTY_RANGES = 64;  // Past this, collapse into a single range
+    private int[] dirtyRanges = new int[16];
+    private int dirtyRangeCount = 0;
+    // Bumped on every change, so something built from this data can tell it's current even
+    // after an upload has cleared the dirty ranges
+    private int version = 0;
+
+    public MeshData(boolean hasTexCoords, boolean hasNormals){
+        this(VertexLayout.standard(hasTexCoords, hasNormals), 16, 16);
+    }
+    public MeshData(boolean hasTexCoords, boolean hasNormals, int vertexCapacity, int faceCapacity){
+        this(VertexLayout.standard(hasTexCoords, hasNormals), vertexCapacity, faceCapacity);
+    }
+    public MeshData(VertexLayout layout, int vertexCapacity, int faceCapacity){
+        this.layout = layout;
+        floatStride = layout.floatStride();
+        texCoordOffset = layout.offset(VertexAttributeType.TEXTURE_IN);
+        normalOffset = layout.offset(VertexAttributeType.NORMAL_IN);
+
+        vertices = memCallocFloat(Math.max(1, vertexCapacity) * floatStride);
+        indices = memAllocInt(Math.max(1, faceCapacity) * 3);
+    }
+
+    // Use existing vertex and index memory (e.g. a copy-on-write file mapping) without copying it.
+    // keepAlive is held until the data is freed; the storage is copied out only if it has to grow.
+    public static MeshData wrap(VertexLayout layout, FloatBuffer vertices, int vertexCount, IntBuffer indices, int faceCount, Object keepAlive){
+        MeshData data = new MeshData(layout, 1, 1);
+        memFree(data.vertices);
+        memFree(data.indices);
+        data.vertices = vertices;
+        data.indices = indices;
+        data.vertexCount = vertexCount;
+        data.faceCount = faceCount;
+        data.mapping = keepAlive;
+        return data;
+    }
+
+    // Move wrapped storage into our own allocations before resizing or freeing it
+    private void ownStorage(){
+        if(mapping == null)
+            return;
+        FloatBuffer ownVertices = memAllocFloat(Math.max(1, vertices.capacity()));
+        memCopy(memAddress(vertices), memAddress(ownVertices), (long) vertices.capacity() * Float.BYTES);
+        IntBuffer ownIndices = memAllocInt(Math.max(1, indices.capacity()));
+        memCopy(memAddress(indices), memAddress(ownIndices), (long) indices.capacity() * Integer.BYTES);
+        vertices = ownVertices;
+        indices = ownIndices;
+        mapping = null;
+    }
+
+    // Build packed data from the old object-per-vertex representation
+    public static MeshData fromVertices(ArrayList<Vertex> vertexList, ArrayList<Vector3i> faceList){
+        Vertex first = vertexList.get(0);
+        boolean tex = vertexList.stream().allMatch(v -> v.texture != null);
+        boolean nor = first.normal != null;
+        MeshData data = new MeshData(tex, nor, vertexList.size(), faceList.size());
+        for(Vertex v : vertexList){
+            int i = data.addVertex(v.position.x, v.position.y, v.position.z);
+            if(tex)
+                data.setTexCoord(i, v.texture.x, v.texture.y);
+            if(nor && v.normal != null)
+                data.setNormal(i, v.normal.x, v.normal.y, v.normal.z);
+        }
+        for(Vector3i face : faceList){
+            data.addFace(face.x, face.y, face.z);
+        }
+        return data;
+    }
+
+    // Vertices
+    public int addVertex(float x, float y, float z){
+        ensureVertexCapacity(vertexCount + 1);
+        int index = vertexCount++;
+        setPosition(index, x, y, z);
+        return index;
+    }
+    // Append count vertices in one go and return the first index; fill them with setVertices
+    public int addVertices(int count){
+        ensureVertexCapacity(vertexCount + count);
+        int first = vertexCount;
+        vertexCount += count;
+        markDirty(first, count);
+        return first;
+    }
+    // Append a copy of another vertex with the same layout
+    public int addVertex(MeshData source, int sourceVertex){
+        ensureVertexCapacity(vertexCount + 1);
+        int index = vertexCount++;
+        markDirty(index, 1);
+        memCopy(memAddress(source.vertices, sourceVertex * floatStride), memAddress(vertices, index * floatStride), (long) floatStride * Float.BYTES);
+        return index;
+    }
+    public void setPosition(int vertex, float x, float y, float z){
+        markDirty(vertex, 1);
+        int base = vertex * floatStride;
+        vertices.put(base    , x);
+        vertices.put(base + 1, y);
+        vertices.put(base + 2, z);
+    }
+    public void setTexCoord(int vertex, float u, float v){
+        markDirty(vertex, 1);
+        int base = vertex * floatStride + texCoordOffset;
+        vertices.put(base    , u);
+        vertices.put(base + 1, v);
+    }
+    public void setNormal(int vertex, float x, float y, float z){
+        markDirty(vertex, 1);
+        int base = vertex * floatStride + normalOffset;
+        vertices.put(base    , x);
+        vertices.put(base + 1, y);
+        vertices.put(base + 2, z);
+    }
+    public Vector3f getPosition(int vertex, Vector3f dest){
+        int base = vertex * floatStride;
+        return dest.set(vertices.get(base), vertices.get(base + 1), vertices.get(base + 2));
+    }
+    public Vector2f getTexCoord(int vertex, Vector2f dest){
+        int base = vertex * floatStride + texCoordOffset;
+        return dest.set(vertices.get(base), vertices.get(base + 1));
+    }
+    public Vector3f getNormal(int vertex, Vector3f dest){
+        int base = vertex * floatStride + normalOffset;
+        return dest.set(vertices.get(base), vertices.get(base + 1), vertices.get(base + 2));
+    }
+    // Generic attribute access; only the attribute's own components are written or read
+    public void setAttribute(int vertex, VertexAttributeType type, float x, float y, float z, float w){
+        int offset = layout.offset(type);
+        if(offset < 0)
+            return;
+        markDirty(vertex, 1);
+        int base = vertex * floatStride + offset;
+        int components = type.components;
+        vertices.put(base, x);
+        if(components > 1) vertices.put(base + 1, y);
+        if(components > 2) vertices.put(base + 2, z);
+        if(components > 3) vertices.put(base + 3, w);
+    }
+    public float getAttribute(int vertex, VertexAttributeType type, int component){
+        return vertices.get(vertex * floatStride + layout.offset(type) + component);
+    }
+    // Raw component access for hot loops (component is a float offset inside the vertex)
+    public float get(int vertex, int component){
+        return vertices.get(vertex * floatStride + component);
+    }
+    public void set(int vertex, int component, float value){
+        markDirty(vertex, 1);
+        vertices.put(vertex * floatStride + component, value);
+    }
+
+    // Overwrite the positions of a run of vertices from packed xyz triples
+    public void setPositions(int firstVertex, float[] xyz, int offset, int count){
+        markDirty(firstVertex, count);
+        for(int i = 0; i < count; i++){
+            int base = (firstVertex + i) * floatStride;
+            int src = offset + i * 3;
+            vertices.put(base    , xyz[src    ]);
+            vertices.put(base + 1, xyz[src + 1]);
+            vertices.put(base + 2, xyz[src + 2]);
+        }
+    }
+    // Overwrite whole interleaved vertices (floatStride floats each)
+    public void setVertices(int firstVertex, float[] interleaved, int offset, int count){
+        markDirty(firstVertex, count);
+        vertices.put(firstVertex * floatStride, interleaved, offset, count * floatStride);
+    }
+
+    // Copy every position out as packed xyz triples
+    public float[] getPositions(float[] dest){
+        for(int v = 0; v < vertexCount; v++){
+            int base = v * floatStride;
+            dest[v * 3    ] = vertices.get(base    );
+            dest[v * 3 + 1] = vertices.get(base + 1);
+            dest[v * 3 + 2] = vertices.get(base + 2);
+        }
+        return dest;
+    }
+    // Copy every normal out as packed xyz triples
+    public float[] getNormals(float[] dest){
+        for(int v = 0; v < vertexCount; v++){
+            int base = v * floatStride + normalOffset;
+            dest[v * 3    ] = vertices.get(base    );
+            dest[v * 3 + 1] = vertices.get(base + 1);
+            dest[v * 3 + 2] = vertices.get(base + 2);
+        }
+        return dest;
+    }
+    // Overwrite every normal from packed xyz triples
+    public void setNormals(float[] normals){
+        for(int v = 0; v < vertexCount; v++){
+            int base = v * floatStride + normalOffset;
+            vertices.put(base    , normals[v * 3    ]);
+            vertices.put(base + 1, normals[v * 3 + 1]);
+            vertices.put(base + 2, normals[v * 3 + 2]);
+        }
+        markAllDirty();
+    }
+
+    // Dirty tracking
+    public void markDirty(int firstVertex, int count){
+        version++;
+        int start = firstVertex;
+        int end = firstVertex + count;
+        int n = dirtyRangeCount;
+        // Fast path: sequential edits at or after the last range
+        if(n > 0 && start >= dirtyRanges[(n - 1) * 2] - DIRTY_MERGE_GAP){
+            int last = (n - 1) * 2;
+            if(start <= dirtyRanges[last + 1] + DIRTY_MERGE_GAP){
+                dirtyRanges[last] = Math.min(dirtyRanges[last], start);
+                dirtyRanges[last + 1] = Math.max(dirtyRanges[last + 1], end);
+                // Extending backwards may have reached the previous range
+                if(n > 1 && dirtyRanges[last] <= dirtyRanges[last - 1] + DIRTY_MERGE_GAP)
+                    mergeDirty(dirtyRanges[last], dirtyRanges[last + 1]);
+                return;
+            }
+            appendDirty(n, start, end);
+            return;
+        }
+        mergeDirty(start, end);
+    }
+    // Insert a range, absorbing every range within the merge gap
+    private void mergeDirty(int start, int end){
+        int n = dirtyRangeCount;
+        int i = 0;
+        while(i < n && dirtyRanges[i * 2 + 1] + DIRTY_MERGE_GAP < start)
+            i++;
+        int j = i;
+        while(j < n && dirtyRanges[j * 2] - DIRTY_MERGE_GAP <= end){
+            start = Math.min(start, dirtyRanges[j * 2]);
+            end = Math.max(end, dirtyRanges[j * 2 + 1]);
+            j++;
+        }
+        if(j == i){
+            appendDirty(i, start, end);
+            return;
+        }
+        dirtyRanges[i * 2] = start;
+        dirtyRanges[i * 2 + 1] = end;
+        System.arraycopy(dirtyRanges, j * 2, dirtyRanges, (i + 1) * 2, (n - j) * 2);
+        dirtyRangeCount = n - (j - i - 1);
+    }
+    // Insert a new range at the given slot
+    private void appendDirty(int slot, int start, int end){
+        int n = dirtyRangeCount;
+        if(n == MAX_DIRTY_RANGES){
+            // Too fragmented; one upload of the whole span is cheaper than many small ones
+            int first = Math.min(start, dirtyRanges[0]);
+            int last = Math.max(end, dirtyRanges[n * 2 - 1]);
+            dirtyRanges[0] = first;
+            dirtyRanges[1] = last;
+            dirtyRangeCount = 1;
+            return;
+        }
+        if((n + 1) * 2 > dirtyRanges.length)
+            dirtyRanges = Arrays.copyOf(dirtyRanges, dirtyRanges.length * 2);
+        System.arraycopy(dirtyRanges, slot * 2, dirtyRanges, (slot + 1) * 2, (n - slot) * 2);
+        dirtyRanges[slot * 2] = start;
+        dirtyRanges[slot * 2 + 1] = end;
+        dirtyRangeCount = n + 1;
+    }
+    public void markAllDirty(){
+        version++;
+        dirtyRangeCount = 0;
+        if(vertexCount > 0)
+            appendDirty(0, 0, vertexCount);
+    }
+    public boolean isDirty(){
+        return dirtyRangeCount > 0;
+    }
+    public int dirtyRangeCount(){
+        return dirtyRangeCount;
+    }
+    // First vertex of a dirty range
+    public int dirtyStart(int range){
+        return Math.min(dirtyRanges[range * 2], vertexCount);
+    }
+    // One past the last vertex of a dirty range
+    public int dirtyEnd(int range){
+        return Math.min(dirtyRanges[range * 2 + 1], vertexCount);
+    }
+    public void clearDirty(){
+        dirtyRangeCount = 0;
+    }
+    public int version(){
+        return version;
+    }
+
+    // Faces
+    public int addFace(int a, int b, int c){
+        ensureFaceCapacity(faceCount + 1);
+        int face = faceCount++;
+        setFace(face, a, b, c);
+        return face;
+    }
+    // Append faces from packed corner triples
+    public void addFaces(int[] corners, int offset, int count){
+        ensureFaceCapacity(faceCount + count);
+        indices.put(faceCount * 3, corners, offset, count * 3);
+        faceCount += count;
+    }
+    public void setFace(int face, int a, int b, int c){
+        int base = face * 3;
+        indices.put(base    , a);
+        indices.put(base + 1, b);
+        indices.put(base + 2, c);
+    }
+    // Drop every face from count onwards
+    public void truncateFaces(int count){
+        faceCount = Math.min(faceCount, Math.max(0, count));
+    }
+    // Get the vertex index of a face corner (0, 1 or 2)
+    public int faceIndex(int face, int corner){
+        return indices.get(face * 3 + corner);
+    }
+
+    // Move vertices to new slots (remap[old] = new, -1 drops it) and rewrite the indices to match
+    public void remapVertices(int[] remap, int newCount){
+        ownStorage();
+        FloatBuffer remapped = memCallocFloat(Math.max(1, newCount) * floatStride);
+        for(int v = 0; v < vertexCount; v++){
+            int target = remap[v];
+            if(target < 0)
+                continue;
+            memCopy(memAddress(vertices, v * floatStride), memAddress(remapped, target * floatStride), (long) floatStride * Float.BYTES);
+        }
+        memFree(vertices);
+        vertices = remapped;
+        vertexCount = newCount;
+        for(int i = 0; i < faceCount * 3; i++){
+            indices.put(i, remap[indices.get(i)]);
+        }
+        markAllDirty();
+    }
+
+    // Capacity management
+    public void ensureVertexCapacity(int count){
+        if(count * floatStride <= vertices.capacity())
+            return;
+        ownStorage();
+        int oldCapacity = vertices.capacity();
+        int newCapacity = Math.max(count * floatStride, oldCapacity * 2);
+        vertices = memRealloc(vertices, newCapacity);
+        memSet(memAddress(vertices, oldCapacity), 0, (long) (newCapacity - oldCapacity) * Float.BYTES);
+    }
+    public void ensureFaceCapacity(int count){
+        if(count * 3 <= indices.capacity())
+            return;
+        ownStorage();
+        indices = memRealloc(indices, Math.max(count * 3, indices.capacity() * 2));
+    }
+
+    // Buffers ready for upload (views over the used range, no copy)
+    public FloatBuffer vertexBuffer(){
+        return memSlice(vertices, 0, vertexCount * floatStride);
+    }
+    public FloatBuffer vertexBuffer(int firstVertex, int count){
+        return memSlice(vertices, firstVertex * floatStride, count * floatStride);
+    }
+    public IntBuffer indexBuffer(){
+        return memSlice(indices, 0, faceCount * 3);
+    }
+
+    // Layout getters
+    public VertexLayout layout(){
+        return layout;
+    }
+    public boolean hasTexCoords(){
+        return texCoordOffset >= 0;
+    }
+    public boolean hasNormals(){
+        return normalOffset >= 0;
+    }
+    public int floatStride(){
+        return floatStride;
+    }
+    public int byteStride(){
+        return floatStride * Float.BYTES;
+    }
+    public int texCoordOffset(){
+        return texCoordOffset;
+    }
+    public int normalOffset(){
+        return normalOffset;
+    }
+
+    // Size getters
+    public int vertexCount(){
+        return vertexCount;
+    }
+    public int faceCount(){
+        return faceCount;
+    }
+    public int indexCount(){
+        return faceCount * 3;
+    }
+    public long vertexBytes(){
+        return (long) vertexCount * byteStride();
+    }
+    public long indexBytes(){
+        return (long) faceCount * 3 * Integer.BYTES;
+    }
+
+    // Release the off-heap storage
+    public void free(){
+        if(mapping == null && vertices != null)
+            memFree(vertices);
+        if(mapping == null && indices != null)
+            memFree(indices);
+        mapping = null;
+        vertices = null;
+        indices = null;
+        vertexCount = 0;
+        faceCount = 0;
+        dirtyRangeCount = 0;
+    }
+}
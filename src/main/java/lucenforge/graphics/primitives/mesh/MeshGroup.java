@@ -1,27 +1,190 @@
 package lucenforge.graphics.primitives.mesh;
 
+import lucenforge.files.Log;
+import lucenforge.graphics.Texture;
 import lucenforge.graphics.shaders.Shader;
+import org.joml.Matrix4f;
+import org.joml.Vector3f;
 
 import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
 
 public class MeshGroup extends Mesh{
 
     protected final ArrayList<Mesh> meshes = new ArrayList<>();
 
+    // Merged draws replacing the children while frozen
+    private final ArrayList<StaticBatch> batches = new ArrayList<>();
+    private final ArrayList<Mesh> unbatched = new ArrayList<>();
+    private boolean frozen = false;
+
+    // Children are merged when they share all of these, custom uniform values included
+    private record BatchKey(Shader shader, Texture texture, VertexLayout layout, HashMap<String, Object> params) {}
+
     public void addMesh(Mesh mesh){
         mesh.setParent(this);
         meshes.add(mesh);
     }
 
+    // A group of instances of the children, placed the same way, to position independently of this one
+    @Override
+    public MeshGroup instance(){
+        MeshGroup group = new MeshGroup();
+        copyInstanceInto(group);
+        return group;
+    }
+    protected void copyInstanceInto(MeshGroup group){
+        group.copyTransform(this);
+        for(Mesh mesh : meshes){
+            Mesh child = mesh.instance();
+            if(child != null)
+                group.addMesh(child);
+        }
+    }
+
+    // Merge the children that share a shader, texture, vertex layout and uniforms into single buffers drawn
+    // with one multi-draw each. Children keep their data so their transforms can still be updated
+    // with updateFrozenTransform; anything else about them is fixed until unfreeze. Children of nested
+    // groups are merged the same way, placed relative to this group.
+    public void freeze(){
+        if(frozen)
+            unfreeze();
+        LinkedHashMap<BatchKey, ArrayList<Mesh>> groups = new LinkedHashMap<>();
+        collectBatchable(meshes, groups);
+        Matrix4f groupInverse = getModelMatrix().invert();
+        for(var entry : groups.entrySet()){
+            ArrayList<Mesh> parts = entry.getValue();
+            Matrix4f[] transforms = new Matrix4f[parts.size()];
+            for(int i = 0; i < transforms.length; i++)
+                transforms[i] = new Matrix4f(groupInverse).mul(parts.get(i).getModelMatrix());
+            batches.add(new StaticBatch(entry.getKey().shader(), entry.getKey().texture(), parts, transforms));
+        }
+        frozen = true;
+        int batched = 0;
+        for(StaticBatch batch : batches)
+            batched += batch.partCount();
+        Log.writeln(Log.DEBUG, "Froze " + batched + " meshes into " + batches.size() + " batches");
+    }
+
+    // Sort meshes into batches, descending into nested groups so their children are merged too
+    private void collectBatchable(ArrayList<Mesh> children, LinkedHashMap<BatchKey, ArrayList<Mesh>> groups){
+        for(Mesh mesh : children){
+            // LOD chains choose what they draw each frame, so they stay separate
+            if(mesh instanceof MeshGroup group && !(mesh instanceof LodMesh)){
+                collectBatchable(group.meshes, groups);
+                continue;
+            }
+            if(mesh instanceof MeshGroup || mesh.data() == null || mesh.shader() == null){
+                unbatched.add(mesh);
+                continue;
+            }
+            // Atlas views of one page share a batch; StaticBatch bakes their rectangles into the texcoords
+            Texture texture = mesh.texture() == null ? null : mesh.texture().page();
+            BatchKey key = new BatchKey(mesh.shader(), texture, mesh.data().layout(), mesh.paramValues());
+            groups.computeIfAbsent(key, k -> new ArrayList<>()).add(mesh);
+        }
+    }
+
+    public void unfreeze(){
+        for(StaticBatch batch : batches)
+            batch.cleanup();
+        batches.clear();
+        unbatched.clear();
+        frozen = false;
+    }
+
+    public boolean isFrozen(){
+        return frozen;
+    }
+
+    // Send a frozen child's current transform to its batch; children of nested groups count too
+    public void updateFrozenTransform(Mesh child){
+        if(!frozen)
+            return;
+        Matrix4f relative = getModelMatrix().invert().mul(child.getModelMatrix());
+        for(StaticBatch batch : batches){
+            int part = batch.indexOf(child);
+            if(part >= 0){
+                batch.setPartTransform(part, relative);
+                return;
+            }
+        }
+        if(!unbatched.contains(child))
+            Log.writeln(Log.WARNING, "Mesh is not part of this group; nothing to update");
+    }
+
     @Override
     public void render() {
+        if(frozen){
+            Matrix4f model = getModelMatrix();
+            for(StaticBatch batch : batches)
+                batch.render(model);
+            // Batches may have switched programs; the rest expect the group's shader
+            if(!batches.isEmpty() && !unbatched.isEmpty() && shader() != null)
+                shader().bind();
+            for(Mesh mesh : unbatched)
+                mesh.render();
+            return;
+        }
         for(Mesh mesh : meshes){
             mesh.render();
         }
     }
 
+    // Sphere around every child's bounds, in the group's space
+    @Override
+    protected float localBounds(Vector3f center){
+        Matrix4f inverse = getModelMatrix().invert();
+        Vector3f childCenter = new Vector3f(), childScale = new Vector3f();
+        float radius = -1;
+        for(Mesh mesh : meshes){
+            float childRadius = mesh.localBounds(childCenter);
+            if(childRadius < 0)
+                continue;
+            Matrix4f relative = new Matrix4f(inverse).mul(mesh.getModelMatrix());
+            relative.transformPosition(childCenter);
+            relative.getScale(childScale);
+            childRadius *= Math.max(childScale.x, Math.max(childScale.y, childScale.z));
+            if(radius < 0){
+                center.set(childCenter);
+                radius = childRadius;
+                continue;
+            }
+            // Grow the sphere just enough to take in the child's
+            float distance = center.distance(childCenter);
+            if(distance + childRadius <= radius)
+                continue;
+            if(distance + radius <= childRadius){
+                center.set(childCenter);
+                radius = childRadius;
+                continue;
+            }
+            float grown = (distance + radius + childRadius) * 0.5f;
+            center.lerp(childCenter, (grown - radius) / distance);
+            radius = grown;
+        }
+        return radius;
+    }
+
+    @Override
+    public long cpuBytes(){
+        long bytes = 0;
+        for(Mesh mesh : meshes)
+            bytes += mesh.cpuBytes();
+        return bytes;
+    }
+    @Override
+    public long gpuBytes(){
+        long bytes = 0;
+        for(Mesh mesh : meshes)
+            bytes += mesh.gpuBytes();
+        return bytes;
+    }
+
     @Override
     public void cleanup(){
+        unfreeze();
         for(Mesh mesh : meshes){
             mesh.cleanup();
         }
@@ -0,0 +1,310 @@
+package lucenforge.graphics.primitives.mesh;
+
+import lucenforge.files.Log;
+
+import java.util.Arrays;
+import java.util.concurrent.ForkJoinPool;
+import java.util.stream.IntStream;
+
+// Normal generation over primitive arrays. The heavy passes are split into fixed-size chunks and
+// run on a ForkJoinPool; every vertex gathers its own result in a fixed order, so the output is
+// identical no matter how many threads run it.
+public class MeshNormals {
+
+    public enum Weighting {
+        UNIFORM, // Every face counts the same
+        AREA,    // Larger faces count more
+        ANGLE    // Faces count by their corner angle at the vertex
+    }
+
+    // Exact matches only, like the plain averaging this replaced; looser welds and other weightings are opt in
+    public static final float DEFAULT_WELD_EPSILON = 0;
+    // Work is split into chunks of this many elements; meshes smaller than one chunk stay on the calling thread
+    private static final int CHUNK_SIZE = 16384;
+
+    private Weighting weighting = Weighting.UNIFORM;
+    private float weldEpsilon = DEFAULT_WELD_EPSILON;
+    private float creaseCos = -1.0f; // cos(180°): no crease limit
+    private ForkJoinPool pool = ForkJoinPool.commonPool();
+
+    public MeshNormals setWeighting(Weighting weighting) {
+        this.weighting = weighting;
+        return this;
+    }
+    // Vertices closer than this are treated as the same point when smoothing (0 = exact match only)
+    public MeshNormals setWeldEpsilon(float weldEpsilon) {
+        this.weldEpsilon = weldEpsilon;
+        return this;
+    }
+    // Faces meeting at more than this angle (degrees) don't smooth into each other
+    public MeshNormals setCreaseAngle(float degrees) {
+        this.creaseCos = (float) Math.cos(Math.toRadians(degrees));
+        return this;
+    }
+    public MeshNormals setPool(ForkJoinPool pool) {
+        this.pool = pool;
+        return this;
+    }
+
+    // Smooth normals: each vertex averages the faces around its welded position
+    public void compute(MeshData data) {
+        if (!data.hasNormals()) {
+            Log.writeln(Log.ERROR, "Mesh data has no normal slot; Cannot compute normals!");
+            return;
+        }
+        int vertexCount = data.vertexCount();
+        int faceCount = data.faceCount();
+        if (vertexCount == 0)
+            return;
+        float[] positions = data.getPositions(new float[vertexCount * 3]);
+        int[] indices = new int[faceCount * 3];
+        data.indexBuffer().get(indices);
+
+        // Per face unit normal and per corner weight
+        float[] faceNormals = new float[faceCount * 3];
+        float[] cornerWeights = new float[faceCount * 3];
+        forChunks(faceCount, (start, end) -> {
+            float[] normal = new float[3];
+            for (int f = start; f < end; f++)
+                faceGeometry(f, positions, indices, faceNormals, cornerWeights, normal);
+        });
+
+        // Weld positions: each vertex maps to the lowest-index vertex within epsilon
+        int[] weld = weldPositions(positions, vertexCount);
+
+        // Corners grouped by welded position (filled in face order, so the order is fixed)
+        int[] groupStart = new int[vertexCount + 1];
+        for (int i : indices)
+            groupStart[weld[i] + 1]++;
+        for (int v = 0; v < vertexCount; v++)
+            groupStart[v + 1] += groupStart[v];
+        int[] groupCorners = new int[indices.length];
+        int[] cursor = Arrays.copyOf(groupStart, vertexCount);
+        for (int c = 0; c < indices.length; c++)
+            groupCorners[cursor[weld[indices[c]]]++] = c;
+
+        // Gather: each vertex sums the faces of its group that lie within the crease angle of its own faces
+        float[] normals = new float[vertexCount * 3];
+        forChunks(vertexCount, (start, end) -> {
+            for (int v = start; v < end; v++)
+                gatherNormal(v, weld[v], indices, groupStart, groupCorners, faceNormals, cornerWeights, normals);
+        });
+        data.setNormals(normals);
+    }
+
+    // Flat normals: each vertex takes the normal of the last face that uses it
+    public void computeFlat(MeshData data) {
+        if (!data.hasNormals()) {
+            Log.writeln(Log.ERROR, "Mesh data has no normal slot; Cannot compute normals!");
+            return;
+        }
+        int vertexCount = data.vertexCount();
+        int faceCount = data.faceCount();
+        float[] positions = data.getPositions(new float[vertexCount * 3]);
+        int[] indices = new int[faceCount * 3];
+        data.indexBuffer().get(indices);
+
+        int[] lastFace = new int[vertexCount];
+        Arrays.fill(lastFace, -1);
+        for (int c = 0; c < indices.length; c++)
+            lastFace[indices[c]] = c / 3;
+
+        float[] normals = data.getNormals(new float[vertexCount * 3]);
+        forChunks(vertexCount, (start, end) -> {
+            float[] normal = new float[3];
+            for (int v = start; v < end; v++) {
+                int f = lastFace[v];
+                if (f < 0)
+                    continue;
+                unitNormal(positions, indices[f * 3], indices[f * 3 + 1], indices[f * 3 + 2], normal);
+                normals[v * 3    ] = normal[0];
+                normals[v * 3 + 1] = normal[1];
+                normals[v * 3 + 2] = normal[2];
+            }
+        });
+        data.setNormals(normals);
+    }
+
+    private void faceGeometry(int f, float[] positions, int[] indices, float[] faceNormals, float[] cornerWeights, float[] normal) {
+        int a = indices[f * 3], b = indices[f * 3 + 1], c = indices[f * 3 + 2];
+        float doubleArea = unitNormal(positions, a, b, c, normal);
+        faceNormals[f * 3    ] = normal[0];
+        faceNormals[f * 3 + 1] = normal[1];
+        faceNormals[f * 3 + 2] = normal[2];
+        for (int corner = 0; corner < 3; corner++) {
+            cornerWeights[f * 3 + corner] = switch (weighting) {
+                case UNIFORM -> doubleArea > 0 ? 1.0f : 0.0f;
+                case AREA -> doubleArea * 0.5f;
+                case ANGLE -> cornerAngle(positions, indices[f * 3 + corner], indices[f * 3 + (corner + 1) % 3], indices[f * 3 + (corner + 2) % 3]);
+            };
+        }
+    }
+
+    private void gatherNormal(int v, int group, int[] indices, int[] groupStart, int[] groupCorners,
+                              float[] faceNormals, float[] cornerWeights, float[] normals) {
+        int start = groupStart[group];
+        int end = groupStart[group + 1];
+
+        // Reference direction: the faces that use this exact vertex
+        float rx = 0, ry = 0, rz = 0;
+        for (int i = start; i < end; i++) {
+            int corner = groupCorners[i];
+            if (indices[corner] != v)
+                continue;
+            int f = corner / 3;
+            rx += faceNormals[f * 3];
+            ry += faceNormals[f * 3 + 1];
+            rz += faceNormals[f * 3 + 2];
+        }
+        float referenceLength = (float) Math.sqrt(rx * rx + ry * ry + rz * rz);
+        boolean useCrease = creaseCos > -1.0f && referenceLength > 0;
+        if (referenceLength > 0) {
+            rx /= referenceLength;
+            ry /= referenceLength;
+            rz /= referenceLength;
+        }
+
+        float nx = 0, ny = 0, nz = 0;
+        for (int i = start; i < end; i++) {
+            int corner = groupCorners[i];
+            int f = corner / 3;
+            float fx = faceNormals[f * 3], fy = faceNormals[f * 3 + 1], fz = faceNormals[f * 3 + 2];
+            if (useCrease && fx * rx + fy * ry + fz * rz < creaseCos)
+                continue;
+            float weight = cornerWeights[corner];
+            nx += fx * weight;
+            ny += fy * weight;
+            nz += fz * weight;
+        }
+        float length = (float) Math.sqrt(nx * nx + ny * ny + nz * nz);
+        if (length > 0) {
+            normals[v * 3    ] = nx / length;
+            normals[v * 3 + 1] = ny / length;
+            normals[v * 3 + 2] = nz / length;
+        } else {
+            normals[v * 3    ] = rx;
+            normals[v * 3 + 1] = ry;
+            normals[v * 3 + 2] = rz;
+        }
+    }
+
+    // Map every vertex to the lowest-index vertex within weldEpsilon, using a hashed grid of epsilon-sized cells
+    private int[] weldPositions(float[] positions, int vertexCount) {
+        int[] weld = new int[vertexCount];
+        boolean exact = weldEpsilon <= 0;
+        float cellSize = exact ? 1.0f : weldEpsilon;
+        float epsilonSquared = weldEpsilon * weldEpsilon;
+
+        // Cell key per vertex
+        long[] cellX = new long[vertexCount], cellY = new long[vertexCount], cellZ = new long[vertexCount];
+        forChunks(vertexCount, (start, end) -> {
+            for (int v = start; v < end; v++) {
+                cellX[v] = exact ? Float.floatToIntBits(positions[v * 3    ]) : (long) Math.floor(positions[v * 3    ] / cellSize);
+                cellY[v] = exact ? Float.floatToIntBits(positions[v * 3 + 1]) : (long) Math.floor(positions[v * 3 + 1] / cellSize);
+                cellZ[v] = exact ? Float.floatToIntBits(positions[v * 3 + 2]) : (long) Math.floor(positions[v * 3 + 2] / cellSize);
+            }
+        });
+
+        // Open addressing table from cell hash to a linked list of vertices
+        int capacity = Integer.highestOneBit(Math.max(2, vertexCount * 2 - 1)) << 1;
+        long[] keys = new long[capacity];
+        int[] heads = new int[capacity];
+        Arrays.fill(heads, -1);
+        int[] next = new int[vertexCount];
+        for (int v = 0; v < vertexCount; v++) {
+            long key = cellHash(cellX[v], cellY[v], cellZ[v]);
+            int slot = findSlot(keys, heads, key);
+            keys[slot] = key;
+            next[v] = heads[slot];
+            heads[slot] = v;
+        }
+
+        int reach = exact ? 0 : 1;
+        forChunks(vertexCount, (start, end) -> {
+            for (int v = start; v < end; v++) {
+                int best = v;
+                for (int dx = -reach; dx <= reach; dx++) {
+                    for (int dy = -reach; dy <= reach; dy++) {
+                        for (int dz = -reach; dz <= reach; dz++) {
+                            long key = cellHash(cellX[v] + dx, cellY[v] + dy, cellZ[v] + dz);
+                            int slot = findSlot(keys, heads, key);
+                            for (int u = heads[slot]; u >= 0; u = next[u]) {
+                                if (u >= best)
+                                    continue;
+                                float ex = positions[u * 3] - positions[v * 3];
+                                float ey = positions[u * 3 + 1] - positions[v * 3 + 1];
+                                float ez = positions[u * 3 + 2] - positions[v * 3 + 2];
+                                if (ex * ex + ey * ey + ez * ez <= epsilonSquared)
+                                    best = u;
+                            }
+                        }
+                    }
+                }
+                weld[v] = best;
+            }
+        });
+        // Chains of near points all join the lowest index (weld[v] <= v, so one ascending pass is enough)
+        for (int v = 0; v < vertexCount; v++)
+            weld[v] = weld[weld[v]];
+        return weld;
+    }
+
+    private static long cellHash(long x, long y, long z) {
+        long h = x * 0x9E3779B97F4A7C15L;
+        h ^= y * 0xC2B2AE3D27D4EB4FL;
+        h ^= z * 0x165667B19E3779F9L;
+        return h ^ (h >>> 29);
+    }
+    // Slot holding key, or the empty slot where it belongs
+    private static int findSlot(long[] keys, int[] heads, long key) {
+        int mask = keys.length - 1;
+        int slot = (int) (key ^ (key >>> 32)) & mask;
+        while (heads[slot] >= 0 && keys[slot] != key)
+            slot = (slot + 1) & mask;
+        return slot;
+    }
+
+    // Unit normal of (a, b, c) into dest; returns twice the area
+    private static float unitNormal(float[] positions, int a, int b, int c, float[] dest) {
+        float ax = positions[a * 3], ay = positions[a * 3 + 1], az = positions[a * 3 + 2];
+        float e1x = positions[b * 3] - ax, e1y = positions[b * 3 + 1] - ay, e1z = positions[b * 3 + 2] - az;
+        float e2x = positions[c * 3] - ax, e2y = positions[c * 3 + 1] - ay, e2z = positions[c * 3 + 2] - az;
+        float nx = e1y * e2z - e1z * e2y;
+        float ny = e1z * e2x - e1x * e2z;
+        float nz = e1x * e2y - e1y * e2x;
+        float length = (float) Math.sqrt(nx * nx + ny * ny + nz * nz);
+        if (length == 0) {
+            dest[0] = dest[1] = dest[2] = 0;
+            return 0;
+        }
+        dest[0] = nx / length;
+        dest[1] = ny / length;
+        dest[2] = nz / length;
+        return length;
+    }
+
+    // Interior angle at vertex v between the edges to a and b
+    private static float cornerAngle(float[] positions, int v, int a, int b) {
+        float ux = positions[a * 3] - positions[v * 3], uy = positions[a * 3 + 1] - positions[v * 3 + 1], uz = positions[a * 3 + 2] - positions[v * 3 + 2];
+        float wx = positions[b * 3] - positions[v * 3], wy = positions[b * 3 + 1] - positions[v * 3 + 1], wz = positions[b * 3 + 2] - positions[v * 3 + 2];
+        float lengths = (float) Math.sqrt((ux * ux + uy * uy + uz * uz) * (wx * wx + wy * wy + wz * wz));
+        if (lengths == 0)
+            return 0;
+        float cos = (ux * wx + uy * wy + uz * wz) / lengths;
+        return (float) Math.acos(Math.max(-1.0f, Math.min(1.0f, cos)));
+    }
+
+    // Run body over [0, count) in fixed chunks on the pool
+    private interface ChunkBody {
+        void run(int start, int end);
+    }
+    private void forChunks(int count, ChunkBody body) {
+        int chunks = (count + CHUNK_SIZE - 1) / CHUNK_SIZE;
+        if (chunks <= 1) {
+            body.run(0, count);
+            return;
+        }
+        pool.submit(() -> IntStream.range(0, chunks).parallel().forEach(chunk ->
+                body.run(chunk * CHUNK_SIZE, Math.min(count, (chunk + 1) * CHUNK_SIZE)))).join();
+    }
+}
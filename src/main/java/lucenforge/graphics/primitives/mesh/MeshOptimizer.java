@@ -0,0 +1,409 @@
+package lucenforge.graphics.primitives.mesh;
+
+import lucenforge.files.Log;
+
+import java.nio.IntBuffer;
+import java.util.Arrays;
+
+// Post-load reordering of MeshData for the GPU. Triangles are ordered for the post-transform
+// vertex cache (Forsyth), grouped into clusters that are sorted to reduce overdraw, and finally
+// vertices are renumbered in the order they are first fetched. Everything runs on the CPU.
+public class MeshOptimizer {
+
+    // Simulated FIFO cache size used for reporting
+    public static final int ANALYSIS_CACHE_SIZE = 16;
+    // Overdraw sorting may cost at most this much ACMR relative to the cache-optimized order
+    public static final float DEFAULT_OVERDRAW_THRESHOLD = 1.05f;
+
+    // Forsyth scoring parameters
+    private static final int CACHE_SIZE = 32;
+    private static final float CACHE_DECAY_POWER = 1.5f;
+    private static final float LAST_TRI_SCORE = 0.75f;
+    private static final float VALENCE_BOOST_SCALE = 2.0f;
+    private static final float VALENCE_BOOST_POWER = 0.5f;
+    private static final int VALENCE_TABLE_SIZE = 64;
+    private static final float[] cacheScores = new float[CACHE_SIZE];
+    private static final float[] valenceScores = new float[VALENCE_TABLE_SIZE];
+    static {
+        for (int i = 0; i < CACHE_SIZE; i++) {
+            if (i < 3)
+                cacheScores[i] = LAST_TRI_SCORE;
+            else
+                cacheScores[i] = (float) Math.pow(1.0f - (i - 3) / (float) (CACHE_SIZE - 3), CACHE_DECAY_POWER);
+        }
+        for (int i = 1; i < VALENCE_TABLE_SIZE; i++)
+            valenceScores[i] = VALENCE_BOOST_SCALE * (float) Math.pow(i, -VALENCE_BOOST_POWER);
+    }
+
+    // Average cache miss ratio (misses per triangle) and average transform to vertex ratio
+    public record CacheStats(float acmr, float atvr) {
+        @Override
+        public String toString() {
+            return String.format("ACMR %.3f, ATVR %.3f", acmr, atvr);
+        }
+    }
+    public record Report(CacheStats before, CacheStats after) {
+        @Override
+        public String toString() {
+            return before + " -> " + after;
+        }
+    }
+
+    // Run every stage and report the cache statistics before and after
+    public static Report optimize(MeshData data) {
+        CacheStats before = analyze(data, ANALYSIS_CACHE_SIZE);
+        optimizeVertexCache(data);
+        optimizeOverdraw(data, DEFAULT_OVERDRAW_THRESHOLD);
+        optimizeVertexFetch(data);
+        CacheStats after = analyze(data, ANALYSIS_CACHE_SIZE);
+        return new Report(before, after);
+    }
+
+    // Simulate a FIFO post-transform cache over the index order
+    public static CacheStats analyze(MeshData data, int cacheSize) {
+        return analyze(readIndices(data), data.vertexCount(), cacheSize);
+    }
+    private static CacheStats analyze(int[] indices, int vertexCount, int cacheSize) {
+        if (indices.length == 0 || vertexCount == 0)
+            return new CacheStats(0, 0);
+        int[] stamps = new int[vertexCount];
+        int time = cacheSize + 1;
+        int misses = 0;
+        for (int v : indices) {
+            // In the cache if it was one of the last cacheSize misses
+            if (time - stamps[v] > cacheSize) {
+                stamps[v] = time++;
+                misses++;
+            }
+        }
+        return new CacheStats(misses / (indices.length / 3f), misses / (float) vertexCount);
+    }
+
+    // Greedy triangle ordering by Forsyth's vertex scores
+    public static void optimizeVertexCache(MeshData data) {
+        int faceCount = data.faceCount();
+        int vertexCount = data.vertexCount();
+        if (faceCount == 0)
+            return;
+        int[] indices = readIndices(data);
+
+        // Vertex to triangle adjacency; live triangles of v sit in adjacency[adjacencyStart[v], + liveCount[v])
+        int[] liveCount = new int[vertexCount];
+        for (int v : indices)
+            liveCount[v]++;
+        int[] adjacencyStart = new int[vertexCount + 1];
+        for (int v = 0; v < vertexCount; v++)
+            adjacencyStart[v + 1] = adjacencyStart[v] + liveCount[v];
+        int[] adjacency = new int[indices.length];
+        int[] cursor = Arrays.copyOf(adjacencyStart, vertexCount);
+        for (int i = 0; i < indices.length; i++)
+            adjacency[cursor[indices[i]]++] = i / 3;
+
+        int[] cachePosition = new int[vertexCount];
+        Arrays.fill(cachePosition, -1);
+        float[] vertexScore = new float[vertexCount];
+        for (int v = 0; v < vertexCount; v++)
+            vertexScore[v] = vertexScore(-1, liveCount[v]);
+        float[] triangleScore = new float[faceCount];
+        for (int i = 0; i < indices.length; i++)
+            triangleScore[i / 3] += vertexScore[indices[i]];
+
+        boolean[] emitted = new boolean[faceCount];
+        int[] cache = new int[CACHE_SIZE + 3];
+        int[] nextCache = new int[CACHE_SIZE + 3];
+        int cacheCount = 0;
+        int[] output = new int[indices.length];
+        int scanCursor = 0;
+
+        int best = 0;
+        for (int t = 1; t < faceCount; t++)
+            if (triangleScore[t] > triangleScore[best])
+                best = t;
+
+        for (int n = 0; n < faceCount; n++) {
+            // Nothing connected to the cache; restart from the next unemitted triangle
+            if (best < 0) {
+                while (emitted[scanCursor])
+                    scanCursor++;
+                best = scanCursor;
+            }
+            emitted[best] = true;
+            int a = indices[best * 3], b = indices[best * 3 + 1], c = indices[best * 3 + 2];
+            output[n * 3    ] = a;
+            output[n * 3 + 1] = b;
+            output[n * 3 + 2] = c;
+
+            // Drop the triangle from each corner's live list
+            for (int corner = 0; corner < 3; corner++) {
+                int v = indices[best * 3 + corner];
+                int start = adjacencyStart[v];
+                int end = start + liveCount[v];
+                for (int i = start; i < end; i++) {
+                    if (adjacency[i] == best) {
+                        adjacency[i] = adjacency[end - 1];
+                        adjacency[end - 1] = best;
+                        liveCount[v]--;
+                        break;
+                    }
+                }
+            }
+
+            // Move the corners to the front of the LRU cache
+            int nextCount = 0;
+            nextCache[nextCount++] = a;
+            if (b != a)
+                nextCache[nextCount++] = b;
+            if (c != a && c != b)
+                nextCache[nextCount++] = c;
+            for (int i = 0; i < cacheCount; i++) {
+                int v = cache[i];
+                if (v != a && v != b && v != c)
+                    nextCache[nextCount++] = v;
+            }
+
+            // Rescore everything that moved, including vertices pushed out of the cache
+            for (int i = 0; i < nextCount; i++) {
+                int v = nextCache[i];
+                cachePosition[v] = i < CACHE_SIZE ? i : -1;
+                float score = vertexScore(cachePosition[v], liveCount[v]);
+                float delta = score - vertexScore[v];
+                vertexScore[v] = score;
+                int start = adjacencyStart[v];
+                for (int j = start; j < start + liveCount[v]; j++)
+                    triangleScore[adjacency[j]] += delta;
+            }
+            int[] swap = cache;
+            cache = nextCache;
+            nextCache = swap;
+            cacheCount = Math.min(nextCount, CACHE_SIZE);
+
+            // Best live triangle touching the cache
+            best = -1;
+            float bestScore = Float.NEGATIVE_INFINITY;
+            for (int i = 0; i < cacheCount; i++) {
+                int v = cache[i];
+                int start = adjacencyStart[v];
+                for (int j = start; j < start + liveCount[v]; j++) {
+                    int t = adjacency[j];
+                    if (triangleScore[t] > bestScore) {
+                        bestScore = triangleScore[t];
+                        best = t;
+                    }
+                }
+            }
+        }
+        writeIndices(data, output);
+    }
+
+    private static float vertexScore(int cachePosition, int valence) {
+        if (valence == 0)
+            return -1.0f;
+        float score = cachePosition >= 0 ? cacheScores[cachePosition] : 0.0f;
+        if (valence < VALENCE_TABLE_SIZE)
+            score += valenceScores[valence];
+        else
+            score += VALENCE_BOOST_SCALE * (float) Math.pow(valence, -VALENCE_BOOST_POWER);
+        return score;
+    }
+
+    // Split the cache-ordered triangles into clusters at cache restarts and draw the clusters
+    // that face away from the mesh center first, so they occlude the inner ones
+    public static void optimizeOverdraw(MeshData data, float threshold) {
+        int faceCount = data.faceCount();
+        int vertexCount = data.vertexCount();
+        if (faceCount == 0)
+            return;
+        int[] indices = readIndices(data);
+        CacheStats base = analyze(indices, vertexCount, ANALYSIS_CACHE_SIZE);
+
+        // Cluster boundaries: triangles where all three corners miss the cache
+        int[] clusterStart = new int[faceCount + 1];
+        int clusterCount = 0;
+        int[] stamps = new int[vertexCount];
+        int time = ANALYSIS_CACHE_SIZE + 1;
+        for (int t = 0; t < faceCount; t++) {
+            int misses = 0;
+            for (int corner = 0; corner < 3; corner++) {
+                int v = indices[t * 3 + corner];
+                if (time - stamps[v] > ANALYSIS_CACHE_SIZE) {
+                    stamps[v] = time++;
+                    misses++;
+                }
+            }
+            if (t == 0 || misses == 3)
+                clusterStart[clusterCount++] = t;
+        }
+        clusterStart[clusterCount] = faceCount;
+        if (clusterCount < 2)
+            return;
+
+        // Mesh centroid
+        float cx = 0, cy = 0, cz = 0;
+        for (int v : indices) {
+            cx += data.get(v, 0);
+            cy += data.get(v, 1);
+            cz += data.get(v, 2);
+        }
+        cx /= indices.length;
+        cy /= indices.length;
+        cz /= indices.length;
+
+        // Sort key per cluster: how far the area-weighted centroid sits along the area-weighted normal
+        float[] keys = new float[clusterCount];
+        Integer[] order = new Integer[clusterCount];
+        for (int k = 0; k < clusterCount; k++) {
+            float nx = 0, ny = 0, nz = 0, px = 0, py = 0, pz = 0, area = 0;
+            for (int t = clusterStart[k]; t < clusterStart[k + 1]; t++) {
+                int a = indices[t * 3], b = indices[t * 3 + 1], c = indices[t * 3 + 2];
+                float e1x = data.get(b, 0) - data.get(a, 0), e1y = data.get(b, 1) - data.get(a, 1), e1z = data.get(b, 2) - data.get(a, 2);
+                float e2x = data.get(c, 0) - data.get(a, 0), e2y = data.get(c, 1) - data.get(a, 1), e2z = data.get(c, 2) - data.get(a, 2);
+                float tx = e1y * e2z - e1z * e2y;
+                float ty = e1z * e2x - e1x * e2z;
+                float tz = e1x * e2y - e1y * e2x;
+                float triangleArea = (float) Math.sqrt(tx * tx + ty * ty + tz * tz);
+                nx += tx;
+                ny += ty;
+                nz += tz;
+                px += (data.get(a, 0) + data.get(b, 0) + data.get(c, 0)) / 3f * triangleArea;
+                py += (data.get(a, 1) + data.get(b, 1) + data.get(c, 1)) / 3f * triangleArea;
+                pz += (data.get(a, 2) + data.get(b, 2) + data.get(c, 2)) / 3f * triangleArea;
+                area += triangleArea;
+            }
+            float normalLength = (float) Math.sqrt(nx * nx + ny * ny + nz * nz);
+            if (area > 0 && normalLength > 0) {
+                keys[k] = ((px / area - cx) * nx + (py / area - cy) * ny + (pz / area - cz) * nz) / normalLength;
+            }
+            order[k] = k;
+        }
+        Arrays.sort(order, (x, y) -> Float.compare(keys[y], keys[x]));
+
+        int[] output = new int[indices.length];
+        int n = 0;
+        for (int k : order) {
+            int from = clusterStart[k] * 3;
+            int length = (clusterStart[k + 1] - clusterStart[k]) * 3;
+            System.arraycopy(indices, from, output, n, length);
+            n += length;
+        }
+
+        // Keep the reorder only if it doesn't undo too much of the cache optimization
+        CacheStats sorted = analyze(output, vertexCount, ANALYSIS_CACHE_SIZE);
+        if (sorted.acmr() <= base.acmr() * threshold)
+            writeIndices(data, output);
+    }
+
+    // Renumber vertices in the order the index buffer first touches them; unused vertices are dropped
+    public static void optimizeVertexFetch(MeshData data) {
+        int[] remap = new int[data.vertexCount()];
+        Arrays.fill(remap, -1);
+        int next = 0;
+        IntBuffer indices = data.indexBuffer();
+        for (int i = 0; i < indices.remaining(); i++) {
+            int v = indices.get(i);
+            if (remap[v] < 0)
+                remap[v] = next++;
+        }
+        if (next < data.vertexCount())
+            Log.writeln(Log.DEBUG, "Mesh optimizer dropped " + (data.vertexCount() - next) + " unreferenced vertices");
+        data.remapVertices(remap, next);
+    }
+
+    // Merge vertices whose components all lie within epsilon of each other (0 merges exact copies,
+    // like Vertex.equals) and drop the faces that collapse. Returns the number of vertices removed
+    public static int weldVertices(MeshData data, float epsilon) {
+        int vertexCount = data.vertexCount();
+        int stride = data.floatStride();
+        float[] vertices = new float[vertexCount * stride];
+        data.vertexBuffer().get(0, vertices);
+
+        // Buckets hash the position cell (or the exact bits); collisions only cost extra comparisons
+        int bucketCount = Integer.highestOneBit(Math.max(16, vertexCount * 2 - 1)) << 1;
+        int[] heads = new int[bucketCount];
+        Arrays.fill(heads, -1);
+        int[] next = new int[vertexCount];
+        int[] remap = new int[vertexCount];
+        int[] representative = new int[vertexCount];
+        int unique = 0;
+        float cell = epsilon > 0 ? epsilon * 2 : 0;
+        for (int v = 0; v < vertexCount; v++) {
+            int base = v * stride;
+            int match = -1;
+            if (cell == 0) {
+                match = findWeld(vertices, stride, base, heads[exactBucket(vertices, base, stride) & (bucketCount - 1)], next, 0);
+            } else {
+                // A match within epsilon can sit in a neighbouring cell
+                int cx = (int) Math.floor(vertices[base] / cell);
+                int cy = (int) Math.floor(vertices[base + 1] / cell);
+                int cz = (int) Math.floor(vertices[base + 2] / cell);
+                for (int dx = -1; dx <= 1 && match < 0; dx++)
+                    for (int dy = -1; dy <= 1 && match < 0; dy++)
+                        for (int dz = -1; dz <= 1 && match < 0; dz++)
+                            match = findWeld(vertices, stride, base, heads[cellBucket(cx + dx, cy + dy, cz + dz) & (bucketCount - 1)], next, epsilon);
+            }
+            if (match >= 0) {
+                remap[v] = remap[match];
+                continue;
+            }
+            remap[v] = unique;
+            representative[unique++] = v;
+            int bucket = (cell == 0 ? exactBucket(vertices, base, stride)
+                    : cellBucket((int) Math.floor(vertices[base] / cell), (int) Math.floor(vertices[base + 1] / cell), (int) Math.floor(vertices[base + 2] / cell))) & (bucketCount - 1);
+            next[v] = heads[bucket];
+            heads[bucket] = v;
+        }
+        if (unique == vertexCount)
+            return 0;
+
+        // Keep each representative's own values; remapVertices would let the last copy win
+        data.remapVertices(remap, unique);
+        for (int u = 0; u < unique; u++)
+            data.vertexBuffer().put(u * stride, vertices, representative[u] * stride, stride);
+        int kept = 0;
+        for (int f = 0; f < data.faceCount(); f++) {
+            int a = data.faceIndex(f, 0), b = data.faceIndex(f, 1), c = data.faceIndex(f, 2);
+            if (a != b && b != c && a != c)
+                data.setFace(kept++, a, b, c);
+        }
+        if (kept < data.faceCount())
+            Log.writeln(Log.DEBUG, "Vertex weld dropped " + (data.faceCount() - kept) + " collapsed faces");
+        data.truncateFaces(kept);
+        return vertexCount - unique;
+    }
+
+    private static int findWeld(float[] vertices, int stride, int base, int candidate, int[] next, float epsilon) {
+        for (; candidate >= 0; candidate = next[candidate]) {
+            int other = candidate * stride;
+            boolean same = true;
+            for (int i = 0; i < stride && same; i++) {
+                if (epsilon == 0)
+                    same = Float.floatToIntBits(vertices[base + i]) == Float.floatToIntBits(vertices[other + i]);
+                else
+                    same = Math.abs(vertices[base + i] - vertices[other + i]) <= epsilon;
+            }
+            if (same)
+                return candidate;
+        }
+        return -1;
+    }
+    private static int exactBucket(float[] vertices, int base, int stride) {
+        long hash = 0;
+        for (int i = 0; i < stride; i++)
+            hash = (hash ^ Float.floatToIntBits(vertices[base + i])) * 0x9E3779B97F4A7C15L;
+        return (int) (hash ^ (hash >>> 32));
+    }
+    private static int cellBucket(int x, int y, int z) {
+        long hash = (x * 0x9E3779B97F4A7C15L) ^ (y * 0xC2B2AE3D27D4EB4FL) ^ (z * 0x165667B19E3779F9L);
+        return (int) (hash ^ (hash >>> 29));
+    }
+
+    private static int[] readIndices(MeshData data) {
+        int[] indices = new int[data.indexCount()];
+        data.indexBuffer().get(indices);
+        return indices;
+    }
+    private static void writeIndices(MeshData data, int[] indices) {
+        data.indexBuffer().put(0, indices);
+    }
+
+    private MeshOptimizer(){} // Prevent instantiation
+}
@@ -0,0 +1,478 @@
+package lucenforge.graphics.primitives.mesh;
+
+import java.util.Arrays;
+import java.util.PriorityQueue;
+
+// Quadric error metric simplification (Garland & Heckbert) using half-edge collapses, so every
+// surviving vertex keeps its original texture coordinate and normal. Vertices on UV/normal seams
+// (positions shared by several vertices) collapse together with their other sides, each onto the
+// matching side of the target, so the seams move along themselves and never crack.
+public class MeshSimplifier {
+
+    // Mesh borders are kept in place by planes perpendicular to them, weighted this much
+    private static final double BORDER_WEIGHT = 10.0;
+    // How much attribute differences add to a collapse, relative to the squared mesh size
+    private static final double ATTRIBUTE_WEIGHT = 0.01;
+
+    // One candidate collapse; stale once either end has changed since it was queued
+    private record Collapse(double cost, int from, int to, int fromVersion, int toVersion) {}
+
+    // Simplify to roughly ratio of the faces
+    public static MeshData simplify(MeshData source, float ratio) {
+        return simplify(source, Math.max(1, (int) (source.faceCount() * ratio)), Double.MAX_VALUE);
+    }
+
+    // Simplify until at most targetFaces remain or the next collapse costs more than maxError
+    public static MeshData simplify(MeshData source, int targetFaces, double maxError) {
+        return new MeshSimplifier(source).run(targetFaces, maxError);
+    }
+
+    private final MeshData source;
+    private final int vertexCount;
+    private final int faceCount;
+    private final int[] indices;
+    private final float[] positions;
+    private final double[] quadrics;
+    // Ring through the vertices sharing each position; a vertex off any seam points at itself
+    private final int[] wedgeNext;
+    private final boolean[] removed;
+    private final int[] versions;
+    private final boolean[] faceDead;
+    private int[][] vertexFaces;
+    private int[] vertexFaceCount;
+    private final double attributeWeight;
+    private final PriorityQueue<Collapse> queue = new PriorityQueue<>((a, b) -> Double.compare(a.cost, b.cost));
+
+    private MeshSimplifier(MeshData source) {
+        this.source = source;
+        vertexCount = source.vertexCount();
+        faceCount = source.faceCount();
+        indices = new int[source.indexCount()];
+        source.indexBuffer().get(indices);
+        positions = new float[vertexCount * 3];
+        for (int v = 0; v < vertexCount; v++) {
+            positions[v * 3    ] = source.get(v, 0);
+            positions[v * 3 + 1] = source.get(v, 1);
+            positions[v * 3 + 2] = source.get(v, 2);
+        }
+        quadrics = new double[vertexCount * 10];
+        wedgeNext = new int[vertexCount];
+        removed = new boolean[vertexCount];
+        versions = new int[vertexCount];
+        faceDead = new boolean[faceCount];
+
+        // Scale attribute costs to the mesh size so they compete with geometric error
+        float[] min = {Float.POSITIVE_INFINITY, Float.POSITIVE_INFINITY, Float.POSITIVE_INFINITY};
+        float[] max = {Float.NEGATIVE_INFINITY, Float.NEGATIVE_INFINITY, Float.NEGATIVE_INFINITY};
+        for (int v = 0; v < vertexCount; v++) {
+            for (int k = 0; k < 3; k++) {
+                min[k] = Math.min(min[k], positions[v * 3 + k]);
+                max[k] = Math.max(max[k], positions[v * 3 + k]);
+            }
+        }
+        double diagonalSquared = 0;
+        for (int k = 0; k < 3 && vertexCount > 0; k++)
+            diagonalSquared += (max[k] - min[k]) * (max[k] - min[k]);
+        attributeWeight = ATTRIBUTE_WEIGHT * diagonalSquared;
+    }
+
+    private MeshData run(int targetFaces, double maxError) {
+        linkSeams();
+        buildAdjacency();
+        buildQuadrics();
+
+        // Queue every edge once
+        EdgeCounts seen = new EdgeCounts(faceCount * 3);
+        for (int f = 0; f < faceCount; f++) {
+            for (int corner = 0; corner < 3; corner++) {
+                int a = indices[f * 3 + corner];
+                int b = indices[f * 3 + (corner + 1) % 3];
+                if (seen.add(edgeKey(a, b)) == 1)
+                    queueEdge(a, b);
+            }
+        }
+
+        int liveFaces = faceCount;
+        while (liveFaces > targetFaces && !queue.isEmpty()) {
+            Collapse collapse = queue.poll();
+            int from = collapse.from, to = collapse.to;
+            if (removed[from] || removed[to] || versions[from] != collapse.fromVersion || versions[to] != collapse.toVersion)
+                continue;
+            if (collapse.cost > maxError)
+                break;
+            // Neighbouring collapses may have changed which sides of a seam still meet
+            int[] pairs = collapsePairs(from, to);
+            if (pairs == null)
+                continue;
+            boolean flips = false;
+            for (int p = 0; p < pairs.length && !flips; p += 2)
+                flips = flipsFaces(pairs[p], pairs[p + 1]);
+            if (flips)
+                continue;
+
+            for (int p = 0; p < pairs.length; p += 2)
+                liveFaces -= moveFaces(pairs[p], pairs[p + 1]);
+            // Every side of from's position goes, including any no face uses anymore
+            int w = from;
+            do {
+                removed[w] = true;
+                w = wedgeNext[w];
+            } while (w != from);
+
+            // Requeue the edges around every side of the surviving position
+            w = to;
+            do {
+                versions[w]++;
+                for (int i = 0; i < vertexFaceCount[w]; i++) {
+                    int f = vertexFaces[w][i];
+                    if (faceDead[f])
+                        continue;
+                    for (int corner = 0; corner < 3; corner++) {
+                        int other = indices[f * 3 + corner];
+                        if (other != w)
+                            queueEdge(w, other);
+                    }
+                }
+                w = wedgeNext[w];
+            } while (w != to);
+        }
+        return compact(liveFaces);
+    }
+
+    // Move from's faces onto to, dropping the ones that become degenerate; returns how many dropped
+    private int moveFaces(int from, int to) {
+        int dropped = 0;
+        for (int i = 0; i < vertexFaceCount[from]; i++) {
+            int f = vertexFaces[from][i];
+            if (faceDead[f])
+                continue;
+            int a = indices[f * 3], b = indices[f * 3 + 1], c = indices[f * 3 + 2];
+            if (a == to || b == to || c == to) {
+                faceDead[f] = true;
+                dropped++;
+                continue;
+            }
+            for (int corner = 0; corner < 3; corner++)
+                if (indices[f * 3 + corner] == from)
+                    indices[f * 3 + corner] = to;
+            addVertexFace(to, f);
+        }
+        for (int k = 0; k < 10; k++)
+            quadrics[to * 10 + k] += quadrics[from * 10 + k];
+        return dropped;
+    }
+
+    // Link vertices that share a position (the sides of UV or normal seams) into rings. Sorting
+    // position hashes packed with the vertex index keeps the sort on primitives.
+    private void linkSeams() {
+        long[] keys = new long[vertexCount];
+        for (int v = 0; v < vertexCount; v++) {
+            keys[v] = ((long) positionHash(v) << 32) | v;
+            wedgeNext[v] = v;
+        }
+        Arrays.sort(keys);
+        int start = 0;
+        while (start < vertexCount) {
+            int end = start + 1;
+            while (end < vertexCount && (keys[end] >> 32) == (keys[start] >> 32))
+                end++;
+            // Equal hashes almost always mean equal positions; link the ones that really are
+            for (int i = start + 1; i < end; i++) {
+                int v = (int) keys[i];
+                for (int j = start; j < i; j++) {
+                    int u = (int) keys[j];
+                    if (samePosition(u, v)) {
+                        wedgeNext[v] = wedgeNext[u];
+                        wedgeNext[u] = v;
+                        break;
+                    }
+                }
+            }
+            start = end;
+        }
+    }
+    private int positionHash(int v) {
+        int hash = 0;
+        for (int k = 0; k < 3; k++) {
+            float x = positions[v * 3 + k];
+            // -0 and 0 are the same place
+            hash = (hash ^ Float.floatToIntBits(x == 0 ? 0 : x)) * 0x9E3779B1;
+        }
+        return hash;
+    }
+    private boolean samePosition(int a, int b) {
+        return positions[a * 3] == positions[b * 3] && positions[a * 3 + 1] == positions[b * 3 + 1] && positions[a * 3 + 2] == positions[b * 3 + 2];
+    }
+
+    // The (from side, to side) vertex pairs collapsing from onto to takes, or null if it would open a
+    // seam: every side of from's position that still has faces needs a side of to's position it
+    // shares a face with, so the seam edge between them collapses on both sides at once
+    private int[] collapsePairs(int from, int to) {
+        if (wedgeNext[from] == from)
+            return new int[] { from, to };
+        int[] pairs = new int[0];
+        int w = from;
+        do {
+            if (!removed[w] && hasLiveFaces(w)) {
+                int partner = w == from ? to : partner(w, to);
+                if (partner < 0)
+                    return null;
+                pairs = Arrays.copyOf(pairs, pairs.length + 2);
+                pairs[pairs.length - 2] = w;
+                pairs[pairs.length - 1] = partner;
+            }
+            w = wedgeNext[w];
+        } while (w != from);
+        return pairs;
+    }
+    private boolean hasLiveFaces(int v) {
+        for (int i = 0; i < vertexFaceCount[v]; i++) {
+            if (!faceDead[vertexFaces[v][i]])
+                return true;
+        }
+        return false;
+    }
+    // A vertex at to's position that v shares a live face with, or -1
+    private int partner(int v, int to) {
+        for (int i = 0; i < vertexFaceCount[v]; i++) {
+            int f = vertexFaces[v][i];
+            if (faceDead[f])
+                continue;
+            for (int corner = 0; corner < 3; corner++) {
+                int u = indices[f * 3 + corner];
+                if (u != v && !removed[u] && samePosition(u, to))
+                    return u;
+            }
+        }
+        return -1;
+    }
+
+    private void buildAdjacency() {
+        vertexFaceCount = new int[vertexCount];
+        for (int i : indices)
+            vertexFaceCount[i]++;
+        vertexFaces = new int[vertexCount][];
+        for (int v = 0; v < vertexCount; v++)
+            vertexFaces[v] = new int[Math.max(4, vertexFaceCount[v])];
+        Arrays.fill(vertexFaceCount, 0);
+        for (int f = 0; f < faceCount; f++) {
+            for (int corner = 0; corner < 3; corner++) {
+                int v = indices[f * 3 + corner];
+                // Degenerate input faces may list a vertex twice
+                if (corner == 0 || v != indices[f * 3] && (corner == 1 || v != indices[f * 3 + 1]))
+                    addVertexFace(v, f);
+            }
+        }
+    }
+    private void addVertexFace(int v, int f) {
+        if (vertexFaceCount[v] == vertexFaces[v].length)
+            vertexFaces[v] = Arrays.copyOf(vertexFaces[v], vertexFaces[v].length * 2);
+        vertexFaces[v][vertexFaceCount[v]++] = f;
+    }
+
+    // Area-weighted face planes, plus border planes for edges used by a single face
+    private void buildQuadrics() {
+        EdgeCounts edgeUse = new EdgeCounts(faceCount * 3);
+        for (int f = 0; f < faceCount; f++) {
+            for (int corner = 0; corner < 3; corner++)
+                edgeUse.add(edgeKey(indices[f * 3 + corner], indices[f * 3 + (corner + 1) % 3]));
+        }
+        double[] normal = new double[3];
+        for (int f = 0; f < faceCount; f++) {
+            int a = indices[f * 3], b = indices[f * 3 + 1], c = indices[f * 3 + 2];
+            double area = faceNormal(a, b, c, normal);
+            if (area == 0)
+                continue;
+            double d = -(normal[0] * positions[a * 3] + normal[1] * positions[a * 3 + 1] + normal[2] * positions[a * 3 + 2]);
+            for (int v : new int[] { a, b, c })
+                addPlane(v, normal[0], normal[1], normal[2], d, area);
+
+            for (int corner = 0; corner < 3; corner++) {
+                int p = indices[f * 3 + corner];
+                int q = indices[f * 3 + (corner + 1) % 3];
+                if (edgeUse.get(edgeKey(p, q)) != 1)
+                    continue;
+                double ex = positions[q * 3] - positions[p * 3];
+                double ey = positions[q * 3 + 1] - positions[p * 3 + 1];
+                double ez = positions[q * 3 + 2] - positions[p * 3 + 2];
+                double edgeLengthSquared = ex * ex + ey * ey + ez * ez;
+                // Plane containing the edge, perpendicular to the face
+                double bx = ey * normal[2] - ez * normal[1];
+                double by = ez * normal[0] - ex * normal[2];
+                double bz = ex * normal[1] - ey * normal[0];
+                double length = Math.sqrt(bx * bx + by * by + bz * bz);
+                if (length == 0)
+                    continue;
+                bx /= length;
+                by /= length;
+                bz /= length;
+                double bd = -(bx * positions[p * 3] + by * positions[p * 3 + 1] + bz * positions[p * 3 + 2]);
+                addPlane(p, bx, by, bz, bd, BORDER_WEIGHT * edgeLengthSquared);
+                addPlane(q, bx, by, bz, bd, BORDER_WEIGHT * edgeLengthSquared);
+            }
+        }
+    }
+    private void addPlane(int v, double a, double b, double c, double d, double weight) {
+        int q = v * 10;
+        quadrics[q    ] += weight * a * a;
+        quadrics[q + 1] += weight * a * b;
+        quadrics[q + 2] += weight * a * c;
+        quadrics[q + 3] += weight * a * d;
+        quadrics[q + 4] += weight * b * b;
+        quadrics[q + 5] += weight * b * c;
+        quadrics[q + 6] += weight * b * d;
+        quadrics[q + 7] += weight * c * c;
+        quadrics[q + 8] += weight * c * d;
+        quadrics[q + 9] += weight * d * d;
+    }
+
+    // Error of moving both vertices' planes onto position p
+    private double quadricError(int u, int v, int p) {
+        double x = positions[p * 3], y = positions[p * 3 + 1], z = positions[p * 3 + 2];
+        double error = 0;
+        for (int q : new int[] { u * 10, v * 10 }) {
+            error += quadrics[q] * x * x + 2 * quadrics[q + 1] * x * y + 2 * quadrics[q + 2] * x * z + 2 * quadrics[q + 3] * x
+                    + quadrics[q + 4] * y * y + 2 * quadrics[q + 5] * y * z + 2 * quadrics[q + 6] * y
+                    + quadrics[q + 7] * z * z + 2 * quadrics[q + 8] * z
+                    + quadrics[q + 9];
+        }
+        return Math.max(0, error);
+    }
+
+    // How different the attributes of two vertices are
+    private double attributeError(int u, int v) {
+        double error = 0;
+        int tex = source.texCoordOffset();
+        if (tex >= 0) {
+            double du = source.get(u, tex) - source.get(v, tex);
+            double dv = source.get(u, tex + 1) - source.get(v, tex + 1);
+            error += du * du + dv * dv;
+        }
+        int nor = source.normalOffset();
+        if (nor >= 0) {
+            double dot = source.get(u, nor) * source.get(v, nor) + source.get(u, nor + 1) * source.get(v, nor + 1) + source.get(u, nor + 2) * source.get(v, nor + 2);
+            error += 1.0 - dot;
+        }
+        return error * attributeWeight;
+    }
+
+    // Error of collapsing from onto to, summed over the seam sides that move with it
+    private double collapseCost(int from, int to) {
+        int[] pairs = collapsePairs(from, to);
+        if (pairs == null)
+            return Double.MAX_VALUE;
+        double cost = 0;
+        for (int p = 0; p < pairs.length; p += 2)
+            cost += quadricError(pairs[p], pairs[p + 1], pairs[p + 1]) + attributeError(pairs[p], pairs[p + 1]);
+        return cost;
+    }
+
+    // Queue the cheaper direction of collapsing the edge (a, b)
+    private void queueEdge(int a, int b) {
+        if (a == b || removed[a] || removed[b])
+            return;
+        double aToB = collapseCost(a, b);
+        double bToA = collapseCost(b, a);
+        if (aToB == Double.MAX_VALUE && bToA == Double.MAX_VALUE)
+            return;
+        if (aToB <= bToA)
+            queue.add(new Collapse(aToB, a, b, versions[a], versions[b]));
+        else
+            queue.add(new Collapse(bToA, b, a, versions[b], versions[a]));
+    }
+
+    // Whether moving from onto to would turn any of from's remaining faces over
+    private boolean flipsFaces(int from, int to) {
+        double[] before = new double[3];
+        double[] after = new double[3];
+        for (int i = 0; i < vertexFaceCount[from]; i++) {
+            int f = vertexFaces[from][i];
+            if (faceDead[f])
+                continue;
+            int a = indices[f * 3], b = indices[f * 3 + 1], c = indices[f * 3 + 2];
+            if (a == to || b == to || c == to)
+                continue;
+            if (faceNormal(a, b, c, before) == 0)
+                continue;
+            double area = faceNormal(a == from ? to : a, b == from ? to : b, c == from ? to : c, after);
+            if (area == 0 || before[0] * after[0] + before[1] * after[1] + before[2] * after[2] < 0.0)
+                return true;
+        }
+        return false;
+    }
+
+    // Unit normal into dest; returns the face area
+    private double faceNormal(int a, int b, int c, double[] dest) {
+        double e1x = positions[b * 3] - positions[a * 3], e1y = positions[b * 3 + 1] - positions[a * 3 + 1], e1z = positions[b * 3 + 2] - positions[a * 3 + 2];
+        double e2x = positions[c * 3] - positions[a * 3], e2y = positions[c * 3 + 1] - positions[a * 3 + 1], e2z = positions[c * 3 + 2] - positions[a * 3 + 2];
+        double nx = e1y * e2z - e1z * e2y;
+        double ny = e1z * e2x - e1x * e2z;
+        double nz = e1x * e2y - e1y * e2x;
+        double length = Math.sqrt(nx * nx + ny * ny + nz * nz);
+        if (length == 0)
+            return 0;
+        dest[0] = nx / length;
+        dest[1] = ny / length;
+        dest[2] = nz / length;
+        return length * 0.5;
+    }
+
+    // Copy the surviving faces and the vertices they use into fresh data
+    private MeshData compact(int liveFaces) {
+        MeshData result = new MeshData(source.layout(), Math.max(1, liveFaces), Math.max(1, liveFaces));
+        int[] remap = new int[vertexCount];
+        Arrays.fill(remap, -1);
+        for (int f = 0; f < faceCount; f++) {
+            if (faceDead[f])
+                continue;
+            int[] corner = new int[3];
+            for (int k = 0; k < 3; k++) {
+                int v = indices[f * 3 + k];
+                if (remap[v] < 0)
+                    remap[v] = result.addVertex(source, v);
+                corner[k] = remap[v];
+            }
+            result.addFace(corner[0], corner[1], corner[2]);
+        }
+        return result;
+    }
+
+    private static long edgeKey(int a, int b) {
+        return a < b ? ((long) a << 32) | (b & 0xFFFFFFFFL) : ((long) b << 32) | (a & 0xFFFFFFFFL);
+    }
+
+    // Open addressing count per edge key, sized up front for every corner of every face so it
+    // never has to grow
+    private static final class EdgeCounts {
+        private static final long EMPTY = -1L; // Vertex indices are never negative
+        private final long[] keys;
+        private final int[] counts;
+
+        EdgeCounts(int maxEdges) {
+            int capacity = Integer.highestOneBit(Math.max(16, maxEdges * 2 - 1)) << 1;
+            keys = new long[capacity];
+            Arrays.fill(keys, EMPTY);
+            counts = new int[capacity];
+        }
+
+        // Count one more use of the edge and return its count so far
+        int add(long key) {
+            int slot = find(key);
+            keys[slot] = key;
+            return ++counts[slot];
+        }
+
+        int get(long key) {
+            return counts[find(key)];
+        }
+
+        // The key's slot, or the empty one it would go in
+        private int find(long key) {
+            int mask = keys.length - 1;
+            int slot = (int) ((key * 0x9E3779B97F4A7C15L) >>> 32) & mask;
+            while (keys[slot] != EMPTY && keys[slot] != key)
+                slot = (slot + 1) & mask;
+            return slot;
+        }
+    }
+}
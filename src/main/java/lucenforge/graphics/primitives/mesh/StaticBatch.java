@@ -0,0 +1,267 @@
+package lucenforge.graphics.primitives.mesh;
+
+import lucenforge.files.Properties;
+import lucenforge.graphics.GraphicsManager;
+import lucenforge.graphics.Texture;
+import lucenforge.graphics.shaders.Shader;
+import lucenforge.graphics.shaders.VertexAttributeType;
+import org.joml.Matrix3f;
+import org.joml.Matrix4f;
+import org.joml.Vector2f;
+import org.joml.Vector3f;
+import org.lwjgl.PointerBuffer;
+import org.lwjgl.opengl.GL;
+import org.lwjgl.opengl.GLCapabilities;
+
+import java.nio.FloatBuffer;
+import java.nio.IntBuffer;
+import java.util.ArrayList;
+
+import static org.lwjgl.opengl.ARBVertexArrayObject.*;
+import static org.lwjgl.opengl.GL20.*;
+import static org.lwjgl.opengl.GL32.glMultiDrawElementsBaseVertex;
+import static org.lwjgl.opengl.GL33.glVertexAttribDivisor;
+import static org.lwjgl.opengl.GL40.GL_DRAW_INDIRECT_BUFFER;
+import static org.lwjgl.opengl.GL43.glMultiDrawElementsIndirect;
+import static org.lwjgl.system.MemoryUtil.*;
+
+// Parts of a frozen MeshGroup that share a shader, texture, vertex layout and uniforms, merged into one
+// vertex and index buffer and drawn with a single multi-draw. With indirect draws every part is
+// its own command whose base instance is the part index, so its transform is fetched from a
+// per-part instanceModel attribute. Otherwise the part transforms are baked into the vertices.
+class StaticBatch {
+
+    private static final int COMMAND_INTS = 5; // count, instanceCount, firstIndex, baseVertex, baseInstance
+    private static final VertexAttributeType[] DIRECTIONS = { VertexAttributeType.NORMAL_IN, VertexAttributeType.TANGENT_IN };
+
+    private final Shader shader;
+    private final Texture texture;
+    private final ArrayList<Mesh> parts = new ArrayList<>();
+    private final MeshData merged;
+    private final boolean indirect;
+
+    // Where each part sits in the merged buffers
+    private final int[] firstVertex;
+    private final IntBuffer counts;
+    private final IntBuffer baseVertices;
+    private final PointerBuffer indexOffsets;
+
+    // Part transforms relative to the group, for the instance buffer
+    private final FloatBuffer partMatrices;
+
+    private int vao, vbo, ebo, instanceVbo, commandBuffer;
+
+    StaticBatch(Shader shader, Texture texture, ArrayList<Mesh> parts, Matrix4f[] transforms) {
+        this.shader = shader;
+        this.texture = texture;
+        this.parts.addAll(parts);
+        this.indirect = isIndirectSupported() && shader.getAttributeLocation(VertexAttributeType.INSTANCE_MODEL_IN) != null;
+
+        int totalVertices = 0, totalFaces = 0;
+        for (Mesh part : parts) {
+            totalVertices += part.data().vertexCount();
+            totalFaces += part.data().faceCount();
+        }
+        int partCount = parts.size();
+        merged = new MeshData(parts.get(0).data().layout(), totalVertices, totalFaces);
+        firstVertex = new int[partCount];
+        counts = memAllocInt(partCount);
+        baseVertices = memAllocInt(partCount);
+        indexOffsets = memAllocPointer(partCount);
+        partMatrices = memAllocFloat(partCount * 16);
+
+        // Indices stay relative to their part; the base vertex shifts them at draw time
+        for (int p = 0; p < partCount; p++) {
+            MeshData data = parts.get(p).data();
+            firstVertex[p] = merged.vertexCount();
+            counts.put(p, data.indexCount());
+            baseVertices.put(p, firstVertex[p]);
+            indexOffsets.put(p, (long) merged.indexCount() * Integer.BYTES);
+            for (int v = 0; v < data.vertexCount(); v++)
+                merged.addVertex(data, v);
+            for (int f = 0; f < data.faceCount(); f++)
+                merged.addFace(data.faceIndex(f, 0), data.faceIndex(f, 1), data.faceIndex(f, 2));
+            bakeAtlasView(p);
+            transforms[p].get(p * 16, partMatrices);
+            if (!indirect)
+                bake(p, transforms[p]);
+        }
+        upload();
+    }
+
+    // Move a part's texcoords into its atlas rectangle, since the batch binds the whole page
+    private void bakeAtlasView(int part) {
+        Texture view = parts.get(part).texture();
+        if (view == null || !view.isView() || !merged.layout().has(VertexAttributeType.TEXTURE_IN))
+            return;
+        Vector2f scale = view.uvScale(), offset = view.uvOffset();
+        for (int v = 0; v < parts.get(part).data().vertexCount(); v++) {
+            int target = firstVertex[part] + v;
+            float u = merged.getAttribute(target, VertexAttributeType.TEXTURE_IN, 0);
+            float w = merged.getAttribute(target, VertexAttributeType.TEXTURE_IN, 1);
+            merged.setTexCoord(target, u * scale.x + offset.x, w * scale.y + offset.y);
+        }
+    }
+
+    // Multi-draw indirect with base instances, unless disabled in the properties
+    static boolean isIndirectSupported() {
+        GLCapabilities caps = GL.getCapabilities();
+        boolean supported = caps.OpenGL43 || (caps.GL_ARB_multi_draw_indirect && caps.GL_ARB_base_instance);
+        return supported && Properties.getBool("graphics", "indirect_draws", true);
+    }
+
+    // Overwrite a part's merged vertices with its source vertices under the transform
+    private void bake(int part, Matrix4f transform) {
+        MeshData source = parts.get(part).data();
+        VertexLayout layout = merged.layout();
+        Matrix3f normalMatrix = transform.normal(new Matrix3f());
+        Vector3f scratch = new Vector3f();
+        for (int v = 0; v < source.vertexCount(); v++) {
+            int target = firstVertex[part] + v;
+            source.getPosition(v, scratch);
+            transform.transformPosition(scratch);
+            merged.setPosition(target, scratch.x, scratch.y, scratch.z);
+            for (VertexAttributeType type : DIRECTIONS) {
+                if (!layout.has(type))
+                    continue;
+                scratch.set(source.getAttribute(v, type, 0), source.getAttribute(v, type, 1), source.getAttribute(v, type, 2));
+                normalMatrix.transform(scratch).normalize();
+                float w = type.components > 3 ? source.getAttribute(v, type, 3) : 0;
+                merged.setAttribute(target, type, scratch.x, scratch.y, scratch.z, w);
+            }
+        }
+    }
+
+    private void upload() {
+        vao = glGenVertexArrays();
+        vbo = glGenBuffers();
+        ebo = glGenBuffers();
+        glBindVertexArray(vao);
+
+        glBindBuffer(GL_ARRAY_BUFFER, vbo);
+        glBufferData(GL_ARRAY_BUFFER, merged.vertexBuffer(), GL_STATIC_DRAW);
+        GraphicsManager.countUpload(merged.vertexBytes());
+        merged.clearDirty();
+        int byteStride = merged.byteStride();
+        for (VertexAttributeType type : merged.layout().attributes()) {
+            Integer location = shader.getAttributeLocation(type);
+            if (location == null)
+                continue;
+            glVertexAttribPointer(location, type.components, GL_FLOAT, false, byteStride, (long) merged.layout().offset(type) * Float.BYTES);
+            glEnableVertexAttribArray(location);
+        }
+
+        glBindBuffer(GL_ELEMENT_ARRAY_BUFFER, ebo);
+        glBufferData(GL_ELEMENT_ARRAY_BUFFER, merged.indexBuffer(), GL_STATIC_DRAW);
+
+        if (indirect) {
+            // The base instance of each command picks its part's matrix
+            instanceVbo = glGenBuffers();
+            glBindBuffer(GL_ARRAY_BUFFER, instanceVbo);
+            glBufferData(GL_ARRAY_BUFFER, partMatrices, GL_DYNAMIC_DRAW);
+            int modelLoc = shader.getAttributeLocation(VertexAttributeType.INSTANCE_MODEL_IN);
+            for (int column = 0; column < 4; column++) {
+                glVertexAttribPointer(modelLoc + column, 4, GL_FLOAT, false, 16 * Float.BYTES, (long) column * 4 * Float.BYTES);
+                glEnableVertexAttribArray(modelLoc + column);
+                glVertexAttribDivisor(modelLoc + column, 1);
+            }
+
+            int partCount = parts.size();
+            IntBuffer commands = memAllocInt(partCount * COMMAND_INTS);
+            for (int p = 0; p < partCount; p++) {
+                commands.put(counts.get(p)).put(1);
+                commands.put((int) (indexOffsets.get(p) / Integer.BYTES));
+                commands.put(baseVertices.get(p)).put(p);
+            }
+            commands.flip();
+            commandBuffer = glGenBuffers();
+            glBindBuffer(GL_DRAW_INDIRECT_BUFFER, commandBuffer);
+            glBufferData(GL_DRAW_INDIRECT_BUFFER, commands, GL_STATIC_DRAW);
+            glBindBuffer(GL_DRAW_INDIRECT_BUFFER, 0);
+            memFree(commands);
+        }
+
+        glBindBuffer(GL_ARRAY_BUFFER, 0);
+        glBindVertexArray(0);
+    }
+
+    // Move a part; sends one matrix with indirect draws, otherwise re-bakes its vertices
+    void setPartTransform(int part, Matrix4f transform) {
+        transform.get(part * 16, partMatrices);
+        if (indirect) {
+            glBindBuffer(GL_ARRAY_BUFFER, instanceVbo);
+            glBufferSubData(GL_ARRAY_BUFFER, (long) part * 16 * Float.BYTES, memSlice(partMatrices, part * 16, 16));
+            GraphicsManager.countUpload(16 * Float.BYTES);
+        } else {
+            bake(part, transform);
+            int count = parts.get(part).data().vertexCount();
+            glBindBuffer(GL_ARRAY_BUFFER, vbo);
+            glBufferSubData(GL_ARRAY_BUFFER, (long) firstVertex[part] * merged.byteStride(), merged.vertexBuffer(firstVertex[part], count));
+            GraphicsManager.countUpload((long) count * merged.byteStride());
+            merged.clearDirty();
+        }
+        glBindBuffer(GL_ARRAY_BUFFER, 0);
+    }
+
+    int indexOf(Mesh part) {
+        return parts.indexOf(part);
+    }
+
+    // Draw every part with the group's model matrix
+    void render(Matrix4f groupModel) {
+        // Parts of one group may use different shaders than the one the render layer bound
+        shader.bind();
+        // Parts only share a batch when their custom uniforms match, so the first part's stand for
+        // all of them; the transform comes from the group
+        Mesh first = parts.get(0);
+        first.pushParamsToShader();
+        if (shader.isUniformRequired("model"))
+            shader.requiredParameter("model").set(groupModel);
+        if (shader.isUniformRequired("positionScale") && shader.isUniformRequired("positionOffset")) {
+            shader.requiredParameter("positionScale").set(new Vector3f(1));
+            shader.requiredParameter("positionOffset").set(new Vector3f());
+        }
+        if (texture != null && shader.isUniformRequired("texture0"))
+            texture.pushParamsToShader(shader, 0);
+        if (!shader.checkAndSendParametersToGPU())
+            return;
+
+        glBindVertexArray(vao);
+        if (indirect) {
+            glBindBuffer(GL_DRAW_INDIRECT_BUFFER, commandBuffer);
+            glMultiDrawElementsIndirect(GL_TRIANGLES, GL_UNSIGNED_INT, 0, parts.size(), 0);
+            glBindBuffer(GL_DRAW_INDIRECT_BUFFER, 0);
+        } else {
+            // Transforms are baked, so a shader reading instanceModel gets identity
+            Integer modelLoc = shader.getAttributeLocation(VertexAttributeType.INSTANCE_MODEL_IN);
+            if (modelLoc != null) {
+                for (int column = 0; column < 4; column++)
+                    glVertexAttrib4f(modelLoc + column, column == 0 ? 1 : 0, column == 1 ? 1 : 0, column == 2 ? 1 : 0, column == 3 ? 1 : 0);
+            }
+            glMultiDrawElementsBaseVertex(GL_TRIANGLES, counts, GL_UNSIGNED_INT, indexOffsets, baseVertices);
+        }
+        glBindVertexArray(0);
+    }
+
+    int partCount() {
+        return parts.size();
+    }
+    boolean isIndirect() {
+        return indirect;
+    }
+
+    void cleanup() {
+        glDeleteVertexArrays(vao);
+        glDeleteBuffers(vbo);
+        glDeleteBuffers(ebo);
+        if (instanceVbo != 0)
+            glDeleteBuffers(instanceVbo);
+        if (commandBuffer != 0)
+            glDeleteBuffers(commandBuffer);
+        merged.free();
+        memFree(counts);
+        memFree(baseVertices);
+        memFree(indexOffsets);
+        memFree(partMatrices);
+    }
+}
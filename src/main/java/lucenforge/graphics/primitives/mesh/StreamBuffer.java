@@ -0,0 +1,133 @@
+package lucenforge.graphics.primitives.mesh;
+
+import lucenforge.files.Log;
+import lucenforge.files.Properties;
+import org.lwjgl.opengl.GL;
+import org.lwjgl.opengl.GLCapabilities;
+
+import java.nio.ByteBuffer;
+import java.nio.FloatBuffer;
+
+import static org.lwjgl.opengl.ARBBufferStorage.*;
+import static org.lwjgl.opengl.GL20.*;
+import static org.lwjgl.opengl.GL30.*;
+import static org.lwjgl.opengl.GL32.*;
+import static org.lwjgl.system.MemoryUtil.*;
+
+// Ring of vertex regions for per-frame streaming. With ARB_buffer_storage the whole ring is
+// persistently mapped and each region is guarded by a fence, so writes never wait on the driver
+// unless the GPU is still reading that exact region. Without it, the buffer is orphaned instead.
+public class StreamBuffer {
+
+    private static final long FENCE_TIMEOUT_NANOS = 1_000_000L; // Re-check every millisecond
+
+    private final int buffer;
+    private final long regionBytes;
+    private final int regionCount;
+    private final boolean persistent;
+    private final long[] fences;
+    private ByteBuffer mapped;
+    private int region = 0;
+
+    // Allocates the storage for the given buffer, which must be bound to GL_ARRAY_BUFFER
+    public StreamBuffer(int buffer, long regionBytes) {
+        this.buffer = buffer;
+        this.regionBytes = regionBytes;
+        this.persistent = isPersistentSupported();
+        this.regionCount = persistent ? Math.max(1, Properties.getInt("graphics", "stream_buffer_regions", 3)) : 1;
+        this.fences = new long[regionCount];
+
+        if (persistent) {
+            int flags = GL_MAP_WRITE_BIT | GL_MAP_PERSISTENT_BIT | GL_MAP_COHERENT_BIT;
+            glBufferStorage(GL_ARRAY_BUFFER, regionBytes * regionCount, flags);
+            mapped = glMapBufferRange(GL_ARRAY_BUFFER, 0, regionBytes * regionCount, flags);
+            if (mapped == null)
+                Log.writeln(Log.ERROR, "Failed to persistently map stream buffer!");
+        } else {
+            glBufferData(GL_ARRAY_BUFFER, regionBytes, GL_STREAM_DRAW);
+        }
+    }
+
+    // Whether persistent mapping is available and enabled
+    public static boolean isPersistentSupported() {
+        GLCapabilities caps = GL.getCapabilities();
+        boolean supported = caps.OpenGL44 || caps.GL_ARB_buffer_storage;
+        return supported && Properties.getBool("graphics", "persistent_stream_buffers", true);
+    }
+
+    // Write the vertex data into the next region; the buffer must be bound to GL_ARRAY_BUFFER
+    public void write(FloatBuffer vertices) {
+        write(memAddress(vertices), (long) vertices.remaining() * Float.BYTES);
+    }
+    public void write(ByteBuffer vertices) {
+        write(memAddress(vertices), vertices.remaining());
+    }
+    public void write(long address, long bytes) {
+        bytes = Math.min(bytes, regionBytes);
+        if (persistent) {
+            if (mapped == null)
+                return;
+            region = (region + 1) % regionCount;
+            waitForRegion(region);
+            memCopy(address, memAddress(mapped) + region * regionBytes, bytes);
+        } else {
+            // Orphan the old storage so the driver can hand us fresh memory without a stall
+            glBufferData(GL_ARRAY_BUFFER, regionBytes, GL_STREAM_DRAW);
+            nglBufferSubData(GL_ARRAY_BUFFER, 0, bytes, address);
+        }
+    }
+
+    // Place a fence after the draw that reads the current region
+    public void fence() {
+        if (!persistent)
+            return;
+        if (fences[region] != 0)
+            glDeleteSync(fences[region]);
+        fences[region] = glFenceSync(GL_SYNC_GPU_COMMANDS_COMPLETE, 0);
+    }
+
+    // Block until the GPU is done reading the region
+    private void waitForRegion(int index) {
+        long sync = fences[index];
+        if (sync == 0)
+            return;
+        while (true) {
+            int result = glClientWaitSync(sync, GL_SYNC_FLUSH_COMMANDS_BIT, FENCE_TIMEOUT_NANOS);
+            if (result == GL_ALREADY_SIGNALED || result == GL_CONDITION_SATISFIED)
+                break;
+            if (result == GL_WAIT_FAILED) {
+                Log.writeln(Log.ERROR, "Waiting on stream buffer fence failed!");
+                break;
+            }
+        }
+        glDeleteSync(sync);
+        fences[index] = 0;
+    }
+
+    // Index of the region the latest write went to
+    public int region() {
+        return region;
+    }
+
+    public boolean isPersistent() {
+        return persistent;
+    }
+    // Size of the whole ring
+    public long capacity() {
+        return regionBytes * regionCount;
+    }
+
+    public void cleanup() {
+        for (int i = 0; i < regionCount; i++) {
+            if (fences[i] != 0)
+                glDeleteSync(fences[i]);
+            fences[i] = 0;
+        }
+        if (mapped != null) {
+            glBindBuffer(GL_ARRAY_BUFFER, buffer);
+            glUnmapBuffer(GL_ARRAY_BUFFER);
+            glBindBuffer(GL_ARRAY_BUFFER, 0);
+            mapped = null;
+        }
+    }
+}
@@ -18,7 +18,7 @@ public class Vertex {
 
     public Vertex(Vector3f position, Vector2f texture, Vector3f normal) {
         this.position = new Vector3f(position); // ← clone
-        this.texture = texture != null ? new Vector2f(normal) : null; // ← clone
+        this.texture = texture != null ? new Vector2f(texture) : null; // ← clone
         this.normal = normal != null ? new Vector3f(normal) : null; // ← clone
     }
 
@@ -0,0 +1,293 @@
+package lucenforge.graphics.primitives.mesh;
+
+import lucenforge.graphics.shaders.VertexAttributeType;
+import org.joml.Vector3f;
+
+import java.nio.ByteBuffer;
+import java.nio.IntBuffer;
+
+import static org.lwjgl.opengl.GL11.*;
+import static org.lwjgl.opengl.GL30.GL_HALF_FLOAT;
+import static org.lwjgl.opengl.GL33.GL_INT_2_10_10_10_REV;
+import static org.lwjgl.system.MemoryUtil.*;
+
+// How a mesh's vertices and indices are stored on the GPU. The CPU copy in MeshData
+// is always full floats; anything other than FULL is packed at upload time.
+public class VertexEncoding {
+
+    public enum Positions {
+        FLOAT,           // 12 bytes
+        QUANTIZED_SHORT  // 8 bytes, normalized to the mesh bounds; needs positionScale/positionOffset uniforms
+    }
+    public enum TexCoords {
+        FLOAT,            // 8 bytes
+        HALF_FLOAT,       // 4 bytes
+        NORMALIZED_SHORT  // 4 bytes, clamps to [0, 1] so no tiling beyond one repeat
+    }
+    public enum Normals {
+        FLOAT,            // 12 bytes
+        PACKED_10_10_10_2 // 4 bytes, signed normalized
+    }
+    public enum Indices {
+        UNSIGNED_INT,
+        SMALLEST          // 16 bit when the vertex count fits
+    }
+
+    public static final VertexEncoding FULL = new VertexEncoding(Positions.FLOAT, TexCoords.FLOAT, Normals.FLOAT, Indices.UNSIGNED_INT);
+    public static final VertexEncoding COMPACT = new VertexEncoding(Positions.FLOAT, TexCoords.HALF_FLOAT, Normals.PACKED_10_10_10_2, Indices.SMALLEST);
+    public static final VertexEncoding COMPACT_QUANTIZED = new VertexEncoding(Positions.QUANTIZED_SHORT, TexCoords.HALF_FLOAT, Normals.PACKED_10_10_10_2, Indices.SMALLEST);
+
+    public final Positions positions;
+    public final TexCoords texCoords;
+    public final Normals normals;
+    public final Indices indices;
+
+    public VertexEncoding(Positions positions, TexCoords texCoords, Normals normals, Indices indices) {
+        this.positions = positions;
+        this.texCoords = texCoords;
+        this.normals = normals;
+        this.indices = indices;
+    }
+
+    public VertexEncoding withPositions(Positions positions) {
+        return new VertexEncoding(positions, texCoords, normals, indices);
+    }
+
+    // Whether the packed MeshData floats can be uploaded as they are
+    public boolean isPassthrough() {
+        return positions == Positions.FLOAT && texCoords == TexCoords.FLOAT && normals == Normals.FLOAT;
+    }
+    public boolean isQuantized() {
+        return positions == Positions.QUANTIZED_SHORT;
+    }
+
+    // Layout of one encoded vertex
+    public int positionBytes() {
+        return positions == Positions.FLOAT ? 3 * Float.BYTES : 4 * Short.BYTES; // shorts padded to 4 for alignment
+    }
+    public int texCoordBytes() {
+        return texCoords == TexCoords.FLOAT ? 2 * Float.BYTES : 2 * Short.BYTES;
+    }
+    public int normalBytes() {
+        return normals == Normals.FLOAT ? 3 * Float.BYTES : Integer.BYTES;
+    }
+    // Encoded size of one attribute; tangents follow the normal encoding, everything else stays float
+    public int attributeBytes(VertexAttributeType type) {
+        return switch (type) {
+            case POSITION_IN -> positionBytes();
+            case TEXTURE_IN, TEXTURE2_IN -> texCoordBytes();
+            case NORMAL_IN -> normalBytes();
+            case TANGENT_IN -> normals == Normals.FLOAT ? 4 * Float.BYTES : Integer.BYTES;
+            default -> type.components * Float.BYTES;
+        };
+    }
+    public int byteStride(MeshData data) {
+        int stride = 0;
+        for (VertexAttributeType type : data.layout().attributes())
+            stride += attributeBytes(type);
+        return stride;
+    }
+    // Byte offset of the attribute inside an encoded vertex, -1 if the mesh lacks it
+    public int byteOffset(MeshData data, VertexAttributeType type) {
+        int offset = 0;
+        for (VertexAttributeType present : data.layout().attributes()) {
+            if (present == type)
+                return offset;
+            offset += attributeBytes(present);
+        }
+        return -1;
+    }
+
+    // Attribute pointer parameters
+    public int positionType() {
+        return positions == Positions.FLOAT ? GL_FLOAT : GL_SHORT;
+    }
+    public int texCoordType() {
+        return switch (texCoords) {
+            case FLOAT -> GL_FLOAT;
+            case HALF_FLOAT -> GL_HALF_FLOAT;
+            case NORMALIZED_SHORT -> GL_UNSIGNED_SHORT;
+        };
+    }
+    public int normalType() {
+        return normals == Normals.FLOAT ? GL_FLOAT : GL_INT_2_10_10_10_REV;
+    }
+    public int attributeType(VertexAttributeType type) {
+        return switch (type) {
+            case POSITION_IN -> positionType();
+            case TEXTURE_IN, TEXTURE2_IN -> texCoordType();
+            case NORMAL_IN, TANGENT_IN -> normalType();
+            default -> GL_FLOAT;
+        };
+    }
+    public int attributeSize(VertexAttributeType type) {
+        return switch (type) {
+            case POSITION_IN -> positions == Positions.FLOAT ? 3 : 4;
+            case NORMAL_IN -> normals == Normals.FLOAT ? 3 : 4;
+            default -> type.components;
+        };
+    }
+    public boolean attributeNormalized(VertexAttributeType type) {
+        return switch (type) {
+            case POSITION_IN -> isQuantized();
+            case TEXTURE_IN, TEXTURE2_IN -> texCoords == TexCoords.NORMALIZED_SHORT;
+            case NORMAL_IN, TANGENT_IN -> normals != Normals.FLOAT;
+            default -> false;
+        };
+    }
+
+    // Index type to draw with for the given mesh
+    public int indexType(MeshData data) {
+        if (indices == Indices.SMALLEST && data.vertexCount() <= 0x10000)
+            return GL_UNSIGNED_SHORT;
+        return GL_UNSIGNED_INT;
+    }
+
+    // Pack vertices [first, first + count) into dest (absolute writes from position 0).
+    // For quantized positions, offset/scale map the bounds onto [-1, 1].
+    public void encode(MeshData data, int first, int count, Vector3f quantOffset, Vector3f quantScale, ByteBuffer dest) {
+        int stride = byteStride(data);
+        VertexLayout layout = data.layout();
+        int attributeCount = layout.attributes().size();
+        VertexAttributeType[] types = layout.attributes().toArray(new VertexAttributeType[0]);
+        int[] sourceOffsets = new int[attributeCount];
+        int[] byteOffsets = new int[attributeCount];
+        for (int a = 0, offset = 0; a < attributeCount; a++) {
+            sourceOffsets[a] = layout.offset(types[a]);
+            byteOffsets[a] = offset;
+            offset += attributeBytes(types[a]);
+        }
+        long address = memAddress(dest);
+        for (int i = 0; i < count; i++) {
+            int v = first + i;
+            long base = address + (long) i * stride;
+            for (int a = 0; a < attributeCount; a++) {
+                int src = sourceOffsets[a];
+                long dst = base + byteOffsets[a];
+                switch (types[a]) {
+                    case POSITION_IN -> encodePosition(data, v, quantOffset, quantScale, dst);
+                    case TEXTURE_IN, TEXTURE2_IN -> encodeTexCoord(data.get(v, src), data.get(v, src + 1), dst);
+                    case NORMAL_IN -> {
+                        if (normals == Normals.FLOAT) {
+                            memPutFloat(dst    , data.get(v, src));
+                            memPutFloat(dst + 4, data.get(v, src + 1));
+                            memPutFloat(dst + 8, data.get(v, src + 2));
+                        } else {
+                            memPutInt(dst, packNormal(data.get(v, src), data.get(v, src + 1), data.get(v, src + 2)));
+                        }
+                    }
+                    case TANGENT_IN -> {
+                        if (normals == Normals.FLOAT) {
+                            for (int c = 0; c < 4; c++)
+                                memPutFloat(dst + c * 4L, data.get(v, src + c));
+                        } else {
+                            // Handedness goes into the 2 bit w as -1 or 1
+                            int sign = data.get(v, src + 3) < 0 ? 0b11 : 0b01;
+                            memPutInt(dst, packNormal(data.get(v, src), data.get(v, src + 1), data.get(v, src + 2)) | (sign << 30));
+                        }
+                    }
+                    default -> {
+                        for (int c = 0; c < types[a].components; c++)
+                            memPutFloat(dst + c * 4L, data.get(v, src + c));
+                    }
+                }
+            }
+        }
+    }
+
+    private void encodePosition(MeshData data, int v, Vector3f quantOffset, Vector3f quantScale, long dst) {
+        if (positions == Positions.FLOAT) {
+            memPutFloat(dst    , data.get(v, 0));
+            memPutFloat(dst + 4, data.get(v, 1));
+            memPutFloat(dst + 8, data.get(v, 2));
+        } else {
+            memPutShort(dst    , toSnorm16((data.get(v, 0) - quantOffset.x) / quantScale.x));
+            memPutShort(dst + 2, toSnorm16((data.get(v, 1) - quantOffset.y) / quantScale.y));
+            memPutShort(dst + 4, toSnorm16((data.get(v, 2) - quantOffset.z) / quantScale.z));
+            memPutShort(dst + 6, (short) 0);
+        }
+    }
+
+    private void encodeTexCoord(float u, float w, long dst) {
+        switch (texCoords) {
+            case FLOAT -> {
+                memPutFloat(dst    , u);
+                memPutFloat(dst + 4, w);
+            }
+            case HALF_FLOAT -> {
+                memPutShort(dst    , floatToHalf(u));
+                memPutShort(dst + 2, floatToHalf(w));
+            }
+            case NORMALIZED_SHORT -> {
+                memPutShort(dst    , toUnorm16(u));
+                memPutShort(dst + 2, toUnorm16(w));
+            }
+        }
+    }
+
+    // Pack the mesh indices into 16 bits; the caller frees the returned buffer
+    public static ByteBuffer encodeShortIndices(IntBuffer indices) {
+        int count = indices.remaining();
+        ByteBuffer packed = memAlloc(count * Short.BYTES);
+        long address = memAddress(packed);
+        for (int i = 0; i < count; i++) {
+            memPutShort(address + (long) i * Short.BYTES, (short) indices.get(indices.position() + i));
+        }
+        return packed;
+    }
+
+    // Bounds center and half extent for quantizing positions
+    public static void computeBounds(MeshData data, Vector3f offset, Vector3f scale) {
+        Vector3f min = new Vector3f(Float.POSITIVE_INFINITY);
+        Vector3f max = new Vector3f(Float.NEGATIVE_INFINITY);
+        for (int v = 0; v < data.vertexCount(); v++) {
+            min.min(data.getPosition(v, offset));
+            max.max(offset);
+        }
+        offset.set(min).add(max).mul(0.5f);
+        scale.set(max).sub(min).mul(0.5f);
+        // Keep flat axes invertible
+        scale.max(new Vector3f(1e-6f));
+    }
+
+    private static short toSnorm16(float value) {
+        float clamped = Math.max(-1.0f, Math.min(1.0f, value));
+        return (short) Math.round(clamped * 32767.0f);
+    }
+    private static short toUnorm16(float value) {
+        float clamped = Math.max(0.0f, Math.min(1.0f, value));
+        return (short) Math.round(clamped * 65535.0f);
+    }
+
+    // Signed normalized 10:10:10:2, x in the low bits (GL_INT_2_10_10_10_REV)
+    public static int packNormal(float x, float y, float z) {
+        int px = Math.round(Math.max(-1.0f, Math.min(1.0f, x)) * 511.0f) & 0x3FF;
+        int py = Math.round(Math.max(-1.0f, Math.min(1.0f, y)) * 511.0f) & 0x3FF;
+        int pz = Math.round(Math.max(-1.0f, Math.min(1.0f, z)) * 511.0f) & 0x3FF;
+        return px | (py << 10) | (pz << 20);
+    }
+
+    // IEEE 754 binary16 conversion, rounding to nearest
+    public static short floatToHalf(float value) {
+        int bits = Float.floatToIntBits(value);
+        int sign = (bits >>> 16) & 0x8000;
+        int rawExponent = (bits >>> 23) & 0xFF;
+        int mantissa = bits & 0x7FFFFF;
+        // NaN and infinity
+        if (rawExponent == 0xFF)
+            return (short) (sign | 0x7C00 | (mantissa != 0 ? 0x200 : 0));
+        int exponent = rawExponent - 127 + 15;
+        // Too large: infinity
+        if (exponent >= 0x1F)
+            return (short) (sign | 0x7C00);
+        // Too small: subnormal or zero
+        if (exponent <= 0) {
+            if (exponent < -10)
+                return (short) sign;
+            mantissa = (mantissa | 0x800000) >> (1 - exponent);
+            return (short) (sign | ((mantissa + 0x1000) >> 13));
+        }
+        // Rounding may carry into the exponent, which is still the correct result
+        return (short) ((sign | (exponent << 10) | (mantissa >> 13)) + ((mantissa >> 12) & 1));
+    }
+}
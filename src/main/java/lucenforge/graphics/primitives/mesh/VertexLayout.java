@@ -0,0 +1,103 @@
+package lucenforge.graphics.primitives.mesh;
+
+import lucenforge.graphics.shaders.VertexAttributeType;
+
+import java.util.Arrays;
+import java.util.List;
+
+// Which attributes a vertex carries and where each one sits, in floats, inside the interleaved
+// vertex. Computed once and shared; position always comes first.
+public final class VertexLayout {
+
+    public static final VertexLayout POSITION = new VertexLayout(VertexAttributeType.POSITION_IN);
+    public static final VertexLayout POSITION_TEXTURE = new VertexLayout(VertexAttributeType.POSITION_IN, VertexAttributeType.TEXTURE_IN);
+    public static final VertexLayout POSITION_NORMAL = new VertexLayout(VertexAttributeType.POSITION_IN, VertexAttributeType.NORMAL_IN);
+    public static final VertexLayout POSITION_TEXTURE_NORMAL = new VertexLayout(VertexAttributeType.POSITION_IN, VertexAttributeType.TEXTURE_IN, VertexAttributeType.NORMAL_IN);
+
+    private final VertexAttributeType[] attributes;
+    private final List<VertexAttributeType> attributeList;
+    private final int[] offsets; // Float offset per attribute ordinal, -1 if absent
+    private final int floatStride;
+
+    private VertexLayout(VertexAttributeType... attributes) {
+        this.attributes = attributes;
+        this.attributeList = List.of(attributes);
+        this.offsets = new int[VertexAttributeType.all().length];
+        Arrays.fill(offsets, -1);
+        int stride = 0;
+        for (VertexAttributeType type : attributes) {
+            offsets[type.ordinal()] = stride;
+            stride += type.components;
+        }
+        this.floatStride = stride;
+    }
+
+    // Layout with the given attributes, in order after the position
+    public static VertexLayout of(VertexAttributeType... types) {
+        VertexAttributeType[] ordered = new VertexAttributeType[types.length + 1];
+        ordered[0] = VertexAttributeType.POSITION_IN;
+        int count = 1;
+        for (VertexAttributeType type : types) {
+            boolean duplicate = false;
+            for (int i = 0; i < count; i++)
+                duplicate |= ordered[i] == type;
+            if (!duplicate)
+                ordered[count++] = type;
+        }
+        VertexLayout layout = new VertexLayout(Arrays.copyOf(ordered, count));
+        // Reuse the shared instances for the common layouts
+        for (VertexLayout common : new VertexLayout[] { POSITION, POSITION_TEXTURE, POSITION_NORMAL, POSITION_TEXTURE_NORMAL }) {
+            if (common.equals(layout))
+                return common;
+        }
+        return layout;
+    }
+
+    // The position/texture/normal layouts most meshes use
+    public static VertexLayout standard(boolean hasTexCoords, boolean hasNormals) {
+        if (hasTexCoords)
+            return hasNormals ? POSITION_TEXTURE_NORMAL : POSITION_TEXTURE;
+        return hasNormals ? POSITION_NORMAL : POSITION;
+    }
+
+    // Same attributes plus the given ones
+    public VertexLayout with(VertexAttributeType... extra) {
+        VertexAttributeType[] combined = Arrays.copyOf(attributes, attributes.length + extra.length);
+        System.arraycopy(extra, 0, combined, attributes.length, extra.length);
+        return of(Arrays.copyOfRange(combined, 1, combined.length));
+    }
+
+    public boolean has(VertexAttributeType type) {
+        return offsets[type.ordinal()] >= 0;
+    }
+    // Float offset of the attribute inside a vertex, -1 if absent
+    public int offset(VertexAttributeType type) {
+        return offsets[type.ordinal()];
+    }
+    public List<VertexAttributeType> attributes() {
+        return attributeList;
+    }
+    public int floatStride() {
+        return floatStride;
+    }
+    public int byteStride() {
+        return floatStride * Float.BYTES;
+    }
+
+    @Override
+    public boolean equals(Object obj) {
+        if (this == obj) return true;
+        if (!(obj instanceof VertexLayout other)) return false;
+        return Arrays.equals(attributes, other.attributes);
+    }
+
+    @Override
+    public int hashCode() {
+        return Arrays.hashCode(attributes);
+    }
+
+    @Override
+    public String toString() {
+        return attributeList.toString();
+    }
+}
@@ -3,6 +3,8 @@ package lucenforge.graphics.shaders;
 import lucenforge.files.Log;
 
 import java.util.HashMap;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
 
 import static org.lwjgl.opengl.GL20.*;
 
@@ -15,6 +17,9 @@ public class Shader {
     private final HashMap<String, ShaderParameter> reqUniforms = new HashMap<>();
     private final HashMap<VertexAttributeType, Integer> reqVertexAttributes = new HashMap<>();
 
+    // layout (location = N) in type name;
+    private static final Pattern ATTRIBUTE_PATTERN = Pattern.compile("layout\\s*\\(\\s*location\\s*=\\s*(\\d+)\\s*\\)\\s*in\\s+\\w+\\s+(\\w+)\\s*;.*");
+
     public Shader(String name, String vertexSrc, String fragmentSrc) {
         this.name = name;
         int vertexShader = compileShader(GL_VERTEX_SHADER, vertexSrc);
@@ -65,6 +70,11 @@ public class Shader {
         return reqVertexAttributes.getOrDefault(type, null);
     }
 
+    // Attributes the vertex shader reads, by type
+    public boolean requiresAttribute(VertexAttributeType type) {
+        return reqVertexAttributes.containsKey(type);
+    }
+
     // Check if uniform is required
     public boolean isUniformRequired(String name) {
         return reqUniforms.containsKey(name);
@@ -90,12 +100,16 @@ public class Shader {
 
             // Find Vertex Attributes
             if (line.startsWith("layout")) {
-
-                String[] parts = line.split(" ");
-                String attributeName = parts[parts.length-1].replace(";", "");
-                VertexAttributeType vertexAttributeType = VertexAttributeType.valueOf(attributeName.toUpperCase());
-
-                int location = Integer.parseInt(line.replaceAll(" ", "").substring(line.indexOf("="),line.indexOf(")")-2));
+                Matcher matcher = ATTRIBUTE_PATTERN.matcher(line);
+                if (!matcher.matches())
+                    continue; // Not a vertex input (e.g. a fragment output)
+                int location = Integer.parseInt(matcher.group(1));
+                String attributeName = matcher.group(2);
+                VertexAttributeType vertexAttributeType = VertexAttributeType.fromGlslName(attributeName);
+                if (vertexAttributeType == null) {
+                    Log.writeln(Log.WARNING, "Unknown vertex attribute " + attributeName + " in shader " + name + ", it will not be fed");
+                    continue;
+                }
                 reqVertexAttributes.put(vertexAttributeType, location);
             }
         }
@@ -51,6 +51,7 @@ public class ShaderParameter {
             case VEC4      -> v instanceof Vector4f;
             case MAT4      -> v instanceof Matrix4f;
             case SAMPLER2D -> v instanceof Integer || v instanceof ByteBuffer;
+            case SAMPLER2DARRAY -> v instanceof Integer;
             default -> false;
         };
         if(!isValid){
@@ -88,7 +89,7 @@ public class ShaderParameter {
                     boolean b = (Boolean) value;
                     glUniform1i(location, b ? 1 : 0);
                 }
-                case SAMPLER2D, INT -> {
+                case SAMPLER2D, SAMPLER2DARRAY, INT -> {
                     int i = (Integer) value;
                     glUniform1i(location, i);
                 }
@@ -118,6 +119,9 @@ public class ShaderParameter {
     public boolean isSet() {
         return value != null;
     }
+    public Object value() {
+        return value;
+    }
 
     public String name(){
         return name;
@@ -1,5 +1,5 @@
 package lucenforge.graphics.shaders;
 
 public enum UniformType {
-    BOOL, INT, FLOAT, VEC2, VEC3, VEC4, MAT4, SAMPLER2D
+    BOOL, INT, FLOAT, VEC2, VEC3, VEC4, MAT4, SAMPLER2D, SAMPLER2DARRAY
 }
\ No newline at end of file
@@ -2,8 +2,47 @@ package lucenforge.graphics.shaders;
 
 public enum VertexAttributeType {
 
-    POSITION_IN,
-    TEXTURE_IN,
-    NORMAL_IN
+    POSITION_IN(3),
+    TEXTURE_IN(2),
+    NORMAL_IN(3),
+    TANGENT_IN(4),      // xyz direction, w handedness (+1 or -1)
+    COLOR_IN(4),
+    TEXTURE2_IN(2),     // Second UV set (lightmaps, detail maps)
+    BONE_INDICES_IN(4), // Stored as floats, cast to int in the shader
+    BONE_WEIGHTS_IN(4),
+    INSTANCE_MODEL_IN(16), // Per instance mat4, takes four consecutive locations
+    INSTANCE_DATA_IN(4),   // Per instance custom vec4
+    TEXTURE_LAYER_IN(1),   // Per draw layer of the bound texture array
+    TEXTURE_HANDLE_IN(2);  // Per draw bindless texture handle, as a uvec2
+
+    private static final VertexAttributeType[] all = values();
+
+    // Number of float components per vertex
+    public final int components;
+
+    VertexAttributeType(int components) {
+        this.components = components;
+    }
+
+    // Set once per draw as a constant value, never read from the vertex buffer
+    public boolean isPerDraw() {
+        return this == TEXTURE_LAYER_IN || this == TEXTURE_HANDLE_IN;
+    }
+
+    // Cached values() so lookups don't allocate
+    public static VertexAttributeType[] all() {
+        return all;
+    }
+
+    // Match a GLSL input name, with or without the "_in" suffix and in snake or camel case
+    // (e.g. "normal", "normal_in" or "instanceModel")
+    public static VertexAttributeType fromGlslName(String name) {
+        String upper = name.replaceAll("([a-z0-9])([A-Z])", "$1_$2").toUpperCase();
+        for (VertexAttributeType type : all) {
+            if (type.name().equals(upper) || type.name().equals(upper + "_IN"))
+                return type;
+        }
+        return null;
+    }
 
 }